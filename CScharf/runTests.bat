@@ -23,4 +23,40 @@ java -classpath ./bin CScharf < test22.csf
 java -classpath ./bin CScharf < test23.csf
 java -classpath ./bin CScharf < test24.csf
 java -classpath ./bin CScharf < test25.csf
-java -classpath ./bin CScharf < test26.csf
\ No newline at end of file
+java -classpath ./bin CScharf < test26.csf
+java -classpath ./bin CScharf < test27.csf
+java -classpath ./bin CScharf < test28.csf
+java -classpath ./bin CScharf < test29.csf
+java -classpath ./bin CScharf < test30.csf
+java -classpath ./bin CScharf < test31.csf
+java -classpath ./bin CScharf < test32.csf
+java -classpath ./bin CScharf < test33.csf
+java -classpath ./bin CScharf < test34.csf
+java -classpath ./bin CScharf < test35.csf
+java -classpath ./bin CScharf < test36.csf
+java -classpath ./bin CScharf < test37.csf
+java -classpath ./bin CScharf < test38.csf
+java -classpath ./bin CScharf < test39.csf
+java -classpath ./bin CScharf < test40.csf
+java -classpath ./bin CScharf < test41.csf
+java -classpath ./bin CScharf < test42.csf
+java -classpath ./bin CScharf < test43.csf
+java -classpath ./bin CScharf -depth 1000000 < test44.csf
+java -classpath ./bin CScharf < test45.csf
+java -classpath ./bin CScharf -jvm < test45.csf
+java -classpath ./bin CScharf -jvm -c < test45.csf
+java -classpath ./bin CScharf < test46.csf
+java -classpath ./bin CScharf < test47.csf
+java -classpath ./bin CScharf < test48.csf
+java -classpath ./bin CScharf < test49.csf
+java -classpath ./bin CScharf -c < test49.csf
+java -classpath ./bin CScharf -disable fold < test35.csf
+java -classpath ./bin CScharf -passes < test35.csf | findstr /v /c:"ms "
+java -classpath ./bin CScharf -disable bogus < test35.csf
+del test32.profile 2>nul
+java -classpath ./bin CScharf -profile test32.profile < test32.csf
+java -classpath ./bin CScharf -profile test32.profile < test32.csf
+set /p profileHeader=<test32.profile
+(echo %profileHeader%& echo hot& echo hot 1& echo types 3 x) > test32.profile
+java -classpath ./bin CScharf -profile test32.profile < test32.csf
+del test32.profile
\ No newline at end of file
@@ -23,10 +23,10 @@ public class CScharfUtil {
 	static final HashMap<Class<?>, Value> defaultValues = new HashMap<Class<?>, Value>();
 	
 	static {
-		defaultValues.put(ValueInteger.class, new ValueInteger(0));
+		defaultValues.put(ValueInteger.class, ValueInteger.valueOf(0));
 		defaultValues.put(ValueFloat.class, new ValueFloat(0.0f));
 		defaultValues.put(ValueDouble.class, new ValueDouble(0.0d));
-		defaultValues.put(ValueBoolean.class, new ValueBoolean(false));
+		defaultValues.put(ValueBoolean.class, ValueBoolean.FALSE);
 		defaultValues.put(ValueString.class, new ValueString(""));
 		defaultValues.put(ValueAnonymousType.class, new ValueAnonymousType());
 		defaultValues.put(ValueFn.class, new ValueFn());
@@ -134,10 +134,10 @@ public class CScharfUtil {
 	
 	/** Converts a Java value to a CScharf value. */
 	public static final Value getValueTypeFromJavaValue(Object obj) {
-		if (obj instanceof Integer) return new ValueInteger((int) obj);
+		if (obj instanceof Integer) return ValueInteger.valueOf((int) obj);
 		else if (obj instanceof Float) return new ValueFloat((float) obj);
 		else if (obj instanceof Double) return new ValueDouble((double) obj);
-		else if (obj instanceof Boolean) return new ValueBoolean((boolean) obj);
+		else if (obj instanceof Boolean) return ValueBoolean.valueOf((boolean) obj);
 		else if (obj instanceof String) return new ValueString((String) obj);
 		else if (obj instanceof Array) return new ValueArray((Array) obj);
 		else return new ValueReflection(obj);
@@ -159,14 +159,14 @@ public class CScharfUtil {
 			if (value instanceof ValueInteger) {
 				return value;
 			} else if (value instanceof ValueFloat) {
-				return new ValueInteger((int) value.floatValue());
+				return ValueInteger.valueOf((int) value.floatValue());
 			} else if (value instanceof ValueDouble) {
-				return new ValueInteger((int) value.doubleValue());
+				return ValueInteger.valueOf((int) value.doubleValue());
 			} else if (value instanceof ValueBoolean) {
-				if (value.booleanValue()) return new ValueInteger(1);
-				return new ValueInteger(0);
+				if (value.booleanValue()) return ValueInteger.valueOf(1);
+				return ValueInteger.valueOf(0);
 			} else if (value instanceof ValueString) {
-				return new ValueInteger(Integer.parseInt(value.stringValue()));				
+				return ValueInteger.valueOf(Integer.parseInt(value.stringValue()));				
 			}
 			throw new ExceptionSemantic("Unsupported cast.");
 		} else if (castToType.equals("float")) {
@@ -209,7 +209,7 @@ public class CScharfUtil {
 			} else if (value instanceof ValueBoolean) {
 				return value;
 			} else if (value instanceof ValueString) {
-				return new ValueBoolean(value.stringValue().equals("true") ? true : false);
+				return ValueBoolean.valueOf(value.stringValue().equals("true") ? true : false);
 			}
 			throw new ExceptionSemantic("Unsupported cast.");
 		} else if (castToType.equals("string")) {
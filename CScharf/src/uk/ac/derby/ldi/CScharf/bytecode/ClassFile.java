@@ -0,0 +1,205 @@
+package uk.ac.derby.ldi.CScharf.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** A JVM class file being written: its constant pool, static fields and methods.
+ *
+ * Only what generated code needs is supported.  There are no interfaces and no attributes
+ * other than the Code and StackMapTable attributes of methods, which CodeBuilder writes.
+ */
+public final class ClassFile {
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_PRIVATE = 0x0002;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+
+	// Class file version written: Java 17.
+	private static final int majorVersion = 61;
+
+	private static final int CONSTANT_Utf8 = 1;
+	private static final int CONSTANT_Integer = 3;
+	private static final int CONSTANT_Long = 5;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_Fieldref = 9;
+	private static final int CONSTANT_Methodref = 10;
+	private static final int CONSTANT_InterfaceMethodref = 11;
+	private static final int CONSTANT_NameAndType = 12;
+
+	// Largest index a constant pool entry may have.
+	private static final int maximumPoolIndex = 65535;
+
+	// The constant pool, written as entries are added, and the index of each entry by a key
+	// made from its tag and contents, so an entry is only added once.
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final HashMap<String, Integer> poolIndices = new HashMap<String, Integer>();
+	private int poolCount = 1;
+
+	private final int thisClass;
+	private final int superClass;
+	private final ArrayList<int[]> fields = new ArrayList<int[]>();
+	private final ArrayList<CodeBuilder> methods = new ArrayList<CodeBuilder>();
+
+	/** Ctor for a final class with a given internal name, e.g. "a/b/C", and superclass. */
+	public ClassFile(String name, String superName) {
+		thisClass = classConstant(name);
+		superClass = classConstant(superName);
+	}
+
+	/** Add a field. */
+	public void addField(int access, String name, String descriptor) {
+		fields.add(new int[] {access, utf8(name), utf8(descriptor)});
+	}
+
+	/** Add a static method, and return the builder its code is written with. */
+	public CodeBuilder addMethod(int access, String name, String descriptor) {
+		var method = new CodeBuilder(this, access | ACC_STATIC, name, descriptor);
+		methods.add(method);
+		return method;
+	}
+
+	/** Return the bytes of the class file. */
+	public byte[] toBytes() {
+		try {
+			// Methods are written first, as they add the names of their attributes to the pool.
+			var body = new ByteArrayOutputStream();
+			var bodyOut = new DataOutputStream(body);
+			bodyOut.writeShort(ACC_FINAL | ACC_SUPER);
+			bodyOut.writeShort(thisClass);
+			bodyOut.writeShort(superClass);
+			bodyOut.writeShort(0);
+			bodyOut.writeShort(fields.size());
+			for (var field : fields) {
+				bodyOut.writeShort(field[0]);
+				bodyOut.writeShort(field[1]);
+				bodyOut.writeShort(field[2]);
+				bodyOut.writeShort(0);
+			}
+			bodyOut.writeShort(methods.size());
+			for (var method : methods)
+				method.write(bodyOut);
+			bodyOut.writeShort(0);
+
+			var bytes = new ByteArrayOutputStream();
+			var out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(majorVersion);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+			body.writeTo(out);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Return the index of a Utf8 constant. */
+	int utf8(String value) {
+		var index = poolIndices.get("U" + value);
+		if (index != null)
+			return index;
+		try {
+			poolOut.writeByte(CONSTANT_Utf8);
+			poolOut.writeUTF(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return addEntry("U" + value, 1);
+	}
+
+	/** Return the index of a Class constant, given an internal class name or array descriptor. */
+	int classConstant(String name) {
+		return reference("C" + name, CONSTANT_Class, utf8(name), -1);
+	}
+
+	/** Return the index of an Integer constant. */
+	int intConstant(int value) {
+		var index = poolIndices.get("I" + value);
+		if (index != null)
+			return index;
+		write(CONSTANT_Integer, value);
+		return addEntry("I" + value, 1);
+	}
+
+	/** Return the index of a Long constant. */
+	int longConstant(long value) {
+		var index = poolIndices.get("J" + value);
+		if (index != null)
+			return index;
+		write(CONSTANT_Long, value);
+		return addEntry("J" + value, 2);
+	}
+
+	/** Return the index of a Double constant. */
+	int doubleConstant(double value) {
+		var bits = Double.doubleToRawLongBits(value);
+		var index = poolIndices.get("D" + bits);
+		if (index != null)
+			return index;
+		write(CONSTANT_Double, bits);
+		return addEntry("D" + bits, 2);
+	}
+
+	/** Return the index of a Fieldref constant. */
+	int fieldConstant(String owner, String name, String descriptor) {
+		return member(CONSTANT_Fieldref, owner, name, descriptor);
+	}
+
+	/** Return the index of a Methodref or InterfaceMethodref constant. */
+	int methodConstant(String owner, String name, String descriptor, boolean isInterface) {
+		return member(isInterface ? CONSTANT_InterfaceMethodref : CONSTANT_Methodref, owner, name, descriptor);
+	}
+
+	// Return the index of a field or method reference.
+	private int member(int tag, String owner, String name, String descriptor) {
+		var nameAndType = reference("N" + name + " " + descriptor, CONSTANT_NameAndType, utf8(name), utf8(descriptor));
+		return reference(tag + owner + "." + name + " " + descriptor, tag, classConstant(owner), nameAndType);
+	}
+
+	// Return the index of an entry made of one or two indices of other entries.  The second is -1 if there is one.
+	private int reference(String key, int tag, int first, int second) {
+		var index = poolIndices.get(key);
+		if (index != null)
+			return index;
+		try {
+			poolOut.writeByte(tag);
+			poolOut.writeShort(first);
+			if (second >= 0)
+				poolOut.writeShort(second);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return addEntry(key, 1);
+	}
+
+	// Write a numeric entry.
+	private void write(int tag, long value) {
+		try {
+			poolOut.writeByte(tag);
+			if (tag == CONSTANT_Integer)
+				poolOut.writeInt((int)value);
+			else
+				poolOut.writeLong(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Record the index of the entry just written, which takes a given number of indices.
+	private int addEntry(String key, int size) {
+		var index = poolCount;
+		poolCount += size;
+		if (poolCount - 1 > maximumPoolIndex)
+			throw new IllegalStateException("Too many constants for a class file.");
+		poolIndices.put(key, index);
+		return index;
+	}
+}
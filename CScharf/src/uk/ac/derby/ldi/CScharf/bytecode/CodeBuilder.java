@@ -0,0 +1,601 @@
+package uk.ac.derby.ldi.CScharf.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** Writes the code of a static method, one instruction at a time.
+ *
+ * The builder follows the types of the locals and of the operand stack through the code, so it
+ * can work out the maximum stack depth and number of locals, and the frames of the StackMapTable
+ * the verifier needs at every label.  Each label gets a full frame, holding the types merged from
+ * every jump to it and the code falling through to it.  Locals are never reused: each is made by
+ * newLocal(), gets its type from the first value stored in it, and is dropped from the frames
+ * that follow kill().
+ *
+ * The instructions that generated code needs are supported, and no others.
+ */
+public final class CodeBuilder {
+	/** Verification types of locals and stack entries.  An object's is given by objectType(). */
+	public static final int TOP = 0;
+	public static final int INTEGER = 1;
+	public static final int FLOAT = 2;
+	public static final int DOUBLE = 3;
+	public static final int LONG = 4;
+	public static final int NULL = 5;
+	private static final int OBJECT = 7;
+
+	public static final int NOP = 0;
+	public static final int ACONST_NULL = 1;
+	public static final int ICONST_0 = 3;
+	public static final int ICONST_1 = 4;
+	public static final int LCONST_0 = 9;
+	public static final int LCONST_1 = 10;
+	public static final int DCONST_0 = 14;
+	public static final int DCONST_1 = 15;
+	private static final int BIPUSH = 16;
+	private static final int SIPUSH = 17;
+	private static final int LDC = 18;
+	private static final int LDC_W = 19;
+	private static final int LDC2_W = 20;
+	private static final int ILOAD = 21;
+	private static final int LLOAD = 22;
+	private static final int FLOAD = 23;
+	private static final int DLOAD = 24;
+	private static final int ALOAD = 25;
+	public static final int AALOAD = 50;
+	private static final int ISTORE = 54;
+	private static final int LSTORE = 55;
+	private static final int FSTORE = 56;
+	private static final int DSTORE = 57;
+	private static final int ASTORE = 58;
+	public static final int AASTORE = 83;
+	public static final int POP = 87;
+	public static final int POP2 = 88;
+	public static final int DUP = 89;
+	public static final int SWAP = 95;
+	public static final int LADD = 97;
+	public static final int DADD = 99;
+	public static final int LSUB = 101;
+	public static final int DSUB = 103;
+	public static final int LMUL = 105;
+	public static final int DMUL = 107;
+	public static final int LDIV = 109;
+	public static final int DDIV = 111;
+	public static final int LREM = 113;
+	public static final int DREM = 115;
+	public static final int LNEG = 117;
+	public static final int DNEG = 119;
+	public static final int IXOR = 130;
+	public static final int F2D = 141;
+	public static final int D2F = 144;
+	public static final int LCMP = 148;
+	public static final int DCMPL = 151;
+	public static final int IFEQ = 153;
+	public static final int IFNE = 154;
+	public static final int IFLT = 155;
+	public static final int IFGE = 156;
+	public static final int IFGT = 157;
+	public static final int IFLE = 158;
+	public static final int IF_ICMPEQ = 159;
+	public static final int IF_ICMPNE = 160;
+	public static final int IF_ICMPLT = 161;
+	public static final int IF_ICMPGE = 162;
+	public static final int IF_ICMPGT = 163;
+	public static final int IF_ICMPLE = 164;
+	public static final int GOTO = 167;
+	public static final int IRETURN = 172;
+	public static final int LRETURN = 173;
+	public static final int DRETURN = 175;
+	public static final int ARETURN = 176;
+	public static final int RETURN = 177;
+	public static final int GETSTATIC = 178;
+	public static final int PUTSTATIC = 179;
+	public static final int INVOKEVIRTUAL = 182;
+	public static final int INVOKESTATIC = 184;
+	public static final int INVOKEINTERFACE = 185;
+	public static final int ANEWARRAY = 189;
+	public static final int CHECKCAST = 192;
+	private static final int WIDE = 196;
+
+	// Largest code a method may have, and largest distance a jump may cover.
+	private static final int maximumCodeLength = 65535;
+	private static final int maximumJump = 32767;
+
+	private final ClassFile classFile;
+	private final int access;
+	private final int name;
+	private final int descriptor;
+
+	private byte[] code = new byte[256];
+	private int length = 0;
+
+	// Types of the locals and stack entries at the current position.  A long or double local
+	// takes two slots, the second of them TOP.  A long or double stack entry takes one entry.
+	private int[] locals = new int[16];
+	private int localCount = 0;
+	private int[] stack = new int[16];
+	private int stackSize = 0;
+	private int stackWords = 0;
+	private int maximumStackWords = 0;
+	// False after an unconditional jump or return, until a label is bound.
+	private boolean reachable = true;
+	// Number of jumps to labels not yet bound.
+	private int unboundJumps = 0;
+
+	// Position, locals and stack of each frame, in order of position.
+	private final ArrayList<Integer> framePositions = new ArrayList<Integer>();
+	private final ArrayList<int[]> frameLocals = new ArrayList<int[]>();
+	private final ArrayList<int[]> frameStacks = new ArrayList<int[]>();
+
+	/** Ctor for a static method of a given class file.  Its parameters are its first locals. */
+	CodeBuilder(ClassFile classFile, int access, String name, String descriptor) {
+		this.classFile = classFile;
+		this.access = access;
+		this.name = classFile.utf8(name);
+		this.descriptor = classFile.utf8(descriptor);
+		var position = new int[] {1};
+		while (descriptor.charAt(position[0]) != ')') {
+			var type = parseType(descriptor, position);
+			locals[newLocal(type)] = type;
+		}
+	}
+
+	/** Return the verification type of instances of a class, given its internal name or array descriptor. */
+	public int objectType(String internalName) {
+		return OBJECT | (classFile.classConstant(internalName) << 8);
+	}
+
+	/** Make a new local, to hold values of a given verification type, and return its slot. */
+	public int newLocal(int type) {
+		var slot = localCount;
+		localCount += size(type);
+		if (localCount > 65535)
+			throw new IllegalStateException("Too many locals for a method.");
+		if (localCount > locals.length)
+			locals = Arrays.copyOf(locals, Math.max(localCount, locals.length * 2));
+		return slot;
+	}
+
+	/** Push the value of a local. */
+	public void load(int slot) {
+		var type = locals[slot];
+		switch (type) {
+			case TOP: throw new IllegalStateException("Local " + slot + " is unset.");
+			case INTEGER: local(ILOAD, slot); break;
+			case LONG: local(LLOAD, slot); break;
+			case FLOAT: local(FLOAD, slot); break;
+			case DOUBLE: local(DLOAD, slot); break;
+			default: local(ALOAD, slot); break;
+		}
+		push(type);
+	}
+
+	/** Pop a value into a local. */
+	public void store(int slot) {
+		var type = pop();
+		switch (type) {
+			case INTEGER: local(ISTORE, slot); break;
+			case LONG: local(LSTORE, slot); break;
+			case FLOAT: local(FSTORE, slot); break;
+			case DOUBLE: local(DSTORE, slot); break;
+			default: local(ASTORE, slot); break;
+		}
+		locals[slot] = type;
+	}
+
+	/** Drop a local from the frames that follow, as its scope has ended. */
+	public void kill(int slot) {
+		locals[slot] = TOP;
+	}
+
+	/** Push an int constant. */
+	public void pushInt(int value) {
+		if (value >= -1 && value <= 5)
+			put1(ICONST_0 + value);
+		else if (value == (byte)value) {
+			put1(BIPUSH);
+			put1(value);
+		} else if (value == (short)value) {
+			put1(SIPUSH);
+			put2(value);
+		} else
+			constant(LDC, classFile.intConstant(value));
+		push(INTEGER);
+	}
+
+	/** Push a long constant. */
+	public void pushLong(long value) {
+		if (value == 0 || value == 1)
+			put1(LCONST_0 + (int)value);
+		else
+			constant(LDC2_W, classFile.longConstant(value));
+		push(LONG);
+	}
+
+	/** Push a double constant. */
+	public void pushDouble(double value) {
+		if (Double.doubleToRawLongBits(value) == 0 || value == 1.0)
+			put1((value == 0) ? DCONST_0 : DCONST_1);
+		else
+			constant(LDC2_W, classFile.doubleConstant(value));
+		push(DOUBLE);
+	}
+
+	/** Write an instruction that takes no operands. */
+	public void insn(int opcode) {
+		switch (opcode) {
+			case NOP: break;
+			case ACONST_NULL: push(NULL); break;
+			case ICONST_0: case ICONST_1: push(INTEGER); break;
+			case LCONST_0: case LCONST_1: push(LONG); break;
+			case DCONST_0: case DCONST_1: push(DOUBLE); break;
+			case AALOAD: pop(); pop(); push(objectType("java/lang/Object")); break;
+			case AASTORE: pop(); pop(); pop(); break;
+			case POP: case POP2: pop(); break;
+			case DUP: push(stack[stackSize - 1]); break;
+			case SWAP: {
+				var top = pop();
+				var next = pop();
+				push(top);
+				push(next);
+				break;
+			}
+			case LADD: case LSUB: case LMUL: case LDIV: case LREM: pop(); pop(); push(LONG); break;
+			case DADD: case DSUB: case DMUL: case DDIV: case DREM: pop(); pop(); push(DOUBLE); break;
+			case LNEG: case DNEG: push(pop()); break;
+			case IXOR: pop(); pop(); push(INTEGER); break;
+			case F2D: pop(); push(DOUBLE); break;
+			case D2F: pop(); push(FLOAT); break;
+			case LCMP: case DCMPL: pop(); pop(); push(INTEGER); break;
+			case IRETURN: case LRETURN: case DRETURN: case ARETURN: pop(); reachable = false; break;
+			case RETURN: reachable = false; break;
+			default: throw new IllegalArgumentException("Unsupported instruction " + opcode + ".");
+		}
+		put1(opcode);
+	}
+
+	/** Write an instruction that names a class: CHECKCAST or ANEWARRAY. */
+	public void typeInsn(int opcode, String internalName) {
+		pop();
+		if (opcode == CHECKCAST)
+			push(objectType(internalName));
+		else if (opcode == ANEWARRAY)
+			push(objectType("[L" + internalName + ";"));
+		else
+			throw new IllegalArgumentException("Unsupported instruction " + opcode + ".");
+		put1(opcode);
+		put2(classFile.classConstant(internalName));
+	}
+
+	/** Write GETSTATIC or PUTSTATIC. */
+	public void field(int opcode, String owner, String name, String descriptor) {
+		if (opcode == GETSTATIC)
+			push(parseType(descriptor, new int[] {0}));
+		else if (opcode == PUTSTATIC)
+			pop();
+		else
+			throw new IllegalArgumentException("Unsupported instruction " + opcode + ".");
+		put1(opcode);
+		put2(classFile.fieldConstant(owner, name, descriptor));
+	}
+
+	/** Write INVOKEVIRTUAL, INVOKESTATIC or INVOKEINTERFACE. */
+	public void invoke(int opcode, String owner, String name, String descriptor) {
+		var position = new int[] {1};
+		var argumentWords = (opcode == INVOKESTATIC) ? 0 : 1;
+		while (descriptor.charAt(position[0]) != ')')
+			argumentWords += size(parseType(descriptor, position));
+		var words = argumentWords;
+		while (words > 0)
+			words -= size(pop());
+		position[0]++;
+		if (descriptor.charAt(position[0]) != 'V')
+			push(parseType(descriptor, position));
+
+		put1(opcode);
+		put2(classFile.methodConstant(owner, name, descriptor, opcode == INVOKEINTERFACE));
+		if (opcode == INVOKEINTERFACE) {
+			put1(argumentWords);
+			put1(0);
+		}
+	}
+
+	/** Write a jump to a label: GOTO, or a conditional jump. */
+	public void jump(int opcode, Label label) {
+		if (opcode >= IFEQ && opcode <= IFLE)
+			pop();
+		else if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+			pop();
+			pop();
+		} else if (opcode != GOTO)
+			throw new IllegalArgumentException("Unsupported instruction " + opcode + ".");
+		merge(label);
+		var position = length;
+		put1(opcode);
+		if (label.position >= 0)
+			put2(checkJump(label.position - position));
+		else {
+			label.jumps.add(position);
+			unboundJumps++;
+			put2(0);
+		}
+		if (opcode == GOTO)
+			reachable = false;
+	}
+
+	/** Bind a label to the current position. */
+	public void mark(Label label) {
+		if (label.position >= 0)
+			throw new IllegalStateException("Label bound twice.");
+		if (reachable || label.locals == null)
+			merge(label);
+		// A frame may not describe the start of the method, which the method's descriptor does.
+		if (length == 0)
+			put1(NOP);
+		label.position = length;
+		for (var jump : label.jumps) {
+			var offset = checkJump(length - jump);
+			code[jump + 1] = (byte)(offset >> 8);
+			code[jump + 2] = (byte)offset;
+		}
+		unboundJumps -= label.jumps.size();
+		label.jumps.clear();
+
+		Arrays.fill(locals, TOP);
+		System.arraycopy(label.locals, 0, locals, 0, label.locals.length);
+		stackSize = 0;
+		stackWords = 0;
+		for (var type : label.stack)
+			push(type);
+		reachable = true;
+
+		if (!framePositions.isEmpty() && framePositions.get(framePositions.size() - 1) == length) {
+			framePositions.remove(framePositions.size() - 1);
+			frameLocals.remove(frameLocals.size() - 1);
+			frameStacks.remove(frameStacks.size() - 1);
+		}
+		framePositions.add(length);
+		frameLocals.add(Arrays.copyOf(locals, localCount));
+		frameStacks.add(Arrays.copyOf(stack, stackSize));
+	}
+
+	/** The state of the code at a position, to return to if the code written after it is abandoned. */
+	public static final class Checkpoint {
+		private final int length;
+		private final int[] locals;
+		private final int[] stack;
+		private final boolean reachable;
+		private final int unboundJumps;
+		private final int frameCount;
+
+		private Checkpoint(CodeBuilder code) {
+			length = code.length;
+			locals = Arrays.copyOf(code.locals, code.localCount);
+			stack = Arrays.copyOf(code.stack, code.stackSize);
+			reachable = code.reachable;
+			unboundJumps = code.unboundJumps;
+			frameCount = code.framePositions.size();
+		}
+	}
+
+	/** Return a checkpoint at the current position. */
+	public Checkpoint checkpoint() {
+		return new Checkpoint(this);
+	}
+
+	/** Abandon the code written since a checkpoint.  It mustn't have jumped to a label bound or
+	 * jumped to before the checkpoint.
+	 */
+	public void rollback(Checkpoint checkpoint) {
+		length = checkpoint.length;
+		localCount = checkpoint.locals.length;
+		Arrays.fill(locals, TOP);
+		System.arraycopy(checkpoint.locals, 0, locals, 0, localCount);
+		stackSize = 0;
+		stackWords = 0;
+		for (var type : checkpoint.stack)
+			push(type);
+		reachable = checkpoint.reachable;
+		unboundJumps = checkpoint.unboundJumps;
+		while (framePositions.size() > checkpoint.frameCount) {
+			framePositions.remove(framePositions.size() - 1);
+			frameLocals.remove(frameLocals.size() - 1);
+			frameStacks.remove(frameStacks.size() - 1);
+		}
+	}
+
+	/** True unless the current position follows an unconditional jump or return. */
+	public boolean isReachable() {
+		return reachable;
+	}
+
+	/** Get the number of bytes of code written. */
+	public int getLength() {
+		return length;
+	}
+
+	// Merge the types at the current position into those at a label.  A local whose types differ
+	// is unusable at the label.
+	private void merge(Label label) {
+		if (label.locals == null) {
+			label.locals = Arrays.copyOf(locals, localCount);
+			label.stack = Arrays.copyOf(stack, stackSize);
+			return;
+		}
+		if (label.position >= 0)
+			return;
+		if (label.stack.length != stackSize)
+			throw new IllegalStateException("Stack depths differ at a label.");
+		var count = Math.min(label.locals.length, localCount);
+		if (count < label.locals.length)
+			label.locals = Arrays.copyOf(label.locals, count);
+		for (int i = 0; i < count; i++)
+			if (label.locals[i] != locals[i])
+				label.locals[i] = TOP;
+	}
+
+	// Check the distance a jump covers fits its operand, and return it.
+	private static int checkJump(int offset) {
+		if (offset < -maximumJump - 1 || offset > maximumJump)
+			throw new IllegalStateException("Method too large.");
+		return offset;
+	}
+
+	/** Write the method, with its Code attribute, to a class file's method table. */
+	void write(DataOutputStream out) throws IOException {
+		if (unboundJumps > 0)
+			throw new IllegalStateException("Jump to a label that was never bound.");
+		if (length > maximumCodeLength)
+			throw new IllegalStateException("Method too large.");
+
+		var frames = new ByteArrayOutputStream();
+		if (!framePositions.isEmpty()) {
+			var framesOut = new DataOutputStream(frames);
+			framesOut.writeShort(classFile.utf8("StackMapTable"));
+			var entries = new ByteArrayOutputStream();
+			var entriesOut = new DataOutputStream(entries);
+			var previous = -1;
+			for (int i = 0; i < framePositions.size(); i++) {
+				int position = framePositions.get(i);
+				entriesOut.writeByte(255);
+				entriesOut.writeShort(position - previous - 1);
+				previous = position;
+				writeLocals(entriesOut, frameLocals.get(i));
+				var frameStack = frameStacks.get(i);
+				entriesOut.writeShort(frameStack.length);
+				for (var type : frameStack)
+					writeType(entriesOut, type);
+			}
+			framesOut.writeInt(2 + entries.size());
+			framesOut.writeShort(framePositions.size());
+			entries.writeTo(framesOut);
+		}
+
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(classFile.utf8("Code"));
+		out.writeInt(12 + length + frames.size());
+		out.writeShort(maximumStackWords);
+		out.writeShort(localCount);
+		out.writeInt(length);
+		out.write(code, 0, length);
+		out.writeShort(0);
+		out.writeShort(frames.size() > 0 ? 1 : 0);
+		frames.writeTo(out);
+	}
+
+	// Write the locals of a frame.  The second slot of a long or double isn't written, and nor
+	// are unusable locals after the last usable one.
+	private static void writeLocals(DataOutputStream out, int[] frameLocals) throws IOException {
+		var types = new ArrayList<Integer>();
+		var count = 0;
+		for (int i = 0; i < frameLocals.length; i++) {
+			types.add(frameLocals[i]);
+			if (frameLocals[i] != TOP)
+				count = types.size();
+			if (frameLocals[i] == LONG || frameLocals[i] == DOUBLE)
+				i++;
+		}
+		out.writeShort(count);
+		for (int i = 0; i < count; i++)
+			writeType(out, types.get(i));
+	}
+
+	// Write a verification type.
+	private static void writeType(DataOutputStream out, int type) throws IOException {
+		out.writeByte(type & 0xFF);
+		if ((type & 0xFF) == OBJECT)
+			out.writeShort(type >>> 8);
+	}
+
+	// Parse the field descriptor at a position in a descriptor, advance past it, and return its
+	// verification type.
+	private int parseType(String descriptor, int[] position) {
+		var start = position[0];
+		switch (descriptor.charAt(position[0]++)) {
+			case 'J': return LONG;
+			case 'D': return DOUBLE;
+			case 'F': return FLOAT;
+			case 'Z': case 'B': case 'C': case 'S': case 'I': return INTEGER;
+			case 'L': {
+				var end = descriptor.indexOf(';', position[0]);
+				position[0] = end + 1;
+				return objectType(descriptor.substring(start + 1, end));
+			}
+			case '[': {
+				while (descriptor.charAt(position[0]) == '[')
+					position[0]++;
+				if (descriptor.charAt(position[0]) == 'L')
+					position[0] = descriptor.indexOf(';', position[0]);
+				position[0]++;
+				return objectType(descriptor.substring(start, position[0]));
+			}
+			default: throw new IllegalArgumentException("Invalid descriptor " + descriptor + ".");
+		}
+	}
+
+	// Number of slots or stack words a value of a given type takes.
+	private static int size(int type) {
+		return (type == LONG || type == DOUBLE) ? 2 : 1;
+	}
+
+	// Push an entry of a given type on the stack.
+	private void push(int type) {
+		if (stackSize == stack.length)
+			stack = Arrays.copyOf(stack, stackSize * 2);
+		stack[stackSize++] = type;
+		stackWords += size(type);
+		maximumStackWords = Math.max(maximumStackWords, stackWords);
+	}
+
+	// Pop the entry on top of the stack, and return its type.
+	private int pop() {
+		if (stackSize == 0)
+			throw new IllegalStateException("Stack underflow.");
+		var type = stack[--stackSize];
+		stackWords -= size(type);
+		return type;
+	}
+
+	// Write an instruction on a local.
+	private void local(int opcode, int slot) {
+		if (slot > 255) {
+			put1(WIDE);
+			put1(opcode);
+			put2(slot);
+		} else {
+			put1(opcode);
+			put1(slot);
+		}
+	}
+
+	// Write an instruction that loads a constant pool entry.
+	private void constant(int opcode, int index) {
+		if (opcode == LDC && index > 255) {
+			put1(LDC_W);
+			put2(index);
+		} else if (opcode == LDC) {
+			put1(LDC);
+			put1(index);
+		} else {
+			put1(opcode);
+			put2(index);
+		}
+	}
+
+	private void put1(int b) {
+		if (length == code.length)
+			code = Arrays.copyOf(code, length * 2);
+		code[length++] = (byte)b;
+	}
+
+	private void put2(int s) {
+		put1(s >> 8);
+		put1(s);
+	}
+}
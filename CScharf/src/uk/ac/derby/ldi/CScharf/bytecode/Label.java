@@ -0,0 +1,15 @@
+package uk.ac.derby.ldi.CScharf.bytecode;
+
+import java.util.ArrayList;
+
+/** A position in the code of a method, which jumps may target before it is bound. */
+public final class Label {
+	// Offset of the position in the code, or -1 until it is bound.
+	int position = -1;
+	// Types of the locals and stack entries at the position, merged from every jump to it and the
+	// code falling through to it.  Null until the first of them is seen.
+	int[] locals;
+	int[] stack;
+	// Offsets of the jumps made to the position before it was bound, whose targets are patched when it is.
+	final ArrayList<Integer> jumps = new ArrayList<Integer>();
+}
@@ -21,4 +21,12 @@ public class BaseASTNode {
 	// reference a compiled function definition, so that the function needn't be redefined
 	// on every execution.	
 	public Object optimised = null;
+	
+	// Set before execution by the type checker to indicate that the types of the values
+	// a node assigns, passes or returns have been proven, so needn't be checked at run-time.
+	public boolean typeChecked = false;
+	
+	// Set before execution on a name in a method that can only refer to a member of the 
+	// method's receiver, so needn't be looked up among the variables first.
+	public boolean member = false;
 }
@@ -0,0 +1,75 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.SimpleNode;
+import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueBoolean;
+import uk.ac.derby.ldi.CScharf.values.ValueDouble;
+import uk.ac.derby.ldi.CScharf.values.ValueInteger;
+
+/** A call made by bytecode, which was compiled for the main-level function the name called
+ * refers to in the program's source.
+ *
+ * Before each call, bytecode links the site: it checks the name still finds that function, as
+ * the interpreter would look it up.  If it does, the call is made through the function's call
+ * site.  If it doesn't, the call is made by the interpreter, with boxed arguments.
+ */
+final class BytecodeCallSite {
+	private final SimpleNode node;
+	private final boolean inExpression;
+	private final BytecodeFunction callee;
+	private final Display.FunctionBinding binding;
+	// The function the name was last found to be, if it is the callee.
+	private FunctionDefinition linked = null;
+
+	BytecodeCallSite(SimpleNode node, boolean inExpression, BytecodeFunction callee) {
+		this.node = node;
+		this.inExpression = inExpression;
+		this.callee = callee;
+		binding = new Display.FunctionBinding(((SimpleNode)node.jjtGetChild(0)).tokenValue);
+	}
+
+	/** Return true if the name called finds the callee.  Used by generated code. */
+	boolean link(Parser parser) {
+		var function = parser.getScope().findFunction(binding);
+		if (function != null && function == linked)
+			return true;
+		if (function != null && function.getFunctionBody() == callee.getNode().jjtGetChild(3)) {
+			linked = function;
+			callee.setDefinition(function);
+			return true;
+		}
+		// Report a function that isn't defined before the arguments are evaluated, as the interpreter does.
+		parser.findCallee(node, inExpression);
+		return false;
+	}
+
+	/** Make the call with the interpreter, given its arguments.  Used by generated code. */
+	Value invoke(Parser parser, Value[] arguments) {
+		var constants = new CompiledNode[arguments.length];
+		for (int i = 0; i < arguments.length; i++)
+			constants[i] = new CompiledExpressions.Constant(arguments[i]);
+		return parser.invoke(node, constants, inExpression, null);
+	}
+
+	/** Unbox a value returned to bytecode that expects an integer.  Used by generated code. */
+	static long expectLong(Value value) {
+		return expect(value, ValueInteger.class).longValue();
+	}
+
+	/** Unbox a value returned to bytecode that expects a double.  Used by generated code. */
+	static double expectDouble(Value value) {
+		return expect(value, ValueDouble.class).doubleValue();
+	}
+
+	/** Unbox a value returned to bytecode that expects a boolean.  Used by generated code. */
+	static boolean expectBoolean(Value value) {
+		return expect(value, ValueBoolean.class).booleanValue();
+	}
+
+	// Check a returned value has the type bytecode expects.
+	private static Value expect(Value value, Class<?> type) {
+		if (value == null || value.getClass() != type)
+			throw new ExceptionSemantic("Cannot return value of type " + ((value == null) ? null : value.getClass()) + " to an expression of type " + type);
+		return value;
+	}
+}
@@ -0,0 +1,985 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.CScharf.CScharfUtil;
+import uk.ac.derby.ldi.CScharf.bytecode.ClassFile;
+import uk.ac.derby.ldi.CScharf.bytecode.CodeBuilder;
+import uk.ac.derby.ldi.CScharf.bytecode.Label;
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+import uk.ac.derby.ldi.CScharf.values.*;
+
+import static uk.ac.derby.ldi.CScharf.bytecode.CodeBuilder.*;
+
+/** Compiles main-level functions and the main program to JVM bytecode, which is loaded as
+ * hidden classes and compiled by the JVM like any other code.
+ *
+ * Integers, doubles and booleans are held unboxed in JVM locals, and are operated on by JVM
+ * instructions with the same results as the methods of their Value classes.  Strings are held
+ * as Values, and operated on by their methods.  A call to a main-level function is a JVM call
+ * through the function's call site, made once the name called is checked to still find it.
+ *
+ * A function is compiled if the main program defines it, it takes integers, doubles and
+ * booleans, and it returns one of them or is void and returns nothing.  Its body may use its
+ * parameters and its own variables of those types or strings, the operators on them,
+ * assignment, ++, --, print, if, while, for and blocks, and calls of main-level functions that
+ * can be compiled.  Its variables mustn't have the names of the main program's, which would
+ * clash with them when it is walked.
+ *
+ * The main program is compiled too, with its variables in JVM locals, if nothing but its own
+ * code uses their names.  Its statements that can't be compiled are walked, as long as they
+ * don't use those names either.
+ *
+ * Anything that isn't compiled is left to the interpreter's other engines.
+ */
+final class BytecodeCompiler {
+
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	private static final String PARSER = internalName(Parser.class);
+	private static final String DISPLAY = internalName(Display.class);
+	private static final String INVOCATION = internalName(FunctionInvocation.class);
+	private static final String CALL_SITE = internalName(BytecodeCallSite.class);
+	private static final String COMPILER = internalName(BytecodeCompiler.class);
+	private static final String VALUE = internalName(Value.class);
+	private static final String NODE = internalName(SimpleNode.class);
+
+	// Thrown when something can't be compiled.
+	private static final class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+
+	// A variable in a JVM local.
+	private static final class Local {
+		final int slot;
+		final Class<?> type;
+
+		Local(int slot, Class<?> type) {
+			this.slot = slot;
+			this.type = type;
+		}
+	}
+
+	// Main-level functions by name.  A name more than one is defined with maps to null.
+	private final HashMap<String, ASTFnDef> functions = new HashMap<String, ASTFnDef>();
+	// Names the main program declares variables with.
+	private final HashSet<String> programNames = new HashSet<String>();
+	// Names used by functions, other than their parameters, and by classes, func values and
+	// anonymous objects.  The main program's variables of these names stay in the display.
+	private final HashSet<String> sharedNames = new HashSet<String>();
+	// How each main-level function is called from bytecode, by definition node.  Null for a
+	// function whose parameters or value can't be passed unboxed.
+	private final HashMap<ASTFnDef, BytecodeFunction> bytecodeFunctions = new HashMap<ASTFnDef, BytecodeFunction>();
+
+	/** Compile the main program.  Return null if it can't be compiled. */
+	CompiledNode compileProgram(ASTCode program) {
+		analyse(program);
+		var localNames = new HashSet<String>(programNames);
+		localNames.removeAll(sharedNames);
+		try {
+			var generator = new ClassGenerator("Program");
+			var code = generator.classFile.addMethod(0, "main", "(L" + PARSER + ";)V");
+			var method = new MethodCompiler(generator, code, localNames);
+			method.pushScope();
+			method.statements(program);
+			method.popScope();
+			code.insn(RETURN);
+			var hiddenClass = generator.define();
+			return new Program(hiddenClass.findStatic(hiddenClass.lookupClass(), "main", MethodType.methodType(void.class, Parser.class)));
+		} catch (Unsupported | IllegalStateException e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Compile a function, if it hasn't been, and return how it is called.  Return null if it
+	 * can't be compiled.
+	 */
+	BytecodeFunction compile(FunctionDefinition definition) {
+		var body = definition.getFunctionBody();
+		if (!(body.jjtGetParent() instanceof ASTFnDef) || definition.getClosure() != null)
+			return null;
+		var node = (ASTFnDef)body.jjtGetParent();
+		if (functions.get(definition.getName()) != node)
+			return null;
+		var function = getFunction(node);
+		if (function == null)
+			return null;
+		if (!function.isAttempted()) {
+			function.setDefinition(definition);
+			compileFunction(function);
+		}
+		return function.isCompiled() ? function : null;
+	}
+
+	// Find the main-level functions, and the names declared and shared, in a subtree of the main program.
+	private void analyse(Node node) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			var child = node.jjtGetChild(i);
+			if (child instanceof ASTFnDef) {
+				var name = getToken(child, 1);
+				functions.put(name, functions.containsKey(name) ? null : (ASTFnDef)child);
+				var parameters = new HashSet<String>();
+				var parameterList = child.jjtGetChild(2);
+				for (int j = 1; j < parameterList.jjtGetNumChildren(); j += 2)
+					parameters.add(getToken(parameterList, j));
+				addNames(child, sharedNames, parameters);
+			} else if (child instanceof ASTClassDef || child instanceof ASTInterfaceDef || child instanceof ASTFn || child instanceof ASTAnon)
+				addNames(child, sharedNames, new HashSet<String>());
+			else {
+				var name = getDeclaredName(child);
+				if (name != null)
+					programNames.add(name);
+				analyse(child);
+			}
+		}
+	}
+
+	// Add the names used in a subtree to a set, except those in another.
+	private static void addNames(Node node, HashSet<String> names, HashSet<String> except) {
+		var name = ((SimpleNode)node).tokenValue;
+		if (name != null && !except.contains(name))
+			names.add(name);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			addNames(node.jjtGetChild(i), names, except);
+	}
+
+	// True if a subtree uses any of a set of names.
+	private static boolean usesAny(Node node, HashSet<String> names) {
+		var name = ((SimpleNode)node).tokenValue;
+		if (name != null && names.contains(name))
+			return true;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (usesAny(node.jjtGetChild(i), names))
+				return true;
+		return false;
+	}
+
+	// Return the name of the variable a statement declares, or null if it declares none.
+	private static String getDeclaredName(Node node) {
+		if (node instanceof ASTAssignment && node.jjtGetNumChildren() >= 3)
+			return getToken(node, node.jjtGetNumChildren() - 2);
+		if (node instanceof ASTVariableDeclaration)
+			return getToken(node, node.jjtGetNumChildren() - 1);
+		if (node instanceof ASTTypelessAssignment)
+			return getToken(node, 0);
+		return null;
+	}
+
+	// Get how a main-level function is called from bytecode, creating its call site on first use.
+	// Return null if its parameters or value can't be passed unboxed.
+	private BytecodeFunction getFunction(ASTFnDef node) {
+		if (bytecodeFunctions.containsKey(node))
+			return bytecodeFunctions.get(node);
+		BytecodeFunction function = null;
+		var type = getMethodType(node);
+		if (type != null) {
+			var callSite = new MutableCallSite(type);
+			function = new BytecodeFunction(node, callSite);
+			callSite.setTarget(interpreterCall(function, type));
+		}
+		bytecodeFunctions.put(node, function);
+		return function;
+	}
+
+	// Return the type of the methods that call a function from bytecode: they take the parser and
+	// the unboxed arguments, and return the unboxed value.  Return null if it isn't called this way.
+	private static MethodType getMethodType(ASTFnDef node) {
+		try {
+			var parameterList = node.jjtGetChild(2);
+			var parameterTypes = new Class<?>[parameterList.jjtGetNumChildren() / 2 + 1];
+			var parameterNames = new HashSet<String>();
+			parameterTypes[0] = Parser.class;
+			for (int i = 0; i < parameterList.jjtGetNumChildren(); i += 2) {
+				parameterTypes[i / 2 + 1] = getPrimitiveType(CScharfUtil.getClassFromString(getToken(parameterList, i)));
+				if (parameterTypes[i / 2 + 1] == null || !parameterNames.add(getToken(parameterList, i + 1)))
+					return null;
+			}
+			var returnType = CScharfUtil.getClassFromString(getToken(node, 0));
+			if (node.fnHasReturn != (returnType != null))
+				return null;
+			var returnClass = node.fnHasReturn ? getPrimitiveType(returnType) : void.class;
+			return (returnClass != null) ? MethodType.methodType(returnClass, parameterTypes) : null;
+		} catch (ExceptionSemantic e) {
+			return null;
+		}
+	}
+
+	// Return a call site target that invokes a function with the interpreter, boxing its arguments
+	// and unboxing its value, whose type the interpreter checks.
+	private static MethodHandle interpreterCall(BytecodeFunction function, MethodType type) {
+		try {
+			var call = lookup.findStatic(BytecodeCompiler.class, "callInterpreted", MethodType.methodType(Value.class, BytecodeFunction.class, Parser.class, Value[].class));
+			var handle = MethodHandles.insertArguments(call, 0, function).asCollector(Value[].class, type.parameterCount() - 1);
+			var boxes = new MethodHandle[type.parameterCount() - 1];
+			for (int i = 0; i < boxes.length; i++)
+				boxes[i] = lookup.findStatic(BytecodeCompiler.class, "box", MethodType.methodType(Value.class, type.parameterType(i + 1)));
+			handle = MethodHandles.filterArguments(handle, 1, boxes);
+			// longValue(), doubleValue() or booleanValue()
+			if (type.returnType() != void.class)
+				handle = MethodHandles.filterReturnValue(handle, lookup.findVirtual(Value.class, type.returnType().getName() + "Value", MethodType.methodType(type.returnType())));
+			return handle.asType(type);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Invoke a function that hasn't been compiled, called from bytecode, with the interpreter.
+	private static Value callInterpreted(BytecodeFunction function, Parser parser, Value[] arguments) {
+		var definition = function.getDefinition();
+		var invocation = definition.obtainInvocation();
+		for (var argument : arguments)
+			invocation.setCheckedArgument(argument);
+		var value = parser.getScope().execute(invocation, parser);
+		definition.releaseInvocation(invocation);
+		return parser.checkReturn(definition, value, definition.hasReturn());
+	}
+
+	// Compile a function to a hidden class, and retarget its call site to it.  The class has three methods:
+	//
+	//   body(parser, arguments...)   - executes the body and returns the value
+	//   call(parser, arguments...)   - enters the function's scope, calls body() and leaves it: the call site's target
+	//   entry(parser, invocation)    - calls body() with the arguments of an invocation the interpreter has entered
+	private void compileFunction(BytecodeFunction function) {
+		MethodHandle call = null;
+		MethodHandle entry = null;
+		try {
+			var node = function.getNode();
+			var definition = function.getDefinition();
+			var type = getMethodType(node);
+			var descriptor = type.toMethodDescriptorString();
+			var generator = new ClassGenerator("Function$" + definition.getName());
+
+			var code = generator.classFile.addMethod(0, "body", descriptor);
+			var method = new MethodCompiler(generator, code, null);
+			method.pushScope();
+			var parameterList = node.jjtGetChild(2);
+			for (int slot = 1, i = 0; i < parameterList.jjtGetNumChildren(); i += 2) {
+				var parameterType = getValueType(type.parameterType(i / 2 + 1));
+				method.defineParameter(getToken(parameterList, i + 1), slot, parameterType);
+				slot += isWide(parameterType) ? 2 : 1;
+			}
+			method.statements(node.jjtGetChild(3));
+			if (node.fnHasReturn) {
+				var returnType = getValueType(type.returnType());
+				if (method.expression(node.jjtGetChild(4).jjtGetChild(0)) != returnType)
+					throw new Unsupported();
+				code.insn(getReturnOpcode(returnType));
+			} else
+				code.insn(RETURN);
+
+			// The function's invocation, made current while it runs.  It holds nothing, as its
+			// parameters and variables are in JVM locals, so one is shared by every call.
+			var invocation = generator.constant(new FunctionInvocation(definition), FunctionInvocation.class);
+			code = generator.classFile.addMethod(0, "call", descriptor);
+			code.load(0);
+			code.invoke(INVOKEVIRTUAL, PARSER, "getScope", "()L" + DISPLAY + ";");
+			generator.load(code, invocation);
+			code.invoke(INVOKEVIRTUAL, DISPLAY, "enter", "(L" + INVOCATION + ";)V");
+			for (int slot = 0, i = 0; i < type.parameterCount(); slot += (type.parameterType(i) == long.class || type.parameterType(i) == double.class) ? 2 : 1, i++)
+				code.load(slot);
+			code.invoke(INVOKESTATIC, generator.name, "body", descriptor);
+			code.load(0);
+			code.invoke(INVOKEVIRTUAL, PARSER, "getScope", "()L" + DISPLAY + ";");
+			generator.load(code, invocation);
+			code.invoke(INVOKEVIRTUAL, DISPLAY, "leave", "(L" + INVOCATION + ";)V");
+			code.insn(node.fnHasReturn ? getReturnOpcode(getValueType(type.returnType())) : RETURN);
+
+			code = generator.classFile.addMethod(0, "entry", "(L" + PARSER + ";L" + INVOCATION + ";)L" + VALUE + ";");
+			code.load(0);
+			for (int i = 1; i < type.parameterCount(); i++) {
+				code.load(1);
+				code.pushInt(i - 1);
+				code.invoke(INVOKEVIRTUAL, INVOCATION, "getValue", "(I)L" + VALUE + ";");
+				code.invoke(INVOKEINTERFACE, VALUE, type.parameterType(i).getName() + "Value", "()" + getDescriptor(getValueType(type.parameterType(i))));
+			}
+			code.invoke(INVOKESTATIC, generator.name, "body", descriptor);
+			if (node.fnHasReturn)
+				box(code, getValueType(type.returnType()));
+			else
+				code.insn(ACONST_NULL);
+			code.insn(ARETURN);
+
+			var hiddenClass = generator.define();
+			call = hiddenClass.findStatic(hiddenClass.lookupClass(), "call", type);
+			entry = hiddenClass.findStatic(hiddenClass.lookupClass(), "entry", MethodType.methodType(Value.class, Parser.class, FunctionInvocation.class));
+		} catch (Unsupported | IllegalStateException e) {
+			call = null;
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+		function.setCompiled(call, entry);
+	}
+
+	/** The main program, compiled. */
+	private static final class Program extends CompiledNode {
+		private final MethodHandle main;
+
+		Program(MethodHandle main) {
+			this.main = main;
+		}
+
+		Value execute(Parser parser) {
+			try {
+				main.invokeExact(parser);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		}
+	}
+
+	// A hidden class being generated, and the objects its constants are set to.  Constants are
+	// static final fields, set from the class data when the class is initialised.
+	private static final class ClassGenerator {
+		final String name;
+		final ClassFile classFile;
+		private final ArrayList<Object> constants = new ArrayList<Object>();
+		private final ArrayList<String> descriptors = new ArrayList<String>();
+		private final IdentityHashMap<Object, Integer> constantIndices = new IdentityHashMap<Object, Integer>();
+
+		ClassGenerator(String simpleName) {
+			name = internalName(BytecodeCompiler.class).replace("BytecodeCompiler", "CScharf$" + simpleName);
+			classFile = new ClassFile(name, "java/lang/Object");
+		}
+
+		// Return the index of a constant holding a given object, which is of a given type.
+		int constant(Object value, Class<?> type) {
+			var index = constantIndices.get(value);
+			if (index != null)
+				return index;
+			constants.add(value);
+			descriptors.add("L" + internalName(type) + ";");
+			classFile.addField(ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "c" + (constants.size() - 1), descriptors.get(constants.size() - 1));
+			constantIndices.put(value, constants.size() - 1);
+			return constants.size() - 1;
+		}
+
+		// Push a constant.
+		void load(CodeBuilder code, int index) {
+			code.field(GETSTATIC, name, "c" + index, descriptors.get(index));
+		}
+
+		// Define the class, and return a lookup with access to it.
+		MethodHandles.Lookup define() throws IllegalAccessException {
+			var code = classFile.addMethod(0, "<clinit>", "()V");
+			code.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;");
+			code.invoke(INVOKESTATIC, COMPILER, "classData", "(Ljava/lang/invoke/MethodHandles$Lookup;)[Ljava/lang/Object;");
+			for (int i = 0; i < constants.size(); i++) {
+				code.insn(DUP);
+				code.pushInt(i);
+				code.insn(AALOAD);
+				var descriptor = descriptors.get(i);
+				code.typeInsn(CHECKCAST, descriptor.substring(1, descriptor.length() - 1));
+				code.field(PUTSTATIC, name, "c" + i, descriptor);
+			}
+			code.insn(POP);
+			code.insn(RETURN);
+			return lookup.defineHiddenClassWithClassData(classFile.toBytes(), constants.toArray(), true);
+		}
+	}
+
+	// Compiles the code of a method: the body of a function, or the main program.
+	private final class MethodCompiler {
+		private final ClassGenerator generator;
+		private final CodeBuilder code;
+		// Names the main program's variables in JVM locals may have.  Null for a function, all of
+		// whose variables are in JVM locals.
+		private final HashSet<String> localNames;
+		// Variables in JVM locals, by scope, innermost last.
+		private final ArrayList<HashMap<String, Local>> scopes = new ArrayList<HashMap<String, Local>>();
+
+		MethodCompiler(ClassGenerator generator, CodeBuilder code, HashSet<String> localNames) {
+			this.generator = generator;
+			this.code = code;
+			this.localNames = localNames;
+		}
+
+		void pushScope() {
+			scopes.add(new HashMap<String, Local>());
+		}
+
+		void popScope() {
+			for (var local : scopes.remove(scopes.size() - 1).values())
+				code.kill(local.slot);
+		}
+
+		// Find a variable in a JVM local.  Return null if there is none of a given name.
+		private Local find(String name) {
+			for (int i = scopes.size() - 1; i >= 0; i--) {
+				var local = scopes.get(i).get(name);
+				if (local != null)
+					return local;
+			}
+			return null;
+		}
+
+		// Define a parameter held in a given local.
+		void defineParameter(String name, int slot, Class<?> type) {
+			scopes.get(scopes.size() - 1).put(name, new Local(slot, type));
+		}
+
+		// Define a variable of a given type, and pop its initial value into it.
+		private void define(String name, Class<?> type) {
+			if (find(name) != null || (localNames == null ? programNames.contains(name) : !localNames.contains(name)))
+				throw new Unsupported();
+			var slot = code.newLocal(getVerificationType(code, type));
+			code.store(slot);
+			scopes.get(scopes.size() - 1).put(name, new Local(slot, type));
+		}
+
+		// Compile the statements that are the children of a given node.
+		void statements(Node node) {
+			for (int i = 0; i < node.jjtGetNumChildren(); i++)
+				statement(node.jjtGetChild(i));
+		}
+
+		// Compile a statement.  In the main program, a statement that can't be compiled is walked
+		// instead, unless it uses a name of a variable in a JVM local.
+		private void statement(Node node) {
+			if (localNames == null) {
+				compileStatement(node);
+				return;
+			}
+			var checkpoint = code.checkpoint();
+			var scopeCount = scopes.size();
+			var scope = new HashMap<String, Local>(scopes.get(scopeCount - 1));
+			try {
+				compileStatement(node);
+			} catch (Unsupported e) {
+				code.rollback(checkpoint);
+				while (scopes.size() > scopeCount)
+					scopes.remove(scopes.size() - 1);
+				scopes.set(scopeCount - 1, scope);
+				if (usesAny(node, localNames))
+					throw e;
+				code.load(0);
+				generator.load(code, generator.constant(node, SimpleNode.class));
+				code.invoke(INVOKESTATIC, COMPILER, "walk", "(L" + PARSER + ";L" + NODE + ";)V");
+			}
+		}
+
+		private void compileStatement(Node node) {
+			if (node instanceof ASTStatement) {
+				if (node.jjtGetNumChildren() > 0)
+					compileStatement(node.jjtGetChild(0));
+			} else if (node instanceof ASTBlock)
+				block(node);
+			else if (node instanceof ASTAssignment)
+				assignment(node);
+			else if (node instanceof ASTVariableDeclaration)
+				declaration(node);
+			else if (node instanceof ASTPrint) {
+				box(code, expression(node.jjtGetChild(0)));
+				code.invoke(INVOKESTATIC, COMPILER, "print", "(L" + VALUE + ";)V");
+			} else if (node instanceof ASTIfStatement)
+				ifStatement((ASTIfStatement)node);
+			else if (node instanceof ASTWhileLoop)
+				whileLoop(node);
+			else if (node instanceof ASTForLoop)
+				forLoop(node);
+			else if (node instanceof ASTCall)
+				call(node, false);
+			else
+				throw new Unsupported();
+		}
+
+		// Compile a block.  In the main program, the variables and functions its walked statements
+		// define are undefined at its end, as the interpreter does.
+		private void block(Node node) {
+			int variableCount = -1;
+			int functionCount = -1;
+			if (localNames != null) {
+				variableCount = code.newLocal(INTEGER);
+				functionCount = code.newLocal(INTEGER);
+				getScope();
+				code.invoke(INVOKEVIRTUAL, DISPLAY, "getVariableCount", "()I");
+				code.store(variableCount);
+				getScope();
+				code.invoke(INVOKEVIRTUAL, DISPLAY, "getFunctionCount", "()I");
+				code.store(functionCount);
+			}
+			pushScope();
+			statements(node);
+			popScope();
+			if (localNames != null) {
+				getScope();
+				code.load(variableCount);
+				code.load(functionCount);
+				code.invoke(INVOKEVIRTUAL, DISPLAY, "closeBlock", "(II)V");
+				code.kill(variableCount);
+				code.kill(functionCount);
+			}
+		}
+
+		// Push the scope display.
+		private void getScope() {
+			code.load(0);
+			code.invoke(INVOKEVIRTUAL, PARSER, "getScope", "()L" + DISPLAY + ";");
+		}
+
+		// Compile an assignment: a declaration with a value, an assignment to a variable, or ++ or --.
+		private void assignment(Node node) {
+			var childCount = node.jjtGetNumChildren();
+			if (childCount == 3) {
+				var type = getType(getToken(node, 0));
+				var name = getVariableName(node.jjtGetChild(1));
+				if (expression(node.jjtGetChild(2)) != type)
+					throw new Unsupported();
+				define(name, type);
+				return;
+			}
+			if (childCount != 2)
+				throw new Unsupported();
+
+			if (node.jjtGetChild(0) instanceof ASTIncrementDecrement || node.jjtGetChild(1) instanceof ASTIncrementDecrement) {
+				var prefix = node.jjtGetChild(0) instanceof ASTIncrementDecrement;
+				var local = findLocal(node.jjtGetChild(prefix ? 1 : 0));
+				if (local.type != ValueInteger.class)
+					throw new Unsupported();
+				code.load(local.slot);
+				code.insn(LCONST_1);
+				code.insn(getToken(node, prefix ? 0 : 1).equals("++") ? LADD : LSUB);
+				code.store(local.slot);
+				return;
+			}
+
+			var type = expression(node.jjtGetChild(1));
+			var local = findLocal(node.jjtGetChild(0));
+			if (local.type != type)
+				throw new Unsupported();
+			code.store(local.slot);
+		}
+
+		// Compile a declaration without a value, which gives the variable its type's default value.
+		private void declaration(Node node) {
+			if (node.jjtGetNumChildren() != 2)
+				throw new Unsupported();
+			var type = getType(getToken(node, 0));
+			if (type == ValueInteger.class)
+				code.pushLong(0);
+			else if (type == ValueDouble.class)
+				code.pushDouble(0);
+			else if (type == ValueBoolean.class)
+				code.pushInt(0);
+			else
+				generator.load(code, generator.constant(CScharfUtil.getDefaultValueForClass(type), Value.class));
+			define(getToken(node, 1), type);
+		}
+
+		private void ifStatement(ASTIfStatement node) {
+			var otherwise = new Label();
+			condition(node.jjtGetChild(0));
+			code.jump(IFEQ, otherwise);
+			statement(node.jjtGetChild(1));
+			if (node.ifHasElse) {
+				var end = new Label();
+				code.jump(GOTO, end);
+				code.mark(otherwise);
+				statement(node.jjtGetChild(2));
+				code.mark(end);
+			} else
+				code.mark(otherwise);
+		}
+
+		private void whileLoop(Node node) {
+			var test = new Label();
+			var end = new Label();
+			code.mark(test);
+			condition(node.jjtGetChild(0));
+			code.jump(IFEQ, end);
+			statement(node.jjtGetChild(1));
+			code.jump(GOTO, test);
+			code.mark(end);
+		}
+
+		// Compile a FOR loop.  A variable its initialisation declares is removed at the end of the loop.
+		private void forLoop(Node node) {
+			var test = new Label();
+			var end = new Label();
+			pushScope();
+			assignment(node.jjtGetChild(0));
+			code.mark(test);
+			condition(node.jjtGetChild(1));
+			code.jump(IFEQ, end);
+			statement(node.jjtGetChild(3));
+			assignment(node.jjtGetChild(2));
+			code.jump(GOTO, test);
+			code.mark(end);
+			popScope();
+		}
+
+		// Compile the test expression of a statement, which must be boolean.
+		private void condition(Node node) {
+			if (expression(node) != ValueBoolean.class)
+				throw new Unsupported();
+		}
+
+		// Compile a call of a main-level function.  The call site is linked first, then the
+		// arguments are evaluated into JVM locals, and then the function is called through its
+		// call site if the site is linked, and by the interpreter otherwise.  Return the type of
+		// the value left on the stack, or null if none is.
+		private Class<?> call(Node node, boolean inExpression) {
+			var name = getVariableName(node.jjtGetChild(0));
+			var definition = functions.get(name);
+			if (definition == null || find(name) != null || (localNames != null && localNames.contains(name)))
+				throw new Unsupported();
+			var callee = getFunction(definition);
+			if (callee == null || (inExpression && !definition.fnHasReturn))
+				throw new Unsupported();
+			var type = getMethodType(definition);
+			var arguments = node.jjtGetChild(1);
+			if (arguments.jjtGetNumChildren() != type.parameterCount() - 1)
+				throw new Unsupported();
+
+			var site = generator.constant(new BytecodeCallSite((SimpleNode)node, inExpression, callee), BytecodeCallSite.class);
+			generator.load(code, site);
+			code.load(0);
+			code.invoke(INVOKEVIRTUAL, CALL_SITE, "link", "(L" + PARSER + ";)Z");
+			var linked = code.newLocal(INTEGER);
+			code.store(linked);
+			var argumentSlots = new int[arguments.jjtGetNumChildren()];
+			var argumentTypes = new Class<?>[argumentSlots.length];
+			for (int i = 0; i < argumentSlots.length; i++) {
+				argumentTypes[i] = getValueType(type.parameterType(i + 1));
+				if (expression(arguments.jjtGetChild(i)) != argumentTypes[i])
+					throw new Unsupported();
+				argumentSlots[i] = code.newLocal(getVerificationType(code, argumentTypes[i]));
+				code.store(argumentSlots[i]);
+			}
+
+			var returnType = (type.returnType() != void.class) ? getValueType(type.returnType()) : null;
+			var interpreted = new Label();
+			var end = new Label();
+			code.load(linked);
+			code.jump(IFEQ, interpreted);
+			generator.load(code, generator.constant(callee.getInvoker(), MethodHandle.class));
+			code.load(0);
+			for (var slot : argumentSlots)
+				code.load(slot);
+			code.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", type.toMethodDescriptorString());
+			if (!inExpression && returnType != null)
+				code.insn(isWide(returnType) ? POP2 : POP);
+			code.jump(GOTO, end);
+
+			code.mark(interpreted);
+			generator.load(code, site);
+			code.load(0);
+			code.pushInt(argumentSlots.length);
+			code.typeInsn(ANEWARRAY, VALUE);
+			for (int i = 0; i < argumentSlots.length; i++) {
+				code.insn(DUP);
+				code.pushInt(i);
+				code.load(argumentSlots[i]);
+				box(code, argumentTypes[i]);
+				code.insn(AASTORE);
+			}
+			code.invoke(INVOKEVIRTUAL, CALL_SITE, "invoke", "(L" + PARSER + ";[L" + VALUE + ";)L" + VALUE + ";");
+			if (inExpression)
+				code.invoke(INVOKESTATIC, CALL_SITE, "expect" + getName(returnType), "(L" + VALUE + ";)" + getDescriptor(returnType));
+			else
+				code.insn(POP);
+			code.mark(end);
+
+			code.kill(linked);
+			for (var slot : argumentSlots)
+				code.kill(slot);
+			return inExpression ? returnType : null;
+		}
+
+		// Compile an expression, leaving its value on the stack, and return its type.
+		Class<?> expression(Node node) {
+			if (node instanceof ASTPrimaryExpression) {
+				if (node.jjtGetNumChildren() != 1)
+					throw new Unsupported();
+				return expression(node.jjtGetChild(0));
+			}
+			if (node instanceof ASTInteger) {
+				try {
+					code.pushLong(Long.parseLong(((SimpleNode)node).tokenValue));
+				} catch (NumberFormatException e) {
+					throw new Unsupported();
+				}
+				return ValueInteger.class;
+			}
+			if (node instanceof ASTDouble) {
+				code.pushDouble(Double.parseDouble(((SimpleNode)node).tokenValue));
+				return ValueDouble.class;
+			}
+			if (node instanceof ASTTrue || node instanceof ASTFalse) {
+				code.pushInt((node instanceof ASTTrue) ? 1 : 0);
+				return ValueBoolean.class;
+			}
+			if (node instanceof ASTCharacter) {
+				generator.load(code, generator.constant(ValueString.stripDelimited(((SimpleNode)node).tokenValue), Value.class));
+				return ValueString.class;
+			}
+			if (node instanceof ASTDereference) {
+				var local = findLocal(node);
+				code.load(local.slot);
+				return local.type;
+			}
+			if (node instanceof ASTFnInvoke)
+				return call(node, true);
+			if (node instanceof ASTOr || node instanceof ASTAnd)
+				return logical(node, node instanceof ASTOr);
+			if (node instanceof ASTUnaryNot) {
+				if (expression(node.jjtGetChild(0)) != ValueBoolean.class)
+					throw new Unsupported();
+				code.insn(ICONST_1);
+				code.insn(IXOR);
+				return ValueBoolean.class;
+			}
+			if (node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus) {
+				var type = expression(node.jjtGetChild(0));
+				if (type != ValueInteger.class && type != ValueDouble.class)
+					throw new Unsupported();
+				if (node instanceof ASTUnaryMinus)
+					code.insn((type == ValueInteger.class) ? LNEG : DNEG);
+				return type;
+			}
+			if (node instanceof ASTCompEqual)
+				return comparison(node, IFEQ, IF_ICMPEQ);
+			if (node instanceof ASTCompNequal)
+				return comparison(node, IFNE, IF_ICMPNE);
+			if (node instanceof ASTCompGTE)
+				return comparison(node, IFGE, IF_ICMPGE);
+			if (node instanceof ASTCompLTE)
+				return comparison(node, IFLE, IF_ICMPLE);
+			if (node instanceof ASTCompGT)
+				return comparison(node, IFGT, IF_ICMPGT);
+			if (node instanceof ASTCompLT)
+				return comparison(node, IFLT, IF_ICMPLT);
+			if (node instanceof ASTAdd)
+				return arithmetic(node, LADD, DADD, "add");
+			if (node instanceof ASTSubtract)
+				return arithmetic(node, LSUB, DSUB, null);
+			if (node instanceof ASTTimes)
+				return arithmetic(node, LMUL, DMUL, null);
+			if (node instanceof ASTDivide)
+				return arithmetic(node, LDIV, DDIV, null);
+			if (node instanceof ASTModulo)
+				return arithmetic(node, LREM, DREM, null);
+			throw new Unsupported();
+		}
+
+		// Compile || or &&, whose right operand isn't evaluated if the left decides the result.
+		private Class<?> logical(Node node, boolean or) {
+			var end = new Label();
+			condition(node.jjtGetChild(0));
+			code.insn(DUP);
+			code.jump(or ? IFNE : IFEQ, end);
+			code.insn(POP);
+			condition(node.jjtGetChild(1));
+			code.mark(end);
+			return ValueBoolean.class;
+		}
+
+		// Compile an arithmetic operator on two integers or two doubles, or + on a string and any
+		// value.  Like ValueDouble, all but + narrow a double right operand to a float.
+		private Class<?> arithmetic(Node node, int longOpcode, int doubleOpcode, String stringMethod) {
+			var type = expression(node.jjtGetChild(0));
+			if (type == ValueString.class && stringMethod != null) {
+				box(code, expression(node.jjtGetChild(1)));
+				code.invoke(INVOKEINTERFACE, VALUE, stringMethod, "(L" + VALUE + ";)L" + VALUE + ";");
+				return ValueString.class;
+			}
+			if ((type != ValueInteger.class && type != ValueDouble.class) || expression(node.jjtGetChild(1)) != type)
+				throw new Unsupported();
+			if (type == ValueInteger.class)
+				code.insn(longOpcode);
+			else {
+				if (doubleOpcode != DADD)
+					narrow();
+				code.insn(doubleOpcode);
+			}
+			return type;
+		}
+
+		// Compile a comparison of two values of the same type, given the jumps taken if it holds
+		// for the result of comparing them or for two booleans.  Like ValueDouble, a double right
+		// operand is narrowed to a float.
+		private Class<?> comparison(Node node, int compareOpcode, int booleanOpcode) {
+			var type = expression(node.jjtGetChild(0));
+			if (expression(node.jjtGetChild(1)) != type)
+				throw new Unsupported();
+			var holds = new Label();
+			var end = new Label();
+			if (type == ValueInteger.class) {
+				code.insn(LCMP);
+				code.jump(compareOpcode, holds);
+			} else if (type == ValueDouble.class) {
+				narrow();
+				code.insn(DCMPL);
+				code.jump(compareOpcode, holds);
+			} else if (type == ValueBoolean.class)
+				code.jump(booleanOpcode, holds);
+			else {
+				code.invoke(INVOKEINTERFACE, VALUE, "compare", "(L" + VALUE + ";)I");
+				code.jump(compareOpcode, holds);
+			}
+			code.insn(ICONST_0);
+			code.jump(GOTO, end);
+			code.mark(holds);
+			code.insn(ICONST_1);
+			code.mark(end);
+			return ValueBoolean.class;
+		}
+
+		// Narrow the double on top of the stack to a float, and widen it back.
+		private void narrow() {
+			code.insn(D2F);
+			code.insn(F2D);
+		}
+
+		// Find the variable in a JVM local a dereference names.
+		private Local findLocal(Node node) {
+			var local = find(getVariableName(node));
+			if (local == null)
+				throw new Unsupported();
+			return local;
+		}
+	}
+
+	// Return the name a dereference names, if it is a plain variable.
+	private static String getVariableName(Node node) {
+		if (!(node instanceof ASTDereference) || node.jjtGetNumChildren() != 0 || ((SimpleNode)node).member)
+			throw new Unsupported();
+		return ((SimpleNode)node).tokenValue;
+	}
+
+	// Return the type named by a type token, if JVM locals can hold it.
+	private static Class<?> getType(String name) {
+		var type = CScharfUtil.getClassFromString(name);
+		if (type != ValueInteger.class && type != ValueDouble.class && type != ValueBoolean.class && type != ValueString.class)
+			throw new Unsupported();
+		return type;
+	}
+
+	// Return the primitive type a value of a given type is passed as, or null if it isn't passed unboxed.
+	private static Class<?> getPrimitiveType(Class<?> type) {
+		if (type == ValueInteger.class)
+			return long.class;
+		if (type == ValueDouble.class)
+			return double.class;
+		if (type == ValueBoolean.class)
+			return boolean.class;
+		return null;
+	}
+
+	// Return the type of the values passed as a given primitive type.
+	private static Class<?> getValueType(Class<?> type) {
+		if (type == long.class)
+			return ValueInteger.class;
+		if (type == double.class)
+			return ValueDouble.class;
+		return ValueBoolean.class;
+	}
+
+	// Return the name of the primitive type a value of a given type is held as, capitalised: Long, Double or Boolean.
+	private static String getName(Class<?> type) {
+		var name = getPrimitiveType(type).getName();
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	// Return the descriptor of the JVM type a value of a given type is held as.
+	private static String getDescriptor(Class<?> type) {
+		if (type == ValueInteger.class)
+			return "J";
+		if (type == ValueDouble.class)
+			return "D";
+		if (type == ValueBoolean.class)
+			return "Z";
+		return "L" + VALUE + ";";
+	}
+
+	// Return the verification type of the JVM type a value of a given type is held as.
+	private static int getVerificationType(CodeBuilder code, Class<?> type) {
+		if (type == ValueInteger.class)
+			return LONG;
+		if (type == ValueDouble.class)
+			return DOUBLE;
+		if (type == ValueBoolean.class)
+			return INTEGER;
+		return code.objectType(VALUE);
+	}
+
+	// True if a value of a given type takes two JVM locals.
+	private static boolean isWide(Class<?> type) {
+		return type == ValueInteger.class || type == ValueDouble.class;
+	}
+
+	// Return the opcode that returns a value of a given type.
+	private static int getReturnOpcode(Class<?> type) {
+		if (type == ValueInteger.class)
+			return LRETURN;
+		if (type == ValueDouble.class)
+			return DRETURN;
+		return IRETURN;
+	}
+
+	// Box the value of a given type on top of the stack.  A string is already boxed.
+	private static void box(CodeBuilder code, Class<?> type) {
+		if (type != ValueString.class)
+			code.invoke(INVOKESTATIC, COMPILER, "box", "(" + getDescriptor(type) + ")L" + VALUE + ";");
+	}
+
+	// Get the token of the ith child of a node.
+	private static String getToken(Node node, int i) {
+		return ((SimpleNode)node.jjtGetChild(i)).tokenValue;
+	}
+
+	// Get the internal name of a class.
+	private static String internalName(Class<?> type) {
+		return type.getName().replace('.', '/');
+	}
+
+	/** Box an integer.  Used by generated code. */
+	static Value box(long value) {
+		return ValueInteger.valueOf(value);
+	}
+
+	/** Box a double.  Used by generated code. */
+	static Value box(double value) {
+		return new ValueDouble(value);
+	}
+
+	/** Box a boolean.  Used by generated code. */
+	static Value box(boolean value) {
+		return ValueBoolean.valueOf(value);
+	}
+
+	/** Print a value.  Used by generated code. */
+	static void print(Value value) {
+		System.out.println(value);
+	}
+
+	/** Walk a statement.  Used by generated code. */
+	static void walk(Parser parser, SimpleNode node) {
+		node.jjtAccept(parser, null);
+	}
+
+	/** Get the objects a generated class's constants are set to.  Used by generated code. */
+	static Object[] classData(MethodHandles.Lookup lookup) {
+		try {
+			return MethodHandles.classData(lookup, ConstantDescs.DEFAULT_NAME, Object[].class);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MutableCallSite;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.ASTFnDef;
+import uk.ac.derby.ldi.CScharf.values.Value;
+
+/** How a main-level function is called from bytecode, and once it has been compiled to bytecode,
+ * how the interpreter calls it.
+ *
+ * Bytecode calls the function through its call site, whose target takes the parser and unboxed
+ * arguments and returns the unboxed value.  Until the function is compiled, the target boxes the
+ * arguments and invokes the function with the interpreter.  Compiling it retargets the call site
+ * to its bytecode, which the JVM then inlines into its callers like any other call.
+ */
+final class BytecodeFunction {
+	private final ASTFnDef node;
+	private final MutableCallSite callSite;
+	private final MethodHandle invoker;
+	// The function defined by the node.  Null until a call to it is made.
+	private FunctionDefinition definition = null;
+	// Executes the compiled function for an invocation the interpreter has entered.  Null until it has been compiled.
+	private MethodHandle entry = null;
+	// True once compiling the function has been tried.
+	private boolean attempted = false;
+
+	BytecodeFunction(ASTFnDef node, MutableCallSite callSite) {
+		this.node = node;
+		this.callSite = callSite;
+		invoker = callSite.dynamicInvoker();
+	}
+
+	/** Get the definition node of the function. */
+	ASTFnDef getNode() {
+		return node;
+	}
+
+	/** Get the handle bytecode calls the function through. */
+	MethodHandle getInvoker() {
+		return invoker;
+	}
+
+	/** Get the function defined by the node, or null if it hasn't been called yet. */
+	FunctionDefinition getDefinition() {
+		return definition;
+	}
+
+	/** Note the function defined by the node, found by a call to it. */
+	void setDefinition(FunctionDefinition definition) {
+		this.definition = definition;
+	}
+
+	/** True if compiling the function has been tried. */
+	boolean isAttempted() {
+		return attempted;
+	}
+
+	/** Note that compiling the function has been tried, and give its compiled form, or null if it couldn't be compiled. */
+	void setCompiled(MethodHandle call, MethodHandle entry) {
+		attempted = true;
+		if (call != null) {
+			this.entry = entry;
+			callSite.setTarget(call);
+		}
+	}
+
+	/** True if the function has been compiled. */
+	boolean isCompiled() {
+		return entry != null;
+	}
+
+	/** Execute the compiled function for an invocation whose scope has been entered, and return its value. */
+	Value execute(Parser parser, FunctionInvocation invocation) {
+		try {
+			return (Value)entry.invokeExact(parser, invocation);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+/** What a call or invocation node knows about the functions it has called: an inline cache.
+ *
+ * The name called is looked up as a function, and otherwise as a variable, through bindings
+ * that are reused while they still hold.  If the variable holds an instance, the function is
+ * a method of its class, and a class's methods can't change once it is defined, so the method
+ * is kept by class and name.  A site may look up more than one name: the last name of a
+ * member chain, or the name called itself in the receiver's class.  A site that has looked up
+ * more than maximumMethods methods looks up any further ones each time.
+ */
+final class CallSite {
+
+	private static final int maximumMethods = 4;
+
+	private final Display.FunctionBinding function;
+	private final Display.Binding variable;
+
+	// Methods looked up, and the classes and names they were looked up by.  A method that
+	// doesn't exist is kept as null.
+	private final ClassDefinition[] classes = new ClassDefinition[maximumMethods];
+	private final String[] names = new String[maximumMethods];
+	private final FunctionDefinition[] methods = new FunctionDefinition[maximumMethods];
+	private int methodCount = 0;
+
+	CallSite(String name) {
+		function = new Display.FunctionBinding(name);
+		variable = new Display.Binding(name);
+	}
+
+	/** The binding of the name called as a function. */
+	Display.FunctionBinding getFunctionBinding() {
+		return function;
+	}
+
+	/** The binding of the name called as a variable. */
+	Display.Binding getVariableBinding() {
+		return variable;
+	}
+
+	/** Return the method of a given name in a given class.  Return null if it doesn't exist. */
+	FunctionDefinition findMethod(ClassDefinition classDefinition, String name) {
+		for (int i = 0; i < methodCount; i++)
+			if (classes[i] == classDefinition && names[i].equals(name))
+				return methods[i];
+		var method = classDefinition.findFunction(name);
+		if (methodCount < maximumMethods) {
+			classes[methodCount] = classDefinition;
+			names[methodCount] = name;
+			methods[methodCount++] = method;
+		}
+		return method;
+	}
+}
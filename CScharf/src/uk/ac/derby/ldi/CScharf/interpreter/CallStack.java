@@ -0,0 +1,219 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.util.Arrays;
+
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledExpressions.Invoke;
+import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueBoolean;
+import uk.ac.derby.ldi.CScharf.values.ValueClass;
+
+/** Runs compiled functions in a single dispatch loop, with their frames held on the heap.
+ *
+ * A call from a compiled function to another pushes a frame for the callee and continues the
+ * loop with it; its return pops the frame and continues the caller.  So calls between compiled
+ * functions, however deeply they recurse, take no Java stack.  A call to a function that is
+ * still walked or was compiled to JVM bytecode, or one made from a part of a function that
+ * wasn't split into instructions, nests on the Java stack as before, and runs any compiled
+ * function it reaches in a loop of its own above the frames already on the stack.
+ */
+final class CallStack {
+
+	/** The execution of a compiled function. */
+	private static final class Frame {
+		CompiledFunction function;
+		int pc;
+		Object[] registers = new Object[8];
+		// The function called, its invocation and the call site, and the register of the caller's
+		// frame that receives its value.  Unused in the first frame of a loop, whose caller returns
+		// from the invocation itself.
+		FunctionDefinition definition;
+		FunctionInvocation invocation;
+		Invoke site;
+		int resultRegister;
+		// The caller's receiver, restored on return.
+		ValueClass callerReceiver;
+	}
+
+	private final Parser parser;
+	private Frame[] frames = new Frame[16];
+	private int frameCount = 0;
+
+	CallStack(Parser parser) {
+		this.parser = parser;
+	}
+
+	/** Get the value of a register of the frame on top of the stack. */
+	Value getRegister(int index) {
+		return (Value)frames[frameCount - 1].registers[index];
+	}
+
+	/** Run a compiled function, whose invocation has been entered, and return its value. */
+	Value run(CompiledFunction function) {
+		final int base = frameCount;
+		var scope = parser.getScope();
+		var frame = push(function);
+		try {
+			while (true) {
+				final int instruction = frame.function.instructions[frame.pc++];
+				final int a = (instruction >>> 8) & 0xFF;
+				final int bx = instruction >>> 16;
+				final Object[] registers = frame.registers;
+				final Object[] operands = frame.function.operands;
+
+				switch (instruction & 0xFF) {
+					case CompiledFunction.EXEC:		((CompiledNode)operands[bx]).execute(parser); break;
+					case CompiledFunction.EVAL:		registers[a] = ((CompiledNode)operands[bx]).execute(parser); break;
+					case CompiledFunction.MOVE:		registers[a] = registers[bx]; break;
+					case CompiledFunction.JUMP:		frame.pc = bx; break;
+					case CompiledFunction.JUMPT:	if (isBoolean(registers[a], true)) frame.pc = bx; break;
+					case CompiledFunction.JUMPF:	if (isBoolean(registers[a], false)) frame.pc = bx; break;
+					case CompiledFunction.TEST:
+						if (!(registers[a] instanceof ValueBoolean))
+							throw new ExceptionSemantic("The test expression of " + operands[bx] + " must be boolean.");
+						if (((Value)registers[a]).booleanValue())
+							frame.pc++;
+						break;
+					case CompiledFunction.OPEN:
+						registers[a] = scope.getVariableCount();
+						registers[a + 1] = scope.getFunctionCount();
+						break;
+					case CompiledFunction.CLOSE:	scope.closeBlock((Integer)registers[a], (Integer)registers[a + 1]); break;
+					case CompiledFunction.REMOVE:	scope.removeVariable((String)operands[bx]); break;
+					case CompiledFunction.FIND: {
+						var site = (Invoke)operands[bx];
+						var callee = parser.findCallee(site.getNode(), site.isInExpression());
+						registers[a] = (callee != null) ? callee : parser.getReflectionTarget();
+						registers[a + 1] = parser.getCalleeReceiver();
+						break;
+					}
+					case CompiledFunction.CALL:
+					case CompiledFunction.CALLFOUND: {
+						var site = (Invoke)operands[bx];
+						var node = site.getNode();
+						var arguments = site.getArguments();
+						Object found;
+						ValueClass receiver;
+						if ((instruction & 0xFF) == CompiledFunction.CALL) {
+							found = parser.findCallee(node, site.isInExpression());
+							if (found == null)
+								found = parser.getReflectionTarget();
+							receiver = parser.getCalleeReceiver();
+						} else {
+							found = registers[a];
+							receiver = (ValueClass)registers[a + 1];
+						}
+						if (!(found instanceof FunctionDefinition)) {
+							registers[a] = parser.processReflectionCall(node, (Value)found, arguments);
+							break;
+						}
+
+						var callee = (FunctionDefinition)found;
+						var inlined = parser.findInlined(callee, site);
+						if (inlined != null) {
+							var value = inlined.execute(parser, arguments, site.isArgumentTypeChecked(), receiver);
+							registers[a] = parser.checkReturn(callee, value, site.isInExpression());
+							break;
+						}
+
+						var invocation = parser.prepareInvocation(callee, node, arguments);
+						var callerReceiver = parser.setReceiver(receiver);
+						try {
+							scope.enter(invocation);
+						} catch (ExceptionSemantic e) {
+							parser.setReceiver(callerReceiver);
+							throw e;
+						}
+						var compiled = parser.compiles(callee);
+						var bytecode = compiled ? parser.compileBytecode(callee) : null;
+						if (!compiled || bytecode != null) {
+							Value value;
+							try {
+								value = compiled ? bytecode.execute(parser, invocation) : parser.walk(callee);
+							} finally {
+								scope.leave(invocation);
+								parser.setReceiver(callerReceiver);
+							}
+							callee.releaseInvocation(invocation);
+							registers[a] = parser.checkReturn(callee, value, site.isInExpression());
+							break;
+						}
+
+						frame = push(parser.compileFunction(callee));
+						frame.definition = callee;
+						frame.invocation = invocation;
+						frame.site = site;
+						frame.resultRegister = a;
+						frame.callerReceiver = callerReceiver;
+						break;
+					}
+					case CompiledFunction.RETURN:
+					case CompiledFunction.END: {
+						var value = ((instruction & 0xFF) == CompiledFunction.RETURN) ? (Value)registers[a] : null;
+						if (frameCount == base + 1) {
+							pop();
+							return value;
+						}
+						var returning = frame;
+						pop();
+						frame = frames[frameCount - 1];
+						scope.leave(returning.invocation);
+						parser.setReceiver(returning.callerReceiver);
+						returning.definition.releaseInvocation(returning.invocation);
+						frame.registers[returning.resultRegister] = parser.checkReturn(returning.definition, value, returning.site.isInExpression());
+						clear(returning);
+						break;
+					}
+					default:
+						throw new ExceptionSemantic("Invalid compiled function instruction " + (instruction & 0xFF) + " at " + (frame.pc - 1) + ".");
+				}
+			}
+		} catch (RuntimeException | Error e) {
+			// Restore the scopes and receivers of the calls this loop made, as returning from them would.
+			while (frameCount > base + 1) {
+				var abandoned = frames[frameCount - 1];
+				pop();
+				scope.leave(abandoned.invocation);
+				parser.setReceiver(abandoned.callerReceiver);
+				clear(abandoned);
+			}
+			if (frameCount > base)
+				pop();
+			throw e;
+		}
+	}
+
+	// Push a frame to execute a given compiled function, reusing the frame last held in its place.
+	private Frame push(CompiledFunction function) {
+		if (frameCount == frames.length)
+			frames = Arrays.copyOf(frames, frameCount * 2);
+		var frame = frames[frameCount];
+		if (frame == null)
+			frame = frames[frameCount] = new Frame();
+		frameCount++;
+		if (frame.registers.length < function.registerCount)
+			frame.registers = new Object[function.registerCount];
+		frame.function = function;
+		frame.pc = 0;
+		return frame;
+	}
+
+	// Pop the frame on top of the stack, dropping the register values it holds.
+	private void pop() {
+		var frame = frames[--frameCount];
+		Arrays.fill(frame.registers, 0, frame.function.registerCount, null);
+		frame.function = null;
+	}
+
+	// Drop the references a popped frame holds to a call.
+	private static void clear(Frame frame) {
+		frame.definition = null;
+		frame.invocation = null;
+		frame.site = null;
+		frame.callerReceiver = null;
+	}
+
+	// True if a value is a given boolean.
+	private static boolean isBoolean(Object value, boolean b) {
+		return value != null && value.getClass() == ValueBoolean.class && ((Value)value).booleanValue() == b;
+	}
+}
@@ -5,7 +5,9 @@ import uk.ac.derby.ldi.CScharf.parser.ast.SimpleNode;
 import uk.ac.derby.ldi.CScharf.values.Modifier;
 import uk.ac.derby.ldi.CScharf.values.Value;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.io.Serializable;
 
@@ -19,6 +21,8 @@ public class ClassDefinition implements Comparable<Object>, Serializable {
 	private HashMap<String, ClassVariable> variables = new HashMap<String, ClassVariable>();
 	private HashMap<String, FunctionDefinition> functions = new HashMap<String, FunctionDefinition>();
 	private HashMap<String, ClassDefinition> classes = new HashMap<String, ClassDefinition>();
+	// Constructors, by the types of their parameters.
+	private HashMap<List<Class<?>>, FunctionDefinition> constructors = new HashMap<List<Class<?>>, FunctionDefinition>();
 	
 	private SimpleNode ASTClassBody = null;
 	
@@ -34,6 +38,7 @@ public class ClassDefinition implements Comparable<Object>, Serializable {
 		this.variables = value.getVariablesCopy();
 		this.functions = value.getFunctionsCopy();
 		this.classes = value.getClassesCopy();
+		this.constructors = new HashMap<List<Class<?>>, FunctionDefinition>(value.constructors);
 	}
 	
 	/** Get the name of this class. */
@@ -140,6 +145,19 @@ public class ClassDefinition implements Comparable<Object>, Serializable {
 		return functions.get(name);
 	}
 	
+	/** Add a constructor, replacing any with the same parameter types. */
+	void addConstructor(FunctionDefinition definition) {
+		constructors.put(definition.getParameterTypes(), definition);
+	}
+	
+	/** Find the constructor whose parameter types are the types of given argument values.  Return null if it doesn't exist. */
+	FunctionDefinition findConstructor(Value[] arguments) {
+		var types = new Class<?>[arguments.length];
+		for (int i = 0; i < arguments.length; i++)
+			types[i] = arguments[i].getClass();
+		return constructors.get(Arrays.asList(types));
+	}
+	
 	/** Add a nested class definition. */
 	void addClass(ClassDefinition definition) {
 		classes.put(definition.getName(), definition);
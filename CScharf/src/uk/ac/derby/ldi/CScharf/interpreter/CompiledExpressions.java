@@ -0,0 +1,679 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.util.ArrayList;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.SimpleNode;
+import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueBoolean;
+import uk.ac.derby.ldi.CScharf.values.ValueDouble;
+import uk.ac.derby.ldi.CScharf.values.ValueInteger;
+import uk.ac.derby.ldi.CScharf.values.ValueString;
+import uk.ac.derby.ldi.CScharf.vm.Code;
+import uk.ac.derby.ldi.CScharf.vm.VirtualMachine;
+
+/** Compiled expression nodes. */
+final class CompiledExpressions {
+
+	private CompiledExpressions() {}
+
+	/** Execute an AST node that has no compiled form, using the tree-walking interpreter. */
+	static final class Fallback extends CompiledNode {
+		private final SimpleNode node;
+
+		Fallback(SimpleNode node) {
+			this.node = node;
+		}
+
+		Value execute(Parser parser) {
+			return (Value)node.jjtAccept(parser, null);
+		}
+	}
+
+	/** Return a literal value. */
+	static final class Constant extends CompiledNode {
+		private final Value value;
+
+		Constant(Value value) {
+			this.value = value;
+		}
+
+		Value execute(Parser parser) {
+			return value;
+		}
+	}
+
+	/** Dereference a member of the receiver by name. */
+	static final class Member extends CompiledNode {
+		private final String name;
+
+		Member(String name) {
+			this.name = name;
+		}
+
+		Value execute(Parser parser) {
+			return parser.dereferenceMember(name);
+		}
+	}
+
+	/** Dereference a variable, parameter or class member by name. */
+	static final class Variable extends CompiledNode {
+		private final Display.Binding binding;
+
+		Variable(String name) {
+			binding = new Display.Binding(name);
+		}
+
+		Value execute(Parser parser) {
+			return parser.dereference(binding);
+		}
+
+		long executeLong(Parser parser) {
+			var scope = parser.getScope();
+			if (scope.bind(binding)) {
+				var invocation = scope.getInvocation(binding);
+				if (invocation.isLong(binding.getSlotNumber()))
+					return invocation.getLong(binding.getSlotNumber());
+			}
+			return expectLong(execute(parser));
+		}
+
+		double executeDouble(Parser parser) {
+			var scope = parser.getScope();
+			if (scope.bind(binding)) {
+				var invocation = scope.getInvocation(binding);
+				if (invocation.isDouble(binding.getSlotNumber()))
+					return invocation.getDouble(binding.getSlotNumber());
+			}
+			return expectDouble(execute(parser));
+		}
+
+		boolean executeBoolean(Parser parser) {
+			var scope = parser.getScope();
+			if (scope.bind(binding)) {
+				var invocation = scope.getInvocation(binding);
+				if (invocation.isBoolean(binding.getSlotNumber()))
+					return invocation.getBoolean(binding.getSlotNumber());
+			}
+			return expectBoolean(execute(parser));
+		}
+	}
+
+	/** Evaluate an operator expression compiled to virtual machine code. */
+	static final class VirtualMachineExpression extends CompiledNode {
+		private final Code code;
+
+		VirtualMachineExpression(Code code) {
+			this.code = code;
+		}
+
+		Value execute(Parser parser) {
+			return VirtualMachine.run(code, parser.getEnvironment());
+		}
+	}
+
+	/** Invoke a function, with compiled argument expressions. */
+	static final class Invoke extends CompiledNode {
+		private final SimpleNode node;
+		private final CompiledNode[] arguments;
+		private final boolean inExpression;
+		// The function last invoked here, and its inlined form.  Null if it couldn't be inlined.
+		private FunctionDefinition callee = null;
+		private InlinedFunction inlined = null;
+
+		Invoke(SimpleNode node, CompiledNode[] arguments, boolean inExpression) {
+			this.node = node;
+			this.arguments = arguments;
+			this.inExpression = inExpression;
+		}
+
+		Value execute(Parser parser) {
+			return parser.invoke(node, arguments, inExpression, this);
+		}
+
+		/** Get the call or invocation node. */
+		SimpleNode getNode() {
+			return node;
+		}
+
+		/** Get the compiled argument expressions. */
+		CompiledNode[] getArguments() {
+			return arguments;
+		}
+
+		/** True if the value is used in an expression. */
+		boolean isInExpression() {
+			return inExpression;
+		}
+
+		/** True if the type checker has proven the types of the arguments. */
+		boolean isArgumentTypeChecked() {
+			return ((SimpleNode)node.jjtGetChild(1)).typeChecked;
+		}
+
+		/** Return the inlined form of a function invoked here, or null if it can't be inlined.
+		 * The inlined form is kept for as long as the same function is invoked.
+		 */
+		InlinedFunction inline(FunctionDefinition function, Compiler compiler) {
+			if (function != callee) {
+				callee = function;
+				inlined = InlinedFunction.inline(function, compiler);
+			}
+			return inlined;
+		}
+	}
+
+	/** A loop-invariant expression, evaluated on its first use in each execution of its loop.
+	 * The type of its value is tested once, when it is evaluated, and an integer, double or
+	 * boolean is kept unboxed, so uses of it that expect one of these types don't test it again.
+	 */
+	static final class Invariant extends CompiledNode {
+		private static final byte OTHER = 0;
+		private static final byte INTEGER = 1;
+		private static final byte DOUBLE = 2;
+		private static final byte BOOLEAN = 3;
+
+		private final CompiledNode expression;
+		private Value value = null;
+		private byte kind = OTHER;
+		private long longValue;
+		private double doubleValue;
+
+		Invariant(CompiledNode expression) {
+			this.expression = expression;
+		}
+
+		// Evaluate the expression, and note the type of its value.
+		private void evaluate(Parser parser) {
+			value = expression.execute(parser);
+			if (value == null)
+				kind = OTHER;
+			else if (value.getClass() == ValueInteger.class) {
+				kind = INTEGER;
+				longValue = value.longValue();
+			} else if (value.getClass() == ValueDouble.class) {
+				kind = DOUBLE;
+				doubleValue = value.doubleValue();
+			} else if (value.getClass() == ValueBoolean.class) {
+				kind = BOOLEAN;
+				longValue = value.booleanValue() ? 1 : 0;
+			} else
+				kind = OTHER;
+		}
+
+		Value execute(Parser parser) {
+			if (value == null)
+				evaluate(parser);
+			return value;
+		}
+
+		long executeLong(Parser parser) {
+			if (value == null)
+				evaluate(parser);
+			if (kind != INTEGER)
+				throw new UnexpectedValue(value);
+			return longValue;
+		}
+
+		double executeDouble(Parser parser) {
+			if (value == null)
+				evaluate(parser);
+			if (kind != DOUBLE)
+				throw new UnexpectedValue(value);
+			return doubleValue;
+		}
+
+		boolean executeBoolean(Parser parser) {
+			if (value == null)
+				evaluate(parser);
+			if (kind != BOOLEAN)
+				throw new UnexpectedValue(value);
+			return longValue != 0;
+		}
+
+		/** Forget the value, when the loop starts again. */
+		void reset() {
+			value = null;
+		}
+	}
+
+	/** A parameter of an inlined function, read from its argument values. */
+	static final class Argument extends CompiledNode {
+		private final Value[] arguments;
+		private final int index;
+
+		Argument(Value[] arguments, int index) {
+			this.arguments = arguments;
+			this.index = index;
+		}
+
+		Value execute(Parser parser) {
+			return arguments[index];
+		}
+	}
+
+	/** Base of the binary operators. */
+	abstract static class Binary extends CompiledNode {
+		final CompiledNode left;
+		final CompiledNode right;
+
+		Binary(CompiledNode left, CompiledNode right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		Value execute(Parser parser) {
+			return apply(left.execute(parser), right.execute(parser));
+		}
+
+		/** Apply the operator to the values of the operands. */
+		abstract Value apply(Value leftValue, Value rightValue);
+	}
+
+	/** Base of the logical operators, which don't evaluate their right operand if their left
+	 * one decides the result.  A left operand that isn't a boolean is left to the Value methods,
+	 * which report it.
+	 */
+	abstract static class Logical extends Binary {
+		// Value of a left operand that decides the result.
+		private final boolean decisive;
+
+		Logical(CompiledNode left, CompiledNode right, boolean decisive) {
+			super(left, right);
+			this.decisive = decisive;
+		}
+
+		Value execute(Parser parser) {
+			var leftValue = left.execute(parser);
+			if (leftValue.getClass() == ValueBoolean.class && leftValue.booleanValue() == decisive)
+				return leftValue;
+			return apply(leftValue, right.execute(parser));
+		}
+
+		boolean executeBoolean(Parser parser) {
+			boolean leftValue;
+			try {
+				leftValue = left.executeBoolean(parser);
+			} catch (UnexpectedValue e) {
+				return expectBoolean(apply(e.getValue(), right.execute(parser)));
+			}
+			if (leftValue == decisive)
+				return decisive;
+			try {
+				return right.executeBoolean(parser);
+			} catch (UnexpectedValue e) {
+				return expectBoolean(apply(ValueBoolean.valueOf(leftValue), e.getValue()));
+			}
+		}
+	}
+
+	// OR
+	static final class Or extends Logical {
+		Or(CompiledNode left, CompiledNode right) { super(left, right, true); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.or(rightValue); }
+	}
+
+	// AND
+	static final class And extends Logical {
+		And(CompiledNode left, CompiledNode right) { super(left, right, false); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.and(rightValue); }
+	}
+
+	/** Base of the arithmetic and comparison operators.
+	 *
+	 * These specialise themselves to the operand types seen on their first execution.  While
+	 * both operands are integers, or both doubles, the operands are executed for unboxed values
+	 * and the operator is applied to them directly, bypassing the virtual Value methods.  If a 
+	 * guard finds any other type of operand, the node reverts to the generic Value methods for good.
+	 */
+	abstract static class Specialising extends Binary {
+		static final int UNINITIALISED = 0;
+		static final int INTEGERS = 1;
+		static final int DOUBLES = 2;
+		static final int GENERIC = 3;
+
+		int state = UNINITIALISED;
+
+		Specialising(CompiledNode left, CompiledNode right) {
+			super(left, right);
+		}
+
+		Value execute(Parser parser) {
+			switch (state) {
+				case INTEGERS: {
+					long leftValue;
+					try {
+						leftValue = left.executeLong(parser);
+					} catch (UnexpectedValue e) {
+						return generalise(e.getValue(), right.execute(parser));
+					}
+					try {
+						return applyIntegers(leftValue, right.executeLong(parser));
+					} catch (UnexpectedValue e) {
+						return generalise(ValueInteger.valueOf(leftValue), e.getValue());
+					}
+				}
+				case DOUBLES: {
+					double leftValue;
+					try {
+						leftValue = left.executeDouble(parser);
+					} catch (UnexpectedValue e) {
+						return generalise(e.getValue(), right.execute(parser));
+					}
+					try {
+						return applyDoubles(leftValue, right.executeDouble(parser));
+					} catch (UnexpectedValue e) {
+						return generalise(new ValueDouble(leftValue), e.getValue());
+					}
+				}
+				case GENERIC:
+					return apply(left.execute(parser), right.execute(parser));
+				default:
+					var leftValue = left.execute(parser);
+					var rightValue = right.execute(parser);
+					state = specialise(leftValue, rightValue);
+					return apply(leftValue, rightValue);
+			}
+		}
+
+		/** Start in a state recorded by an earlier run, instead of choosing one on the first execution.
+		 * Only the numeric and generic states can be presumed, as their guards check every execution.
+		 */
+		void presume(int recordedState) {
+			if (recordedState == INTEGERS || recordedState == DOUBLES || recordedState == GENERIC)
+				state = recordedState;
+		}
+
+		/** Choose a state given the first operands seen. */
+		int specialise(Value leftValue, Value rightValue) {
+			if (leftValue.getClass() == ValueInteger.class && rightValue.getClass() == ValueInteger.class)
+				return INTEGERS;
+			if (leftValue.getClass() == ValueDouble.class && rightValue.getClass() == ValueDouble.class)
+				return DOUBLES;
+			return GENERIC;
+		}
+
+		/** A guard has failed, so stop specialising and apply the operator generically. */
+		Value generalise(Value leftValue, Value rightValue) {
+			state = GENERIC;
+			return apply(leftValue, rightValue);
+		}
+
+		/** Apply the operator to integer operands, as ValueInteger does. */
+		abstract Value applyIntegers(long leftValue, long rightValue);
+
+		/** Apply the operator to double operands, as ValueDouble does.  Note that, other than
+		 * addition, ValueDouble narrows its right operand to a float, and that its comparisons
+		 * treat NaN as less than anything.
+		 */
+		abstract Value applyDoubles(double leftValue, double rightValue);
+	}
+
+	/** Base of the arithmetic operators, which can produce an unboxed result. */
+	abstract static class Arithmetic extends Specialising {
+		Arithmetic(CompiledNode left, CompiledNode right) { super(left, right); }
+
+		Value applyIntegers(long leftValue, long rightValue) { return ValueInteger.valueOf(applyLongs(leftValue, rightValue)); }
+		Value applyDoubles(double leftValue, double rightValue) { return new ValueDouble(applyUnboxedDoubles(leftValue, rightValue)); }
+
+		/** Apply the operator to unboxed integers. */
+		abstract long applyLongs(long leftValue, long rightValue);
+
+		/** Apply the operator to unboxed doubles. */
+		abstract double applyUnboxedDoubles(double leftValue, double rightValue);
+
+		long executeLong(Parser parser) {
+			if (state != INTEGERS)
+				return super.executeLong(parser);
+			long leftValue;
+			try {
+				leftValue = left.executeLong(parser);
+			} catch (UnexpectedValue e) {
+				return expectLong(generalise(e.getValue(), right.execute(parser)));
+			}
+			try {
+				return applyLongs(leftValue, right.executeLong(parser));
+			} catch (UnexpectedValue e) {
+				return expectLong(generalise(ValueInteger.valueOf(leftValue), e.getValue()));
+			}
+		}
+
+		double executeDouble(Parser parser) {
+			if (state != DOUBLES)
+				return super.executeDouble(parser);
+			double leftValue;
+			try {
+				leftValue = left.executeDouble(parser);
+			} catch (UnexpectedValue e) {
+				return expectDouble(generalise(e.getValue(), right.execute(parser)));
+			}
+			try {
+				return applyUnboxedDoubles(leftValue, right.executeDouble(parser));
+			} catch (UnexpectedValue e) {
+				return expectDouble(generalise(new ValueDouble(leftValue), e.getValue()));
+			}
+		}
+	}
+
+	/** Base of the comparison operators, which can produce an unboxed result. */
+	abstract static class Comparison extends Specialising {
+		Comparison(CompiledNode left, CompiledNode right) { super(left, right); }
+
+		Value applyIntegers(long leftValue, long rightValue) { return ValueBoolean.valueOf(compareLongs(leftValue, rightValue)); }
+		Value applyDoubles(double leftValue, double rightValue) { return ValueBoolean.valueOf(compareDoubles(leftValue, rightValue)); }
+
+		/** Compare unboxed integers. */
+		abstract boolean compareLongs(long leftValue, long rightValue);
+
+		/** Compare unboxed doubles. */
+		abstract boolean compareDoubles(double leftValue, double rightValue);
+
+		boolean executeBoolean(Parser parser) {
+			switch (state) {
+				case INTEGERS: {
+					long leftValue;
+					try {
+						leftValue = left.executeLong(parser);
+					} catch (UnexpectedValue e) {
+						return expectBoolean(generalise(e.getValue(), right.execute(parser)));
+					}
+					try {
+						return compareLongs(leftValue, right.executeLong(parser));
+					} catch (UnexpectedValue e) {
+						return expectBoolean(generalise(ValueInteger.valueOf(leftValue), e.getValue()));
+					}
+				}
+				case DOUBLES: {
+					double leftValue;
+					try {
+						leftValue = left.executeDouble(parser);
+					} catch (UnexpectedValue e) {
+						return expectBoolean(generalise(e.getValue(), right.execute(parser)));
+					}
+					try {
+						return compareDoubles(leftValue, right.executeDouble(parser));
+					} catch (UnexpectedValue e) {
+						return expectBoolean(generalise(new ValueDouble(leftValue), e.getValue()));
+					}
+				}
+				default:
+					return super.executeBoolean(parser);
+			}
+		}
+	}
+
+	// ==
+	static final class CompEqual extends Comparison {
+		CompEqual(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.eq(rightValue); }
+		boolean compareLongs(long leftValue, long rightValue) { return leftValue == rightValue; }
+		boolean compareDoubles(double leftValue, double rightValue) { return leftValue == (float)rightValue; }
+	}
+
+	// !=
+	static final class CompNequal extends Comparison {
+		CompNequal(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.neq(rightValue); }
+		boolean compareLongs(long leftValue, long rightValue) { return leftValue != rightValue; }
+		boolean compareDoubles(double leftValue, double rightValue) { return leftValue != (float)rightValue; }
+	}
+
+	// >=
+	static final class CompGTE extends Comparison {
+		CompGTE(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.gte(rightValue); }
+		boolean compareLongs(long leftValue, long rightValue) { return leftValue >= rightValue; }
+		boolean compareDoubles(double leftValue, double rightValue) { return leftValue >= (float)rightValue; }
+	}
+
+	// <=
+	static final class CompLTE extends Comparison {
+		CompLTE(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.lte(rightValue); }
+		boolean compareLongs(long leftValue, long rightValue) { return leftValue <= rightValue; }
+		boolean compareDoubles(double leftValue, double rightValue) { return !(leftValue > (float)rightValue); }
+	}
+
+	// >
+	static final class CompGT extends Comparison {
+		CompGT(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.gt(rightValue); }
+		boolean compareLongs(long leftValue, long rightValue) { return leftValue > rightValue; }
+		boolean compareDoubles(double leftValue, double rightValue) { return leftValue > (float)rightValue; }
+	}
+
+	// <
+	static final class CompLT extends Comparison {
+		CompLT(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.lt(rightValue); }
+		boolean compareLongs(long leftValue, long rightValue) { return leftValue < rightValue; }
+		boolean compareDoubles(double leftValue, double rightValue) { return !(leftValue == (float)rightValue || leftValue > (float)rightValue); }
+	}
+
+	/** +.  As well as the numeric specialisations, an addition whose left operand is a string
+	 * specialises to concatenation.  A chain of concatenations, such as a + b + c + d, is
+	 * then built in a single StringBuilder by the outermost addition.
+	 */
+	static final class Add extends Arithmetic {
+		static final int CONCATENATION = 4;
+
+		// The additions of a concatenation chain, innermost first.  Null if not concatenating.
+		private Add[] chain = null;
+		// Leftmost operand of a concatenation chain.
+		private CompiledNode first = null;
+
+		Add(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.add(rightValue); }
+		long applyLongs(long leftValue, long rightValue) { return leftValue + rightValue; }
+		double applyUnboxedDoubles(double leftValue, double rightValue) { return leftValue + rightValue; }
+
+		int specialise(Value leftValue, Value rightValue) {
+			if (leftValue.getClass() != ValueString.class || !(left instanceof Add))
+				return super.specialise(leftValue, rightValue);
+			var additions = new ArrayList<Add>();
+			CompiledNode operand = this;
+			while (operand instanceof Add) {
+				additions.add(0, (Add)operand);
+				operand = ((Add)operand).left;
+			}
+			chain = additions.toArray(new Add[0]);
+			first = operand;
+			return CONCATENATION;
+		}
+
+		Value execute(Parser parser) {
+			if (state != CONCATENATION)
+				return super.execute(parser);
+
+			var value = first.execute(parser);
+			if (value.getClass() != ValueString.class) {
+				// Not a concatenation this time, so add each operand in turn as usual.
+				state = GENERIC;
+				for (var addition : chain)
+					value = value.add(addition.right.execute(parser));
+				return value;
+			}
+
+			var builder = new StringBuilder(value.stringValue());
+			for (var addition : chain)
+				builder.append(addition.right.execute(parser).stringValue());
+			return new ValueString(builder.toString());
+		}
+	}
+
+	// -
+	static final class Subtract extends Arithmetic {
+		Subtract(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.subtract(rightValue); }
+		long applyLongs(long leftValue, long rightValue) { return leftValue - rightValue; }
+		double applyUnboxedDoubles(double leftValue, double rightValue) { return leftValue - (float)rightValue; }
+	}
+
+	// *
+	static final class Times extends Arithmetic {
+		Times(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.mult(rightValue); }
+		long applyLongs(long leftValue, long rightValue) { return leftValue * rightValue; }
+		double applyUnboxedDoubles(double leftValue, double rightValue) { return leftValue * (float)rightValue; }
+	}
+
+	// /
+	static final class Divide extends Arithmetic {
+		Divide(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.div(rightValue); }
+		long applyLongs(long leftValue, long rightValue) { return leftValue / rightValue; }
+		double applyUnboxedDoubles(double leftValue, double rightValue) { return leftValue / (float)rightValue; }
+	}
+
+	// %
+	static final class Modulo extends Arithmetic {
+		Modulo(CompiledNode left, CompiledNode right) { super(left, right); }
+		Value apply(Value leftValue, Value rightValue) { return leftValue.mod(rightValue); }
+		long applyLongs(long leftValue, long rightValue) { return leftValue % rightValue; }
+		double applyUnboxedDoubles(double leftValue, double rightValue) { return leftValue % (float)rightValue; }
+	}
+
+	// NOT
+	static final class UnaryNot extends CompiledNode {
+		private final CompiledNode operand;
+		UnaryNot(CompiledNode operand) { this.operand = operand; }
+		Value execute(Parser parser) { return operand.execute(parser).not(); }
+
+		boolean executeBoolean(Parser parser) {
+			try {
+				return !operand.executeBoolean(parser);
+			} catch (UnexpectedValue e) {
+				return expectBoolean(e.getValue().not());
+			}
+		}
+	}
+
+	// + (unary)
+	static final class UnaryPlus extends CompiledNode {
+		private final CompiledNode operand;
+		UnaryPlus(CompiledNode operand) { this.operand = operand; }
+		Value execute(Parser parser) { return operand.execute(parser).unary_plus(); }
+	}
+
+	// - (unary)
+	static final class UnaryMinus extends CompiledNode {
+		private final CompiledNode operand;
+		UnaryMinus(CompiledNode operand) { this.operand = operand; }
+		Value execute(Parser parser) { return operand.execute(parser).unary_minus(); }
+
+		long executeLong(Parser parser) {
+			try {
+				return -operand.executeLong(parser);
+			} catch (UnexpectedValue e) {
+				return expectLong(e.getValue().unary_minus());
+			}
+		}
+
+		double executeDouble(Parser parser) {
+			try {
+				return -operand.executeDouble(parser);
+			} catch (UnexpectedValue e) {
+				return expectDouble(e.getValue().unary_minus());
+			}
+		}
+	}
+}
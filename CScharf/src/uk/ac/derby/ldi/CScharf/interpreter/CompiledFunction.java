@@ -0,0 +1,81 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import uk.ac.derby.ldi.CScharf.values.Value;
+
+/** The compiled form of a function body and its return expression: instructions run by the
+ * CallStack, which makes the function's calls to other compiled functions without nesting
+ * on the Java stack.
+ *
+ * Parts of the function that invoke nothing are lowered to compiled execution trees, which
+ * instructions execute.  The statements and expressions that make calls are split into
+ * instructions around them, and their values are held in the registers of the call's frame.
+ *
+ * Every instruction is encoded in a single int:
+ *
+ *   bits  0-7  - opcode
+ *   bits  8-15 - A, a register
+ *   bits 16-31 - Bx, the index of an operand in the operand pool, of a register, or of the
+ *                instruction to jump to
+ */
+final class CompiledFunction extends CompiledNode {
+
+	static final int EXEC = 0;			// execute node operand(Bx)
+	static final int EVAL = 1;			// R(A) = value of node operand(Bx)
+	static final int MOVE = 2;			// R(A) = R(Bx)
+	static final int JUMP = 3;			// jump to Bx
+	static final int JUMPT = 4;			// if R(A) is true, jump to Bx
+	static final int JUMPF = 5;			// if R(A) is false, jump to Bx
+	static final int TEST = 6;			// if R(A) is true, skip the next instruction; if it isn't boolean, the
+										// test expression of the statement operand(Bx) is reported
+	static final int OPEN = 7;			// R(A), R(A+1) = number of variables and functions defined in the current level
+	static final int CLOSE = 8;			// undefine the variables and functions defined since OPEN A
+	static final int REMOVE = 9;		// remove the variable named operand(Bx)
+	static final int FIND = 10;			// R(A), R(A+1) = function and receiver called by the call site operand(Bx)
+	static final int CALL = 11;			// R(A) = value returned by the call site operand(Bx)
+	static final int CALLFOUND = 12;	// R(A) = value returned by the call site operand(Bx), calling the function
+										// and receiver in R(A), R(A+1)
+	static final int RETURN = 13;		// return R(A)
+	static final int END = 14;			// return nothing
+
+	/** Maximum number of registers addressable by an instruction. */
+	static final int MAXIMUM_REGISTERS = 256;
+
+	/** Maximum size of the operand pool. */
+	static final int MAXIMUM_POOL_SIZE = 65536;
+
+	/** Maximum number of instructions, so that any of them can be jumped to. */
+	static final int MAXIMUM_CODE_SIZE = 65536;
+
+	final int[] instructions;
+	final Object[] operands;
+	final int registerCount;
+
+	CompiledFunction(int[] instructions, Object[] operands, int registerCount) {
+		this.instructions = instructions;
+		this.operands = operands;
+		this.registerCount = registerCount;
+	}
+
+	/** Run the function on the parser's call stack, and return its value. */
+	Value execute(Parser parser) {
+		return parser.getCallStack().run(this);
+	}
+
+	/** Encode an instruction with a register and an operand. */
+	static int encode(int opcode, int a, int bx) {
+		return opcode | (a << 8) | (bx << 16);
+	}
+
+	/** The value held by a register of the frame executing a node. */
+	static final class Register extends CompiledNode {
+		private final int index;
+
+		Register(int index) {
+			this.index = index;
+		}
+
+		Value execute(Parser parser) {
+			return parser.getCallStack().getRegister(index);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueBoolean;
+import uk.ac.derby.ldi.CScharf.values.ValueDouble;
+import uk.ac.derby.ldi.CScharf.values.ValueInteger;
+
+/** A node of a compiled execution tree.
+ *
+ * Compiled nodes are produced once from the AST by the Compiler.  They hold direct
+ * references to their children and to any names, types and literal values resolved
+ * at compile-time, so executing them involves no visitor dispatch and no inspection
+ * of the AST.
+ *
+ * Expressions may also be executed for an unboxed integer, double or boolean value.  
+ * Nodes that can produce one without creating a Value override these methods.
+ */
+abstract class CompiledNode {
+
+	/** Execute this node using the run-time state of the given parser.
+	 * Expressions return their value; statements return null.
+	 */
+	abstract Value execute(Parser parser);
+	
+	/** Execute an expression expected to be an integer.  Throw UnexpectedValue if it isn't. */
+	long executeLong(Parser parser) {
+		return expectLong(execute(parser));
+	}
+	
+	/** Execute an expression expected to be a double.  Throw UnexpectedValue if it isn't. */
+	double executeDouble(Parser parser) {
+		return expectDouble(execute(parser));
+	}
+	
+	/** Execute an expression expected to be a boolean.  Throw UnexpectedValue if it isn't. */
+	boolean executeBoolean(Parser parser) {
+		return expectBoolean(execute(parser));
+	}
+	
+	/** Return an integer value unboxed.  Throw UnexpectedValue if it isn't an integer. */
+	static long expectLong(Value value) {
+		if (value == null || value.getClass() != ValueInteger.class)
+			throw new UnexpectedValue(value);
+		return value.longValue();
+	}
+	
+	/** Return a double value unboxed.  Throw UnexpectedValue if it isn't a double. */
+	static double expectDouble(Value value) {
+		if (value == null || value.getClass() != ValueDouble.class)
+			throw new UnexpectedValue(value);
+		return value.doubleValue();
+	}
+	
+	/** Return a boolean value unboxed.  Throw UnexpectedValue if it isn't a boolean. */
+	static boolean expectBoolean(Value value) {
+		if (value == null || value.getClass() != ValueBoolean.class)
+			throw new UnexpectedValue(value);
+		return value.booleanValue();
+	}
+}
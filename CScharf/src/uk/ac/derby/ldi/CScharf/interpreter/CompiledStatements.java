@@ -0,0 +1,366 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledExpressions.Invariant;
+import uk.ac.derby.ldi.CScharf.parser.ast.ASTDereference;
+import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueBoolean;
+import uk.ac.derby.ldi.CScharf.values.ValueDouble;
+import uk.ac.derby.ldi.CScharf.values.ValueInteger;
+
+/** Compiled statement nodes. */
+final class CompiledStatements {
+
+	private CompiledStatements() {}
+
+	// Evaluate the test expression of a given statement, which must be boolean.
+	private static boolean test(Parser parser, CompiledNode test, String statement) {
+		try {
+			return test.executeBoolean(parser);
+		} catch (UnexpectedValue e) {
+			if (!(e.getValue() instanceof ValueBoolean))
+				throw new ExceptionSemantic("The test expression of " + statement + " must be boolean.");
+			return e.getValue().booleanValue();
+		}
+	}
+
+	/** Execute a sequence of statements. */
+	static final class Sequence extends CompiledNode {
+		private final CompiledNode[] statements;
+
+		Sequence(CompiledNode[] statements) {
+			this.statements = statements;
+		}
+
+		Value execute(Parser parser) {
+			for (var statement : statements)
+				statement.execute(parser);
+			return null;
+		}
+	}
+
+	/** Execute a block, removing any variables and functions it defines on exit. */
+	static final class Block extends CompiledNode {
+		private final CompiledNode body;
+
+		Block(CompiledNode body) {
+			this.body = body;
+		}
+
+		Value execute(Parser parser) {
+			var scope = parser.getScope();
+			var variableCount = scope.getVariableCount();
+			var functionCount = scope.getFunctionCount();
+
+			body.execute(parser);
+
+			scope.closeBlock(variableCount, functionCount);
+			return null;
+		}
+	}
+
+	/** Execute an IF, with an optional ELSE. */
+	static final class If extends CompiledNode {
+		private final CompiledNode test;
+		private final CompiledNode ifTrue;
+		private final CompiledNode ifFalse;
+
+		If(CompiledNode test, CompiledNode ifTrue, CompiledNode ifFalse) {
+			this.test = test;
+			this.ifTrue = ifTrue;
+			this.ifFalse = ifFalse;
+		}
+
+		Value execute(Parser parser) {
+			if (test(parser, test, "an if statement"))
+				ifTrue.execute(parser);
+			else if (ifFalse != null)
+				ifFalse.execute(parser);
+			return null;
+		}
+	}
+
+	/** Execute a FOR loop.  A counted loop keeps its counter in a native long. */
+	static final class For extends CompiledNode {
+		private final CompiledNode initialisation;
+		private final CompiledNode test;
+		private final CompiledNode increment;
+		private final CompiledNode body;
+		// Name of a variable declared by the initialisation, removed once the loop ends.  Null if none.
+		private final String loopVariable;
+		// Shape and bound of a counted loop.  Null if this isn't one.
+		private final CountedLoop countedLoop;
+		private final CompiledNode bound;
+		private final Invariant[] invariants;
+
+		For(CompiledNode initialisation, CompiledNode test, CompiledNode increment, CompiledNode body, String loopVariable, 
+				CountedLoop countedLoop, CompiledNode bound, Invariant[] invariants) {
+			this.initialisation = initialisation;
+			this.test = test;
+			this.increment = increment;
+			this.body = body;
+			this.loopVariable = loopVariable;
+			this.countedLoop = countedLoop;
+			this.bound = bound;
+			this.invariants = invariants;
+		}
+
+		Value execute(Parser parser) {
+			initialisation.execute(parser);
+			resume(parser);
+
+			if (loopVariable != null)
+				parser.getScope().removeVariable(loopVariable);
+			return null;
+		}
+
+		/** Continue the loop from its next test.  Used to take over a loop whose earlier 
+		 * iterations were walked.
+		 */
+		void resume(Parser parser) {
+			for (var invariant : invariants)
+				invariant.reset();
+			if (countedLoop != null)
+				iterateCounted(parser);
+			else
+				iterate(parser);
+		}
+
+		// Execute the iterations of the loop.
+		private void iterate(Parser parser) {
+			while (true) {
+				if (!test(parser, test, "a for loop"))
+					break;
+				body.execute(parser);
+				increment.execute(parser);
+			}
+		}
+
+		// Execute the iterations of a counted loop.  If the counter or bound turn out not to be 
+		// integers, continue as an ordinary loop.
+		private void iterateCounted(Parser parser) {
+			var scope = parser.getScope();
+			var binding = countedLoop.getBinding();
+			long limit;
+			try {
+				limit = bound.executeLong(parser);
+			} catch (UnexpectedValue e) {
+				iterate(parser);
+				return;
+			}
+			if (!scope.bind(binding) || !scope.getInvocation(binding).isLong(binding.getSlotNumber())) {
+				iterate(parser);
+				return;
+			}
+			var invocation = scope.getInvocation(binding);
+			var slotNumber = binding.getSlotNumber();
+			var synchronised = countedLoop.isSynchronised();
+			var step = countedLoop.getStep();
+
+			var counter = invocation.getLong(slotNumber);
+			while (countedLoop.test(counter, limit)) {
+				if (synchronised)
+					invocation.setLong(slotNumber, counter);
+				body.execute(parser);
+				if (synchronised) {
+					if (!invocation.isLong(slotNumber)) {
+						increment.execute(parser);
+						iterate(parser);
+						return;
+					}
+					counter = invocation.getLong(slotNumber);
+				}
+				counter += step;
+			}
+			invocation.setLong(slotNumber, counter);
+		}
+	}
+
+	/** Execute a WHILE loop. */
+	static final class While extends CompiledNode {
+		private final CompiledNode test;
+		private final CompiledNode body;
+		private final Invariant[] invariants;
+
+		While(CompiledNode test, CompiledNode body, Invariant[] invariants) {
+			this.test = test;
+			this.body = body;
+			this.invariants = invariants;
+		}
+
+		Value execute(Parser parser) {
+			for (var invariant : invariants)
+				invariant.reset();
+			while (true) {
+				if (!test(parser, test, "a while loop"))
+					break;
+				body.execute(parser);
+			}
+			return null;
+		}
+	}
+
+	/** Execute the write statement. */
+	static final class Print extends CompiledNode {
+		private final CompiledNode expression;
+
+		Print(CompiledNode expression) {
+			this.expression = expression;
+		}
+
+		Value execute(Parser parser) {
+			System.out.println(expression.execute(parser));
+			return null;
+		}
+	}
+
+	/** Assign a value to an existing variable, member, or element (e.g. a = 1, obj.a = 1, arr[0] = 1). 
+	 * A plain variable of the same type as the value is assigned directly through its binding.
+	 */
+	static final class Assignment extends CompiledNode {
+		private final Display.Binding binding;
+		private final ASTDereference target;
+		private final CompiledNode expression;
+
+		Assignment(ASTDereference target, CompiledNode expression) {
+			this.binding = new Display.Binding(target.tokenValue);
+			this.target = target;
+			this.expression = expression;
+		}
+
+		Value execute(Parser parser) {
+			var scope = parser.getScope();
+			Value value;
+			if (target.jjtGetNumChildren() == 0 && scope.bind(binding)) {
+				var slotNumber = binding.getSlotNumber();
+				var invocation = scope.getInvocation(binding);
+				try {
+					if (invocation.isLong(slotNumber)) {
+						var longValue = expression.executeLong(parser);
+						scope.getInvocation(binding).setLong(slotNumber, longValue);
+						return null;
+					}
+					if (invocation.isDouble(slotNumber)) {
+						var doubleValue = expression.executeDouble(parser);
+						scope.getInvocation(binding).setDouble(slotNumber, doubleValue);
+						return null;
+					}
+					if (invocation.isBoolean(slotNumber)) {
+						var booleanValue = expression.executeBoolean(parser);
+						scope.getInvocation(binding).setBoolean(slotNumber, booleanValue);
+						return null;
+					}
+					value = expression.execute(parser);
+				} catch (UnexpectedValue e) {
+					value = e.getValue();
+				}
+			} else
+				value = expression.execute(parser);
+			
+			if (value != null && target.jjtGetNumChildren() == 0 && scope.bind(binding)) {
+				var existingValue = target.typeChecked ? null : scope.getValue(binding);
+				if (target.typeChecked || (existingValue != null && existingValue.getClass() == value.getClass())) {
+					scope.setValue(binding, value);
+					return null;
+				}
+			}
+			parser.untypedAssignment(binding.getName(), value, target, null, false, false, false);
+			return null;
+		}
+	}
+
+	/** Increment or decrement an existing variable, member, or element (e.g. ++a, a--).
+	 * A plain integer variable is updated directly through its binding.
+	 */
+	static final class IncrementDecrement extends CompiledNode {
+		private final Display.Binding binding;
+		private final ASTDereference target;
+		private final boolean increment;
+		private final boolean prefix;
+
+		IncrementDecrement(ASTDereference target, boolean increment, boolean prefix) {
+			this.binding = new Display.Binding(target.tokenValue);
+			this.target = target;
+			this.increment = increment;
+			this.prefix = prefix;
+		}
+
+		Value execute(Parser parser) {
+			var scope = parser.getScope();
+			if (target.jjtGetNumChildren() == 0 && scope.bind(binding)) {
+				var invocation = scope.getInvocation(binding);
+				var slotNumber = binding.getSlotNumber();
+				if (invocation.isLong(slotNumber)) {
+					invocation.setLong(slotNumber, invocation.getLong(slotNumber) + (increment ? 1 : -1));
+					return null;
+				}
+			}
+			parser.untypedAssignment(binding.getName(), null, target, null, true, increment, prefix);
+			return null;
+		}
+	}
+
+	/** Define a variable and assign its initial value (e.g. int a = 1, const int b = 2). */
+	static final class TypedAssignment extends CompiledNode {
+		private final Display.Binding binding;
+		private final Class<?> type;
+		private final String modifier;
+		private final CompiledNode expression;
+		// True if the type checker has proven the value has the declared type.
+		private final boolean typeChecked;
+
+		TypedAssignment(String name, Class<?> type, String modifier, CompiledNode expression, boolean typeChecked) {
+			this.binding = new Display.Binding(name);
+			this.type = type;
+			this.modifier = modifier;
+			this.expression = expression;
+			this.typeChecked = typeChecked;
+		}
+
+		Value execute(Parser parser) {
+			parser.defineAssignedVariable(binding);
+			var scope = parser.getScope();
+			Value value;
+			try {
+				if (modifier == null && type == ValueInteger.class) {
+					var longValue = expression.executeLong(parser);
+					scope.getInvocation(binding).setLong(binding.getSlotNumber(), longValue);
+					return null;
+				}
+				if (modifier == null && type == ValueDouble.class) {
+					var doubleValue = expression.executeDouble(parser);
+					scope.getInvocation(binding).setDouble(binding.getSlotNumber(), doubleValue);
+					return null;
+				}
+				if (modifier == null && type == ValueBoolean.class) {
+					var booleanValue = expression.executeBoolean(parser);
+					scope.getInvocation(binding).setBoolean(binding.getSlotNumber(), booleanValue);
+					return null;
+				}
+				value = expression.execute(parser);
+			} catch (UnexpectedValue e) {
+				value = e.getValue();
+			}
+			parser.assignTyped(binding, value, type, modifier, typeChecked);
+			return null;
+		}
+	}
+
+	/** Define a variable without a declared type and assign its initial value (e.g. the member
+	 * p.a of an anonymous object replaced by its members).
+	 */
+	static final class TypelessAssignment extends CompiledNode {
+		private final Display.Binding binding;
+		private final CompiledNode expression;
+
+		TypelessAssignment(String name, CompiledNode expression) {
+			this.binding = new Display.Binding(name);
+			this.expression = expression;
+		}
+
+		Value execute(Parser parser) {
+			parser.defineAssignedVariable(binding);
+			parser.getScope().setValue(binding, expression.execute(parser));
+			return null;
+		}
+	}
+}
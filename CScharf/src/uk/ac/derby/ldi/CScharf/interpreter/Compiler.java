@@ -0,0 +1,488 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.util.Map;
+
+import uk.ac.derby.ldi.CScharf.CScharfUtil;
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledExpressions.*;
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledStatements.*;
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+import uk.ac.derby.ldi.CScharf.values.*;
+import uk.ac.derby.ldi.CScharf.vm.ExpressionCompiler;
+
+/** Lowers the AST into compiled execution trees of CompiledNodeS.
+ *
+ * Each visit returns the CompiledNode for the visited node.  Constructs with no compiled
+ * form are lowered to a Fallback, which executes them with the tree-walking interpreter.
+ */
+class Compiler implements CScharfVisitor {
+	
+	// If true, operator expressions are compiled to virtual machine code where possible.
+	private final boolean useVirtualMachine;
+	
+	// Invariant expressions of the innermost loop being lowered.  Null if none.
+	private LoopInvariants loopInvariants = null;
+	
+	// Function being inlined, and the argument values its parameters are read from.  Null if none.
+	private FunctionDefinition inlinedFunction = null;
+	private Value[] inlinedArguments = null;
+	
+	// Profile that operators start from and are recorded in.  Null if none.
+	private Profile profile = null;
+	
+	// Compiled nodes lowered in place of given nodes: the registers holding values already computed
+	// by the instructions of a function being compiled.  Null if none.
+	private Map<Node, CompiledNode> substitutions = null;
+	
+	Compiler(boolean useVirtualMachine) {
+		this.useVirtualMachine = useVirtualMachine;
+	}
+	
+	/** Set the profile that compiled operators start from, and are recorded in. */
+	void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+
+	// Lower the ith child of a given node.
+	private CompiledNode lowerChild(SimpleNode node, int childIndex) {
+		return lower((SimpleNode)node.jjtGetChild(childIndex));
+	}
+
+	// Lower a given node.  Loop-invariant expressions are hoisted, and operator expressions go to 
+	// the virtual machine if it is in use and can evaluate the whole expression.  Operators start
+	// in the state recorded by the profile, if there is one.
+	private CompiledNode lower(SimpleNode node) {
+		if (substitutions != null && substitutions.containsKey(node))
+			return substitutions.get(node);
+		if (loopInvariants != null && loopInvariants.isHoistable(node)) {
+			var invariants = loopInvariants;
+			loopInvariants = null;
+			try {
+				return invariants.hoist(node, lower(node));
+			} finally {
+				loopInvariants = invariants;
+			}
+		}
+		if (useVirtualMachine && inlinedFunction == null) {
+			var code = ExpressionCompiler.compile(node);
+			if (code != null)
+				return new VirtualMachineExpression(code);
+		}
+		var compiled = (CompiledNode)node.jjtAccept(this, null);
+		if (profile != null && compiled instanceof Specialising)
+			profile.specialise(node, (Specialising)compiled);
+		return compiled;
+	}
+
+	// Lower all the children of a given node into a sequence.
+	private CompiledNode lowerChildren(SimpleNode node) {
+		var statements = new CompiledNode[node.jjtGetNumChildren()];
+		for (int i = 0; i < statements.length; i++)
+			statements[i] = lowerChild(node, i);
+		return (statements.length == 1) ? statements[0] : new Sequence(statements);
+	}
+
+	// Lower the argument list (child 1) of a call or invocation node.
+	private CompiledNode[] lowerArguments(SimpleNode node) {
+		var argListNode = (SimpleNode)node.jjtGetChild(1);
+		var arguments = new CompiledNode[argListNode.jjtGetNumChildren()];
+		for (int i = 0; i < arguments.length; i++)
+			arguments[i] = lowerChild(argListNode, i);
+		return arguments;
+	}
+
+	// Get the token value of the ith child of a given node.
+	private static String getTokenOfChild(SimpleNode node, int childIndex) {
+		return ((SimpleNode)node.jjtGetChild(childIndex)).tokenValue;
+	}
+
+	/** Return the compiled form of a program, function body or return expression, lowering it
+	 * on first use.  The compiled form is kept in the node's optimised slot, so these nodes
+	 * are only lowered once however often they are executed.
+	 */
+	CompiledNode compile(SimpleNode node) {
+		if (node.optimised == null)
+			node.optimised = lower(node);
+		return (CompiledNode)node.optimised;
+	}
+
+	/** Return the compiled form of a function, lowering it on first use.  It is kept in the
+	 * optimised slot of the function body.
+	 */
+	CompiledFunction compileFunction(FunctionDefinition function) {
+		var body = function.getFunctionBody();
+		if (body.optimised == null)
+			body.optimised = FunctionCompiler.compile(function, this);
+		return (CompiledFunction)body.optimised;
+	}
+
+	/** Return the compiled form of part of a function being compiled to instructions, with given
+	 * nodes within it replaced by given compiled nodes.
+	 */
+	CompiledNode compilePart(SimpleNode node, Map<Node, CompiledNode> substitutions) {
+		this.substitutions = substitutions;
+		try {
+			return lower(node);
+		} finally {
+			this.substitutions = null;
+		}
+	}
+
+	/** Return the compiled form of a FOR or WHILE loop that has become hot while being walked. */
+	CompiledNode compileLoop(SimpleNode node) {
+		return lower(node);
+	}
+
+	/** Return the compiled form of an expression from the body of a function being inlined.  Its
+	 * parameters are read from a given array of argument values.
+	 */
+	CompiledNode compileInline(SimpleNode node, FunctionDefinition function, Value[] arguments) {
+		inlinedFunction = function;
+		inlinedArguments = arguments;
+		try {
+			return lower(node);
+		} finally {
+			inlinedFunction = null;
+			inlinedArguments = null;
+		}
+	}
+
+	// Constructs without a compiled form
+	public Object visit(SimpleNode node, Object data) {
+		return new Fallback(node);
+	}
+
+	// A CScharf program
+	public Object visit(ASTCode node, Object data) {
+		return lowerChildren(node);
+	}
+
+	// A statement
+	public Object visit(ASTStatement node, Object data) {
+		return lowerChildren(node);
+	}
+
+	// A block
+	public Object visit(ASTBlock node, Object data) {
+		return new Block(lowerChildren(node));
+	}
+
+	// Function definition
+	public Object visit(ASTFnDef node, Object data) {
+		return new Fallback(node);
+	}
+
+	// Function definition parameter list
+	public Object visit(ASTParmlist node, Object data) {
+		return new Fallback(node);
+	}
+
+	// Function body
+	public Object visit(ASTFnBody node, Object data) {
+		return lowerChildren(node);
+	}
+
+	// Function return expression
+	public Object visit(ASTReturnExpression node, Object data) {
+		return lowerChild(node, 0);
+	}
+
+	// Function call
+	public Object visit(ASTCall node, Object data) {
+		return new Invoke(node, lowerArguments(node), false);
+	}
+
+	// Function invocation in an expression
+	public Object visit(ASTFnInvoke node, Object data) {
+		return new Invoke(node, lowerArguments(node), true);
+	}
+
+	// Function invocation argument list
+	public Object visit(ASTArgList node, Object data) {
+		return new Fallback(node);
+	}
+
+	// IF
+	public Object visit(ASTIfStatement node, Object data) {
+		return new If(lowerChild(node, 0), lowerChild(node, 1), node.ifHasElse ? lowerChild(node, 2) : null);
+	}
+
+	// FOR loop
+	public Object visit(ASTForLoop node, Object data) {
+		var assignmentNode = (SimpleNode)node.jjtGetChild(0);
+
+		// Let the tree-walker report the misuse of const/readonly when the loop is reached.
+		if (assignmentNode.jjtGetChild(0) instanceof ASTModifier)
+			return new Fallback(node);
+
+		String loopVariable = null;
+		if (assignmentNode.jjtGetNumChildren() == 3)
+			loopVariable = getTokenOfChild(assignmentNode, 1);
+
+		var countedLoop = CountedLoop.analyse(node);
+		var bound = (countedLoop != null) ? lower(countedLoop.getBound()) : null;
+		var initialisation = lowerChild(node, 0);
+
+		var outerInvariants = loopInvariants;
+		loopInvariants = new LoopInvariants(node);
+		try {
+			var test = lowerChild(node, 1);
+			var increment = lowerChild(node, 2);
+			var body = lowerChild(node, 3);
+			return new For(initialisation, test, increment, body, loopVariable, countedLoop, bound, loopInvariants.getInvariants());
+		} finally {
+			loopInvariants = outerInvariants;
+		}
+	}
+
+	// WHILE loop
+	public Object visit(ASTWhileLoop node, Object data) {
+		var outerInvariants = loopInvariants;
+		loopInvariants = new LoopInvariants(node);
+		try {
+			var test = lowerChild(node, 0);
+			var body = lowerChild(node, 1);
+			return new While(test, body, loopInvariants.getInvariants());
+		} finally {
+			loopInvariants = outerInvariants;
+		}
+	}
+
+	// Identifier
+	public Object visit(ASTIdentifier node, Object data) {
+		return new Fallback(node);
+	}
+
+	// Type
+	public Object visit(ASTType node, Object data) {
+		return new Fallback(node);
+	}
+
+	// Modifier
+	public Object visit(ASTModifier node, Object data) {
+		return new Fallback(node);
+	}
+
+	// Write statement
+	public Object visit(ASTPrint node, Object data) {
+		return new Print(lowerChild(node, 0));
+	}
+
+	// Dereference a variable or parameter.  Member and index access is left to the tree-walker.
+	public Object visit(ASTDereference node, Object data) {
+		if (node.jjtGetNumChildren() != 0)
+			return new Fallback(node);
+		if (inlinedFunction != null)
+			for (int i = 0; i < inlinedFunction.getParameterCount(); i++)
+				if (inlinedFunction.getParameterName(i).equals(node.tokenValue))
+					return new Argument(inlinedArguments, i);
+		if (node.member)
+			return new Member(node.tokenValue);
+		return new Variable(node.tokenValue);
+	}
+
+	// Declaration statement
+	public Object visit(ASTVariableDeclaration node, Object data) {
+		return new Fallback(node);
+	}
+
+	// Assignment statement
+	public Object visit(ASTAssignment node, Object data) {
+		var firstChild = (SimpleNode)node.jjtGetChild(0);
+		var secondChild = (SimpleNode)node.jjtGetChild(1);
+
+		if (firstChild instanceof ASTIncrementDecrement)
+			return new IncrementDecrement((ASTDereference)secondChild, firstChild.tokenValue.equals("++"), true);
+		if (secondChild instanceof ASTIncrementDecrement)
+			return new IncrementDecrement((ASTDereference)firstChild, secondChild.tokenValue.equals("++"), false);
+
+		var childCount = node.jjtGetNumChildren();
+		if (childCount == 2)
+			return new Assignment((ASTDereference)firstChild, lowerChild(node, 1));
+
+		return new TypedAssignment(
+			getTokenOfChild(node, childCount - 2),
+			CScharfUtil.getClassFromString(getTokenOfChild(node, childCount - 3)),
+			childCount == 4 ? firstChild.tokenValue : null,
+			lowerChild(node, childCount - 1),
+			node.typeChecked);
+	}
+
+	// Typeless assignment statement
+	public Object visit(ASTTypelessAssignment node, Object data) {
+		return new TypelessAssignment(getTokenOfChild(node, 0), lowerChild(node, 1));
+	}
+
+	// OR
+	public Object visit(ASTOr node, Object data) {
+		return new Or(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// AND
+	public Object visit(ASTAnd node, Object data) {
+		return new And(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// ==
+	public Object visit(ASTCompEqual node, Object data) {
+		return new CompEqual(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// !=
+	public Object visit(ASTCompNequal node, Object data) {
+		return new CompNequal(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// >=
+	public Object visit(ASTCompGTE node, Object data) {
+		return new CompGTE(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// <=
+	public Object visit(ASTCompLTE node, Object data) {
+		return new CompLTE(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// >
+	public Object visit(ASTCompGT node, Object data) {
+		return new CompGT(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// <
+	public Object visit(ASTCompLT node, Object data) {
+		return new CompLT(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// +
+	public Object visit(ASTAdd node, Object data) {
+		return new Add(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// -
+	public Object visit(ASTSubtract node, Object data) {
+		return new Subtract(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// *
+	public Object visit(ASTTimes node, Object data) {
+		return new Times(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// /
+	public Object visit(ASTDivide node, Object data) {
+		return new Divide(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// %
+	public Object visit(ASTModulo node, Object data) {
+		return new Modulo(lowerChild(node, 0), lowerChild(node, 1));
+	}
+
+	// NOT
+	public Object visit(ASTUnaryNot node, Object data) {
+		return new UnaryNot(lowerChild(node, 0));
+	}
+
+	// + (unary)
+	public Object visit(ASTUnaryPlus node, Object data) {
+		return new UnaryPlus(lowerChild(node, 0));
+	}
+
+	// - (unary)
+	public Object visit(ASTUnaryMinus node, Object data) {
+		return new UnaryMinus(lowerChild(node, 0));
+	}
+
+	// String literal
+	public Object visit(ASTCharacter node, Object data) {
+		return new Constant(ValueString.stripDelimited(node.tokenValue));
+	}
+
+	// Integer literal
+	public Object visit(ASTInteger node, Object data) {
+		return new Constant(ValueInteger.valueOf(Long.parseLong(node.tokenValue)));
+	}
+
+	// Float literal
+	public Object visit(ASTFloat node, Object data) {
+		return new Constant(new ValueFloat(Float.parseFloat(node.tokenValue)));
+	}
+
+	// Double literal
+	public Object visit(ASTDouble node, Object data) {
+		return new Constant(new ValueDouble(Double.parseDouble(node.tokenValue)));
+	}
+
+	// True literal
+	public Object visit(ASTTrue node, Object data) {
+		return new Constant(ValueBoolean.TRUE);
+	}
+
+	// False literal
+	public Object visit(ASTFalse node, Object data) {
+		return new Constant(ValueBoolean.FALSE);
+	}
+
+	// Quit application
+	public Object visit(ASTQuit node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTClassDef node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTClassBody node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTClassConstructor node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTClassInstance node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTInterfaceDef node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTFn node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTAnon node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTArray node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTNewObj node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTReflection node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTReflectionBase node, Object data) {
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTCast node, Object data) {
+		return new Fallback(node);
+	}
+
+	// Primary expression.  Casts and increment/decrement are left to the tree-walker.
+	public Object visit(ASTPrimaryExpression node, Object data) {
+		if (node.jjtGetNumChildren() == 1)
+			return lowerChild(node, 0);
+		return new Fallback(node);
+	}
+
+	public Object visit(ASTIncrementDecrement node, Object data) {
+		return new Fallback(node);
+	}
+}
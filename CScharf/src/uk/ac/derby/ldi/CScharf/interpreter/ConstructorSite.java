@@ -0,0 +1,31 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import uk.ac.derby.ldi.CScharf.values.Value;
+
+/** What a new expression knows about the class it instantiates.
+ *
+ * The class a new expression names can't change once it has been defined, so it is only
+ * found once.  The constructor depends on the types of the arguments, so the one used last
+ * is kept, and used again for as long as the arguments have the types of its parameters.
+ */
+final class ConstructorSite {
+
+	private final ClassDefinition classDefinition;
+	private FunctionDefinition constructor = null;
+
+	ConstructorSite(ClassDefinition classDefinition) {
+		this.classDefinition = classDefinition;
+	}
+
+	/** The class instantiated. */
+	ClassDefinition getClassDefinition() {
+		return classDefinition;
+	}
+
+	/** Return the constructor for given argument values, or null if the class has none that accepts them. */
+	FunctionDefinition findConstructor(Value[] arguments) {
+		if (constructor == null || !constructor.accepts(arguments))
+			constructor = classDefinition.findConstructor(arguments);
+		return constructor;
+	}
+}
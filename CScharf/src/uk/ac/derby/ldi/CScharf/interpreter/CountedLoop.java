@@ -0,0 +1,230 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+
+/** The shape of a canonical counted FOR loop, e.g. for (int i = 0; i < n; ++i).
+ *
+ * A counted loop has an integer induction variable compared against a loop-invariant bound,
+ * and steps it by a constant with ++, -- or i = i +/- constant.  Such loops can keep their
+ * counter in a native long, storing it in the variable's slot only when the body may read it.
+ */
+final class CountedLoop {
+
+	static final int LT = 0;
+	static final int LTE = 1;
+	static final int GT = 2;
+	static final int GTE = 3;
+	static final int NEQ = 4;
+
+	private final Display.Binding binding;
+	private final int comparison;
+	private final SimpleNode bound;
+	private final long step;
+	private final boolean synchronised;
+
+	private CountedLoop(String counter, int comparison, SimpleNode bound, long step, boolean synchronised) {
+		this.binding = new Display.Binding(counter);
+		this.comparison = comparison;
+		this.bound = bound;
+		this.step = step;
+		this.synchronised = synchronised;
+	}
+
+	/** Binding of the induction variable. */
+	Display.Binding getBinding() {
+		return binding;
+	}
+
+	/** The bound expression, which is evaluated once before the loop starts. */
+	SimpleNode getBound() {
+		return bound;
+	}
+
+	/** Amount added to the counter on each iteration. */
+	long getStep() {
+		return step;
+	}
+
+	/** True if the body may read the induction variable, so its slot must hold the counter while the body runs. */
+	boolean isSynchronised() {
+		return synchronised;
+	}
+
+	/** Evaluate the loop test for a given counter and bound. */
+	boolean test(long counter, long bound) {
+		switch (comparison) {
+			case LT: return counter < bound;
+			case LTE: return counter <= bound;
+			case GT: return counter > bound;
+			case GTE: return counter >= bound;
+			default: return counter != bound;
+		}
+	}
+
+	/** Return the shape of a given FOR loop, or null if it isn't a canonical counted loop. */
+	static CountedLoop analyse(ASTForLoop node) {
+		var initialisation = (SimpleNode)node.jjtGetChild(0);
+		var test = unwrap(node.jjtGetChild(1));
+		var increment = (SimpleNode)node.jjtGetChild(2);
+		var body = (SimpleNode)node.jjtGetChild(3);
+
+		// int i = start, or i = start
+		var initialisationCount = initialisation.jjtGetNumChildren();
+		if (initialisationCount == 3) {
+			if (!((SimpleNode)initialisation.jjtGetChild(0)).tokenValue.equals("int"))
+				return null;
+		} else if (initialisationCount != 2 || initialisation.jjtGetChild(1) instanceof ASTIncrementDecrement)
+			return null;
+		var counter = getVariable(initialisation.jjtGetChild(initialisationCount - 2));
+		if (counter == null)
+			return null;
+
+		// i op bound, or bound op i
+		int comparison;
+		if (test instanceof ASTCompLT)
+			comparison = LT;
+		else if (test instanceof ASTCompLTE)
+			comparison = LTE;
+		else if (test instanceof ASTCompGT)
+			comparison = GT;
+		else if (test instanceof ASTCompGTE)
+			comparison = GTE;
+		else if (test instanceof ASTCompNequal)
+			comparison = NEQ;
+		else
+			return null;
+		SimpleNode bound;
+		if (counter.equals(getVariable(test.jjtGetChild(0))))
+			bound = unwrap(test.jjtGetChild(1));
+		else if (counter.equals(getVariable(test.jjtGetChild(1)))) {
+			bound = unwrap(test.jjtGetChild(0));
+			comparison = reverse(comparison);
+		} else
+			return null;
+
+		var step = getStep(increment, counter);
+		if (step == null)
+			return null;
+
+		// The body must not assign the counter, and must not be able to change a variable bound.
+		if (assigns(body, counter))
+			return null;
+		var boundVariable = getVariable(bound);
+		if (boundVariable != null) {
+			if (boundVariable.equals(counter) || assigns(body, boundVariable) || invokes(body))
+				return null;
+		} else if (getConstant(bound) == null)
+			return null;
+
+		return new CountedLoop(counter, comparison, bound, step, reads(body, counter) || invokes(body));
+	}
+
+	// Swap the operands of a comparison.
+	private static int reverse(int comparison) {
+		switch (comparison) {
+			case LT: return GT;
+			case LTE: return GTE;
+			case GT: return LT;
+			case GTE: return LTE;
+			default: return NEQ;
+		}
+	}
+
+	// Skip any primary expressions wrapping a single expression.
+	private static SimpleNode unwrap(Node node) {
+		while (node instanceof ASTPrimaryExpression && node.jjtGetNumChildren() == 1)
+			node = node.jjtGetChild(0);
+		return (SimpleNode)node;
+	}
+
+	// Return the name of a plain variable, or null if a given node isn't one.
+	private static String getVariable(Node node) {
+		var expression = unwrap(node);
+		if (expression instanceof ASTDereference && expression.jjtGetNumChildren() == 0)
+			return expression.tokenValue;
+		return null;
+	}
+
+	// Return the value of an integer literal, optionally negated, or null if a given node isn't one.
+	private static Long getConstant(Node node) {
+		var expression = unwrap(node);
+		var negate = false;
+		if (expression instanceof ASTUnaryMinus) {
+			negate = true;
+			expression = unwrap(expression.jjtGetChild(0));
+		}
+		if (!(expression instanceof ASTInteger))
+			return null;
+		var value = Long.parseLong(expression.tokenValue);
+		return negate ? -value : value;
+	}
+
+	// Return the step of an increment of a given counter (++i, i--, i = i + 2, etc.), or null if it isn't one.
+	private static Long getStep(SimpleNode increment, String counter) {
+		if (increment.jjtGetNumChildren() != 2)
+			return null;
+		var firstChild = (SimpleNode)increment.jjtGetChild(0);
+		var secondChild = (SimpleNode)increment.jjtGetChild(1);
+		if (firstChild instanceof ASTIncrementDecrement && counter.equals(getVariable(secondChild)))
+			return firstChild.tokenValue.equals("++") ? 1L : -1L;
+		if (!counter.equals(getVariable(firstChild)))
+			return null;
+		if (secondChild instanceof ASTIncrementDecrement)
+			return secondChild.tokenValue.equals("++") ? 1L : -1L;
+		var expression = unwrap(secondChild);
+		if (!(expression instanceof ASTAdd || expression instanceof ASTSubtract))
+			return null;
+		if (!counter.equals(getVariable(expression.jjtGetChild(0))))
+			return null;
+		var constant = getConstant(expression.jjtGetChild(1));
+		if (constant == null)
+			return null;
+		return (expression instanceof ASTAdd) ? constant : -constant;
+	}
+
+	/** True if a given subtree assigns to, increments or decrements a named variable. */
+	static boolean assigns(Node node, String name) {
+		if (node instanceof ASTTypelessAssignment && name.equals(((SimpleNode)node.jjtGetChild(0)).tokenValue))
+			return true;
+		if (node instanceof ASTAssignment || isIncrementDecrement(node)) {
+			for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+				var child = node.jjtGetChild(i);
+				if (child instanceof ASTDereference && name.equals(((SimpleNode)child).tokenValue))
+					return true;
+			}
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (assigns(node.jjtGetChild(i), name))
+				return true;
+		return false;
+	}
+
+	/** True if a given node increments or decrements a variable within an expression (e.g. print(++a)). */
+	static boolean isIncrementDecrement(Node node) {
+		if (node instanceof ASTPrimaryExpression)
+			for (int i = 0; i < node.jjtGetNumChildren(); i++)
+				if (node.jjtGetChild(i) instanceof ASTIncrementDecrement)
+					return true;
+		return false;
+	}
+
+	// True if a given subtree refers to a named variable.
+	private static boolean reads(Node node, String name) {
+		if (node instanceof ASTDereference && name.equals(((SimpleNode)node).tokenValue))
+			return true;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (reads(node.jjtGetChild(i), name))
+				return true;
+		return false;
+	}
+
+	/** True if a given subtree may run code defined elsewhere, which could see the loop's variables. */
+	static boolean invokes(Node node) {
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke || node instanceof ASTNewObj || node instanceof ASTReflection)
+			return true;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (invokes(node.jjtGetChild(i)))
+				return true;
+		return false;
+	}
+}
@@ -1,5 +1,6 @@
 package uk.ac.derby.ldi.CScharf.interpreter;
 
+import java.util.Arrays;
 import java.util.Vector;
 
 import uk.ac.derby.ldi.CScharf.values.Value;
@@ -15,6 +16,17 @@ class Display {
 	private Vector<InterfaceDefinition> interfaces = new Vector<InterfaceDefinition>();
 		
 	private int currentLevel;
+	
+	// Display frames.  Each records the display entry and level replaced by a call, or by the
+	// environment of a func value it calls, so they are restored on return.
+	private final int maximumCallDepth;
+	private FunctionInvocation[] callerContexts = new FunctionInvocation[16];
+	private int[] callerLevels = new int[16];
+	private int frameCount = 0;
+	private int callDepth = 0;
+	
+	// Incremented whenever a function is defined or removed at any level.
+	private int functionVersion = 0;
 
 	/** Reference to a slot. */
 	class Reference {
@@ -38,25 +50,145 @@ class Display {
 		}
 	}
 	
+	/** A variable or parameter name used at a given point in the code, with the slot it was
+	 * last found in.  Bindings let a site reuse a slot instead of searching for its name again.
+	 */
+	static class Binding {
+		private final String name;
+		private int level = -1;
+		private int displayDepth;
+		private int slotNumber;
+		
+		/** Ctor */
+		Binding(String name) {
+			this.name = name;
+		}
+		
+		/** Get the bound name. */
+		String getName() {
+			return name;
+		}
+		
+		/** Get the level of the display the name was last bound to. */
+		int getDisplayDepth() {
+			return displayDepth;
+		}
+		
+		/** Get the slot number the name was last bound to. */
+		int getSlotNumber() {
+			return slotNumber;
+		}
+	}
+	
+	/** A function name used at a call site, with the function it was last found to be, or null if
+	 * none was found.  The result holds for as long as the display has the same function definitions
+	 * at the levels that were searched and no function has been defined or removed since.
+	 */
+	static class FunctionBinding {
+		private final String name;
+		private int version = -1;
+		// Definitions of the invocations at the levels searched, from the main program's up.
+		private FunctionDefinition[] definitions = new FunctionDefinition[0];
+		private FunctionDefinition function;
+		
+		/** Ctor */
+		FunctionBinding(String name) {
+			this.name = name;
+		}
+	}
+	
 	/** Ctor */
-	Display() {
+	Display(int maximumCallDepth) {
+		this.maximumCallDepth = maximumCallDepth;
 		// root or 0th scope
 		currentLevel = 0;
 		display[currentLevel] = new FunctionInvocation(new FunctionDefinition("%main", currentLevel));
 		programClass = new ClassDefinition("%program");
 	}
 	
-	/** Execute a function in its scope, using a specified parser. */
+	/** Execute a function in its scope, using a specified parser.  A func value's function
+	 * executes in the scopes it captured where it was defined.
+	 */
 	Value execute(FunctionInvocation fn, Parser p) {
+		enter(fn);
+		Value v = fn.execute(p);
+		leave(fn);
+		return v;
+	}
+	
+	/** Make a function invocation, and the scopes of a func value's function, current for the
+	 * call that is starting it.
+	 */
+	void enter(FunctionInvocation fn) {
 		int changeLevel = fn.getLevel();
-		FunctionInvocation oldContext = display[changeLevel];
-		int oldLevel = currentLevel;
+		if (callDepth == maximumCallDepth)
+			throw new ExceptionSemantic("Maximum call depth of " + maximumCallDepth + " exceeded.");
+		callDepth++;
+		pushFrame(changeLevel);
 		display[changeLevel] = fn;
 		currentLevel = changeLevel;
-		Value v = display[currentLevel].execute(p);
-		display[changeLevel] = oldContext;
-		currentLevel = oldLevel;
-		return v;
+		var closure = fn.getClosure();
+		if (closure != null)
+			for (int level = 1; level < closure.length; level++)
+				if (closure[level] != null) {
+					pushFrame(level);
+					display[level] = closure[level];
+				}
+	}
+	
+	/** Restore the scopes replaced by enter() for a function invocation that has returned. */
+	void leave(FunctionInvocation fn) {
+		var closure = fn.getClosure();
+		if (closure != null)
+			for (int level = closure.length - 1; level > 0; level--)
+				if (closure[level] != null)
+					popFrame(level);
+		popFrame(fn.getLevel());
+		callDepth--;
+	}
+	
+	// Save the display entry at a given level, and the current level, on the call stack.
+	private void pushFrame(int changeLevel) {
+		if (frameCount == callerContexts.length) {
+			callerContexts = Arrays.copyOf(callerContexts, frameCount * 2);
+			callerLevels = Arrays.copyOf(callerLevels, frameCount * 2);
+		}
+		callerContexts[frameCount] = display[changeLevel];
+		callerLevels[frameCount] = currentLevel;
+		frameCount++;
+	}
+	
+	// Restore the display entry at a given level, and the current level, from the call stack.
+	private void popFrame(int changeLevel) {
+		frameCount--;
+		display[changeLevel] = callerContexts[frameCount];
+		currentLevel = callerLevels[frameCount];
+		callerContexts[frameCount] = null;
+	}
+	
+	/** Capture the invocations, other than the main program's, in which given variable and 
+	 * function names are currently found, for a func value defined at the current level that
+	 * uses them.  Return them by level, or null if none of the names is found in one.
+	 */
+	FunctionInvocation[] capture(String[] names) {
+		FunctionInvocation[] closure = null;
+		for (var name : names) {
+			for (int level = currentLevel; level > 0; level--) {
+				if (display[level].findSlotNumber(name) >= 0 || display[level].findFunction(name) != null) {
+					if (closure == null)
+						closure = new FunctionInvocation[currentLevel + 1];
+					closure[level] = display[level];
+					display[level].capture();
+					break;
+				}
+			}
+		}
+		return closure;
+	}
+	
+	/** Get the number of function invocations in progress. */
+	int getCallDepth() {
+		return callDepth;
 	}
 	
 	/** Get the current scope nesting level. */
@@ -79,20 +211,92 @@ class Display {
 		return null;		
 	}
 	
-	Vector<String> getAccessibleVariables() {
-		return display[currentLevel].getSlotKeys();
+	/** Bind a name to the slot of a variable or parameter, as findReference() would find it.  
+	 * If the slot found last time still holds the variable, and the variable is still not hidden
+	 * by one of the same name at a deeper level, it is reused without searching.  Return false 
+	 * if the variable doesn't exist.
+	 */
+	boolean bind(Binding binding) {
+		if (binding.level == currentLevel && binding.name.equals(display[binding.displayDepth].getSlotName(binding.slotNumber))) {
+			int level = currentLevel;
+			while (level > binding.displayDepth && display[level].findSlotNumber(binding.name) < 0)
+				level--;
+			if (level == binding.displayDepth)
+				return true;
+		}
+		
+		int level = currentLevel;
+		while (level >= 0) {
+			int offset = display[level].findSlotNumber(binding.name);
+			if (offset >= 0) {
+				binding.level = currentLevel;
+				binding.displayDepth = level;
+				binding.slotNumber = offset;
+				return true;
+			}
+			level--;
+		}
+		
+		binding.level = -1;
+		return false;
 	}
 	
-	void removeVariable(String name) {
-		display[currentLevel].removeSlot(name);
+	/** Get the invocation holding the variable a name is bound to. */
+	FunctionInvocation getInvocation(Binding binding) {
+		return display[binding.displayDepth];
+	}
+	
+	/** Get value of the variable a name is bound to. */
+	Value getValue(Binding binding) {
+		return display[binding.displayDepth].getValue(binding.slotNumber);
+	}
+	
+	/** True if the variable a name is bound to has storage in its invocation. */
+	boolean isAssigned(Binding binding) {
+		return display[binding.displayDepth].hasSlot(binding.slotNumber);
 	}
 	
-	Vector<FunctionDefinition> getAccessibleFunctions() {
-		return display[currentLevel].getFunctions();
+	/** Set value of the variable a name is bound to. */
+	void setValue(Binding binding, Value v) {
+		display[binding.displayDepth].setValue(binding.slotNumber, v);
 	}
 	
-	void removeFunction(String name) {
-		display[currentLevel].removeFunction(name);
+	/** Set value of the variable a name is bound to, and make it constant. */
+	void setConstant(Binding binding, Value v) {
+		display[binding.displayDepth].setConstant(binding.slotNumber, v);
+	}
+	
+	/** Create a variable in the current level, or reuse an existing one of the same name, and bind the name to it. */
+	void defineVariable(Binding binding) {
+		if (binding.level == currentLevel && binding.displayDepth == currentLevel 
+				&& binding.name.equals(display[currentLevel].getSlotName(binding.slotNumber)))
+			return;
+		binding.level = currentLevel;
+		binding.displayDepth = currentLevel;
+		binding.slotNumber = display[currentLevel].defineVariable(binding.name);
+	}
+	
+	/** Get the number of variables defined in the current level.  A block records it on entry. */
+	int getVariableCount() {
+		return display[currentLevel].getSlotCount();
+	}
+	
+	/** Get the number of functions defined in the current level.  A block records it on entry. */
+	int getFunctionCount() {
+		return display[currentLevel].getFunctionCount();
+	}
+	
+	/** Undefine the variables and functions defined in the current level since there were given numbers of them. */
+	void closeBlock(int variableCount, int functionCount) {
+		display[currentLevel].truncateSlots(variableCount);
+		if (display[currentLevel].getFunctionCount() != functionCount) {
+			display[currentLevel].truncateFunctions(functionCount);
+			functionVersion++;
+		}
+	}
+	
+	void removeVariable(String name) {
+		display[currentLevel].removeSlot(name);
 	}
 
 	/** Create a variable in the current level and return its Reference. */
@@ -112,6 +316,27 @@ class Display {
 		return null;
 	}
 	
+	/** Find a function as findFunction() would, reusing the function found last time for a 
+	 * given binding if the functions visible from the current level can't have changed since.
+	 */
+	FunctionDefinition findFunction(FunctionBinding binding) {
+		if (binding.version == functionVersion && binding.definitions.length == currentLevel + 1) {
+			int level = currentLevel;
+			while (level >= 0 && binding.definitions[level] == display[level].getDefinition())
+				level--;
+			if (level < 0)
+				return binding.function;
+		}
+		
+		if (binding.definitions.length != currentLevel + 1)
+			binding.definitions = new FunctionDefinition[currentLevel + 1];
+		for (int level = 0; level <= currentLevel; level++)
+			binding.definitions[level] = display[level].getDefinition();
+		binding.version = functionVersion;
+		binding.function = findFunction(binding.name);
+		return binding.function;
+	}
+	
 	/** Find a class.  Return null if it doesn't exist. */
 	ClassDefinition findClass(String name) {
 		var classDef = programClass.findClass(name);
@@ -134,6 +359,7 @@ class Display {
 	/** Add a function to the current level. */
 	void addFunction(FunctionDefinition definition) {
 		display[currentLevel].addFunction(definition);
+		functionVersion++;
 	}
 	
 	
@@ -0,0 +1,310 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledExpressions.Invoke;
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledFunction.Register;
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledStatements.Sequence;
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+
+/** Lowers a function body and its return expression into the instructions of a CompiledFunction.
+ *
+ * Statements that invoke nothing are lowered by the Compiler and executed by a single instruction.
+ * Blocks, IFs, loops, calls, and the expressions and assignments that contain calls, are split
+ * into instructions, so each call is made by the CallStack.  The parts of an expression up to its
+ * last call are evaluated into registers, in order, and the expression is then lowered by the
+ * Compiler with those parts read from their registers.  Any other construct that contains a call,
+ * such as an index or a constructor argument, is executed whole, and its calls nest on the Java
+ * stack.
+ */
+final class FunctionCompiler {
+
+	private final Compiler compiler;
+	private int[] instructions = new int[16];
+	private int instructionCount = 0;
+	private final ArrayList<Object> operands = new ArrayList<Object>();
+	// Lowest register not in use, and the number of registers needed.
+	private int freeRegister = 0;
+	private int registerCount = 0;
+
+	private FunctionCompiler(Compiler compiler) {
+		this.compiler = compiler;
+	}
+
+	/** Compile a function.  One too large for its instructions to address executes its body and
+	 * return expression whole.
+	 */
+	static CompiledFunction compile(FunctionDefinition function, Compiler compiler) {
+		var functionCompiler = new FunctionCompiler(compiler);
+		functionCompiler.statements(function.getFunctionBody());
+		functionCompiler.end(function, functionCompiler.allocate(1));
+		if (functionCompiler.registerCount <= CompiledFunction.MAXIMUM_REGISTERS
+				&& functionCompiler.operands.size() <= CompiledFunction.MAXIMUM_POOL_SIZE
+				&& functionCompiler.instructionCount <= CompiledFunction.MAXIMUM_CODE_SIZE)
+			return functionCompiler.getCode();
+
+		functionCompiler = new FunctionCompiler(compiler);
+		functionCompiler.emitPart(function.getFunctionBody(), -1, null);
+		functionCompiler.end(function, functionCompiler.allocate(1));
+		return functionCompiler.getCode();
+	}
+
+	// Get the compiled function.
+	private CompiledFunction getCode() {
+		return new CompiledFunction(Arrays.copyOf(instructions, instructionCount), operands.toArray(), registerCount);
+	}
+
+	// Return from the function, with the value of its return expression, if it has one, evaluated into a given register.
+	private void end(FunctionDefinition function, int result) {
+		if (function.hasReturn()) {
+			expression(function.getFunctionReturnExpression(), result);
+			emit(CompiledFunction.RETURN, result, 0);
+		} else
+			emit(CompiledFunction.END, 0, 0);
+	}
+
+	// Emit an instruction.  Return its index.
+	private int emit(int opcode, int a, int bx) {
+		if (instructionCount == instructions.length)
+			instructions = Arrays.copyOf(instructions, instructionCount * 2);
+		instructions[instructionCount] = CompiledFunction.encode(opcode, a, bx);
+		return instructionCount++;
+	}
+
+	// Make a given jump instruction, emitted with a target of 0, jump to the next instruction.
+	private void patch(int jump) {
+		instructions[jump] |= instructionCount << 16;
+	}
+
+	// Add an operand to the pool.  Return its index.
+	private int operand(Object operand) {
+		operands.add(operand);
+		return operands.size() - 1;
+	}
+
+	// Allocate a given number of consecutive registers.  Return the first.
+	private int allocate(int count) {
+		var register = freeRegister;
+		freeRegister += count;
+		registerCount = Math.max(registerCount, freeRegister);
+		return register;
+	}
+
+	// Lower a given node with the Compiler, with given nodes within it read from registers, and emit
+	// an instruction to execute it, or to evaluate it into a given register if that isn't -1.
+	private void emitPart(SimpleNode node, int result, IdentityHashMap<Node, CompiledNode> substitutions) {
+		var compiled = compiler.compilePart(node, substitutions);
+		if (result < 0)
+			emit(CompiledFunction.EXEC, 0, operand(compiled));
+		else
+			emit(CompiledFunction.EVAL, result, operand(compiled));
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	// Lower the statements that are the children of a given node.  A run of statements that
+	// invoke nothing is executed by one instruction.
+	private void statements(SimpleNode node) {
+		var run = new ArrayList<CompiledNode>();
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			var child = getChild(node, i);
+			if (!CountedLoop.invokes(child)) {
+				run.add(compiler.compilePart(child, null));
+				continue;
+			}
+			flush(run);
+			statement(child);
+		}
+		flush(run);
+	}
+
+	// Emit an instruction to execute a run of statements, if there are any.
+	private void flush(ArrayList<CompiledNode> run) {
+		if (run.isEmpty())
+			return;
+		var statements = run.toArray(new CompiledNode[run.size()]);
+		emit(CompiledFunction.EXEC, 0, operand((statements.length == 1) ? statements[0] : new Sequence(statements)));
+		run.clear();
+	}
+
+	// Lower a statement.
+	private void statement(SimpleNode node) {
+		if (!CountedLoop.invokes(node)) {
+			emitPart(node, -1, null);
+			return;
+		}
+		var firstFreeRegister = freeRegister;
+		if (node instanceof ASTStatement)
+			statements(node);
+		else if (node instanceof ASTBlock) {
+			var marks = allocate(2);
+			emit(CompiledFunction.OPEN, marks, 0);
+			statements(node);
+			emit(CompiledFunction.CLOSE, marks, 0);
+		} else if (node instanceof ASTIfStatement)
+			ifStatement((ASTIfStatement)node);
+		else if (node instanceof ASTWhileLoop)
+			whileLoop(node);
+		else if (node instanceof ASTForLoop && !(getChild(node, 0).jjtGetChild(0) instanceof ASTModifier))
+			forLoop(node);
+		else
+			expression(node, -1);
+		freeRegister = firstFreeRegister;
+	}
+
+	// Evaluate the test expression of a given statement, and emit a jump to be taken if it is false.
+	// Return the jump.
+	private int test(SimpleNode expression, String statement) {
+		var test = allocate(1);
+		expression(expression, test);
+		emit(CompiledFunction.TEST, test, operand(statement));
+		freeRegister = test;
+		return emit(CompiledFunction.JUMP, 0, 0);
+	}
+
+	// IF, with an optional ELSE
+	private void ifStatement(ASTIfStatement node) {
+		var ifFalse = test(getChild(node, 0), "an if statement");
+		statement(getChild(node, 1));
+		if (node.ifHasElse) {
+			var end = emit(CompiledFunction.JUMP, 0, 0);
+			patch(ifFalse);
+			statement(getChild(node, 2));
+			patch(end);
+		} else
+			patch(ifFalse);
+	}
+
+	// WHILE loop
+	private void whileLoop(SimpleNode node) {
+		var top = instructionCount;
+		var exit = test(getChild(node, 0), "a while loop");
+		statement(getChild(node, 1));
+		emit(CompiledFunction.JUMP, 0, top);
+		patch(exit);
+	}
+
+	// FOR loop.  A variable declared by its initialisation is removed once it ends.
+	private void forLoop(SimpleNode node) {
+		var initialisation = getChild(node, 0);
+		statement(initialisation);
+		var top = instructionCount;
+		var exit = test(getChild(node, 1), "a for loop");
+		statement(getChild(node, 3));
+		statement(getChild(node, 2));
+		emit(CompiledFunction.JUMP, 0, top);
+		patch(exit);
+		if (initialisation.jjtGetNumChildren() == 3)
+			emit(CompiledFunction.REMOVE, 0, operand(getChild(initialisation, 1).tokenValue));
+	}
+
+	// Lower an expression, or an expression statement, and evaluate it into a given register if that isn't -1.
+	private void expression(SimpleNode node, int result) {
+		if (!CountedLoop.invokes(node)) {
+			emitPart(node, result, null);
+			return;
+		}
+		if ((node instanceof ASTPrimaryExpression || node instanceof ASTReturnExpression) && node.jjtGetNumChildren() == 1)
+			expression(getChild(node, 0), result);
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			call(node, result);
+		else if (node instanceof ASTOr || node instanceof ASTAnd)
+			logical(node, result, node instanceof ASTOr);
+		else {
+			var parts = getParts(node);
+			if (parts == null) {
+				emitPart(node, result, null);
+				return;
+			}
+			var firstFreeRegister = freeRegister;
+			var lastInvoking = parts.length - 1;
+			while (!CountedLoop.invokes(parts[lastInvoking]))
+				lastInvoking--;
+			var substitutions = new IdentityHashMap<Node, CompiledNode>();
+			for (int i = 0; i <= lastInvoking; i++) {
+				var register = allocate(1);
+				expression(parts[i], register);
+				substitutions.put(parts[i], new Register(register));
+			}
+			emitPart(node, result, substitutions);
+			freeRegister = firstFreeRegister;
+		}
+	}
+
+	// Return the children of a given node that its compiled form evaluates, in the order it evaluates
+	// them, or null if it may evaluate a child that invokes something in some other way.
+	private static SimpleNode[] getParts(SimpleNode node) {
+		if (node instanceof ASTCompEqual || node instanceof ASTCompNequal || node instanceof ASTCompGTE || node instanceof ASTCompLTE
+				|| node instanceof ASTCompGT || node instanceof ASTCompLT || node instanceof ASTAdd || node instanceof ASTSubtract
+				|| node instanceof ASTTimes || node instanceof ASTDivide || node instanceof ASTModulo)
+			return new SimpleNode[] {getChild(node, 0), getChild(node, 1)};
+		if (node instanceof ASTUnaryNot || node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus || node instanceof ASTPrint)
+			return new SimpleNode[] {getChild(node, 0)};
+		if (node instanceof ASTTypelessAssignment)
+			return new SimpleNode[] {getChild(node, 1)};
+		if (node instanceof ASTAssignment) {
+			var childCount = node.jjtGetNumChildren();
+			if (getChild(node, 0) instanceof ASTIncrementDecrement || getChild(node, 1) instanceof ASTIncrementDecrement)
+				return null;
+			if (childCount == 2 && CountedLoop.invokes(getChild(node, 0)))
+				return null;
+			return new SimpleNode[] {getChild(node, childCount - 1)};
+		}
+		return null;
+	}
+
+	// OR or AND.  The right operand is skipped if the left one decides the result.
+	private void logical(SimpleNode node, int result, boolean isOr) {
+		var firstFreeRegister = freeRegister;
+		var left = (result < 0) ? allocate(1) : result;
+		expression(getChild(node, 0), left);
+		var decided = emit(isOr ? CompiledFunction.JUMPT : CompiledFunction.JUMPF, left, 0);
+		var right = allocate(1);
+		expression(getChild(node, 1), right);
+		var substitutions = new IdentityHashMap<Node, CompiledNode>();
+		substitutions.put(getChild(node, 0), new Register(left));
+		substitutions.put(getChild(node, 1), new Register(right));
+		emitPart(node, left, substitutions);
+		patch(decided);
+		freeRegister = firstFreeRegister;
+	}
+
+	// Function call or invocation.  Arguments up to the last that makes a call are evaluated into
+	// registers, after the function called is found.
+	private void call(SimpleNode node, int result) {
+		var firstFreeRegister = freeRegister;
+		var argListNode = getChild(node, 1);
+		var arguments = new CompiledNode[argListNode.jjtGetNumChildren()];
+		var site = new Invoke(node, arguments, node instanceof ASTFnInvoke);
+		var lastInvoking = arguments.length - 1;
+		while (lastInvoking >= 0 && !CountedLoop.invokes(argListNode.jjtGetChild(lastInvoking)))
+			lastInvoking--;
+
+		if (lastInvoking < 0) {
+			for (int i = 0; i < arguments.length; i++)
+				arguments[i] = compiler.compilePart(getChild(argListNode, i), null);
+			emit(CompiledFunction.CALL, (result < 0) ? allocate(1) : result, operand(site));
+		} else {
+			var found = allocate(2);
+			var siteOperand = operand(site);
+			emit(CompiledFunction.FIND, found, siteOperand);
+			for (int i = 0; i < arguments.length; i++) {
+				if (i <= lastInvoking) {
+					var register = allocate(1);
+					expression(getChild(argListNode, i), register);
+					arguments[i] = new Register(register);
+				} else
+					arguments[i] = compiler.compilePart(getChild(argListNode, i), null);
+			}
+			emit(CompiledFunction.CALLFOUND, found, siteOperand);
+			if (result >= 0)
+				emit(CompiledFunction.MOVE, result, found);
+		}
+		freeRegister = firstFreeRegister;
+	}
+}
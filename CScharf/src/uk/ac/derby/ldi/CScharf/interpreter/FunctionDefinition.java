@@ -2,7 +2,10 @@ package uk.ac.derby.ldi.CScharf.interpreter;
 
 import uk.ac.derby.ldi.CScharf.CScharfUtil;
 import uk.ac.derby.ldi.CScharf.parser.ast.SimpleNode;
+import uk.ac.derby.ldi.CScharf.values.Value;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Vector;
@@ -16,12 +19,39 @@ public class FunctionDefinition implements Comparable<Object> {
 	private String name;
 	private String parmSignature = "";
 	private HashMap<String, Class<?>> parameters = new LinkedHashMap<String, Class<?>>();
+	// Names and types of the parameters, in order, so an argument can be checked without searching.
+	private String[] parameterNames = new String[0];
+	private Class<?>[] parameterTypes = new Class<?>[0];
+	// Slot of each variable or parameter name.  A name whose block has ended keeps its entry, so
+	// defining it again usually finds the same slot, but it is only defined if slotNames agrees.
 	private HashMap<String, Integer> slots = new HashMap<String, Integer>();
+	// Name of the variable or parameter in each slot in use, or null if the slot is unused.
+	private ArrayList<String> slotNames = new ArrayList<String>();
 	private HashMap<String, FunctionDefinition> functions = new HashMap<String, FunctionDefinition>();
+	// Names of the inner functions, in the order they were added.
+	private ArrayList<String> functionNames = new ArrayList<String>();
 	private SimpleNode ASTFunctionBody = null;
 	private SimpleNode ASTFunctionReturnExpression = null;
 	private int depth;
 	private Class<?> returnType = null;
+	// True if the type checker has proven the return expression has the return type.
+	private boolean returnChecked = false;
+	// For a func value, the invocations of the enclosing functions it uses variables or functions
+	// from, by level, or null if it uses none.
+	private FunctionInvocation[] closure = null;
+	
+	// Tiering.  A function is hot, and worth compiling, once it has been invoked 
+	// hotInvocations times or its loops have iterated hotBackEdges times.
+	private static final int hotInvocations = 100;
+	private static final int hotBackEdges = 1000;
+	private int invocationCount = 0;
+	private int backEdgeCount = 0;
+	private boolean hot = false;
+	
+	// Invocations of this function that have returned, kept for reuse by later invocations.
+	private static final int maximumPooledInvocations = 64;
+	private FunctionInvocation[] pooledInvocations = new FunctionInvocation[4];
+	private int pooledInvocationCount = 0;
 	
 	/** Ctor for function definition. */
 	FunctionDefinition(String functionName, int level) {
@@ -34,12 +64,20 @@ public class FunctionDefinition implements Comparable<Object> {
 		this.name = value.getName();
 		this.parmSignature = value.parmSignature;
 		this.parameters = value.parameters;
+		this.parameterNames = value.parameterNames;
+		this.parameterTypes = value.parameterTypes;
 		this.slots = value.slots;
+		this.slotNames = value.slotNames;
 		this.functions = value.functions;		
+		this.functionNames = value.functionNames;
 		this.ASTFunctionBody = value.ASTFunctionBody;
 		this.ASTFunctionReturnExpression = value.ASTFunctionReturnExpression;
 		this.depth = value.depth;
 		this.returnType = value.returnType;
+		this.closure = value.closure;
+		this.invocationCount = value.invocationCount;
+		this.backEdgeCount = value.backEdgeCount;
+		this.hot = value.hot;
 	}
 
 	/** Get the depth of this definition.
@@ -94,28 +132,59 @@ public class FunctionDefinition implements Comparable<Object> {
 	
 	/** Get count of parameters. */
 	int getParameterCount() {
-		return parameters.size();
+		return parameterTypes.length;
 	}
 	
 	/** Get the name of the ith parameter. */
 	String getParameterName(int i) {
-		return (String)parameters.keySet().toArray()[i];
+		return parameterNames[i];
 	}
 	
 	Class<?> getParameterType(int i) {
-		return (Class<?>)parameters.values().toArray()[i];
+		return parameterTypes[i];
 	}
 	
 	Vector<Class<?>> getParameterTypes() {
 		return new Vector<Class<?>>(parameters.values());
 	}
 	
+	/** True if given argument values have exactly the types of the parameters. */
+	boolean accepts(Value[] arguments) {
+		if (arguments.length != parameterTypes.length)
+			return false;
+		for (int i = 0; i < arguments.length; i++)
+			if (arguments[i].getClass() != parameterTypes[i])
+				return false;
+		return true;
+	}
+	
+	/** Check the ith argument of an invocation can be passed to the ith parameter. */
+	void checkArgument(int i, Value v) {
+		if (i >= parameterTypes.length)
+			throw new ExceptionSemantic("Function " + getSignature() + " expected " + getParameterCount() + " arguments but got " + (i + 1) + ".");
+		
+		Class<?> parameterType = parameterTypes[i];
+		Class<?> argType = v.getClass();
+		
+		if (parameterType != argType) {
+			throw new ExceptionSemantic("Cannot assign value of type: " + v.getClass() + " to parameter of type: " + parameterType + ". Are you missing a cast?");
+		}
+	}
+	
+	/** Check an invocation has been given enough arguments. */
+	void checkArgumentCount(int argumentCount) {
+		if (argumentCount < parameterTypes.length)
+			throw new ExceptionSemantic("Function " + getSignature() + " expected " + getParameterCount() + " arguments but got " + argumentCount + ".");		
+	}
+	
 	/** Define a parameter. */
 	void defineParameter(String type, String name) {
 		if (parameters.containsKey(name))
 			throw new ExceptionSemantic("Parameter " + name + " already exists in function " + getName());
 		
 		parameters.put(name, CScharfUtil.getClassFromString(type));
+		parameterNames = parameters.keySet().toArray(new String[parameters.size()]);
+		parameterTypes = parameters.values().toArray(new Class<?>[parameters.size()]);
 		parmSignature += ((parmSignature.length()==0) ? type + " " + name : (", " + type + " " + name));
 		defineVariable(name);
 	}
@@ -125,12 +194,27 @@ public class FunctionDefinition implements Comparable<Object> {
 		return slots.size();
 	}
 	
-	Vector<String> getAllSlotKeys() {
-		return new Vector<String>(slots.keySet());
+	/** Get the number of slots in use.  Variables defined from now on take the slots after these. */
+	int getSlotCount() {
+		return slotNames.size();
+	}
+	
+	/** Undefine the variables in the slots from a given one up, which a block defined. */
+	void truncateSlots(int slotCount) {
+		for (int i = slotNames.size() - 1; i >= slotCount; i--)
+			slotNames.remove(i);
 	}
 	
 	void removeSlotKey(String name) {
-		slots.remove(name);
+		int slot = getLocalSlotNumber(name);
+		if (slot < 0)
+			return;
+		if (slot == slotNames.size() - 1)
+			slotNames.remove(slot);
+		else {
+			slots.remove(name);
+			slotNames.set(slot, null);
+		}
 	}
 	
 	/** Get the storage slot number of a given variable or parm.  Return -1 if it doesn't exist. */
@@ -138,21 +222,35 @@ public class FunctionDefinition implements Comparable<Object> {
 		Integer slot = slots.get(name);
 		if (slot == null)
 			return -1;
-		return slot.intValue();
+		int slotNumber = slot.intValue();
+		if (slotNumber >= slotNames.size() || !name.equals(slotNames.get(slotNumber)))
+			return -1;
+		return slotNumber;
 	}
 	
 	/** Define a variable.  Return its slot number. */
 	int defineVariable(String name) {
+		int slotNumber = getLocalSlotNumber(name);
+		if (slotNumber >= 0)
+			return slotNumber;
+		slotNumber = slotNames.size();
 		Integer slot = slots.get(name);
-		if (slot != null) return slot.intValue();
-		int slotNumber = slots.size();
-		slots.put(name, Integer.valueOf(slotNumber));
+		if (slot == null || slot.intValue() != slotNumber)
+			slots.put(name, Integer.valueOf(slotNumber));
+		slotNames.add(name);
 		return slotNumber;
-	}	
+	}
+	
+	/** Get the name of the variable or parameter in a given slot.  Return null if the slot is unused. */
+	String getSlotName(int slotNumber) {
+		return (slotNumber < slotNames.size()) ? slotNames.get(slotNumber) : null;
+	}
+	
 	
 	/** Add an inner function definition. */
 	void addFunction(FunctionDefinition definition) {
 		functions.put(definition.getName(), definition);
+		functionNames.add(definition.getName());
 	}
 	
 	/** Find an inner function definition.  Return null if it doesn't exist. */
@@ -160,12 +258,15 @@ public class FunctionDefinition implements Comparable<Object> {
 		return functions.get(name);
 	}
 	
-	Vector<FunctionDefinition> getFunctions() {
-		return new Vector<FunctionDefinition>(functions.values());
+	/** Get the number of inner functions added.  Functions added from now on follow these. */
+	int getFunctionCount() {
+		return functionNames.size();
 	}
 	
-	void removeFunction(String name) {
-		functions.remove(name);
+	/** Remove the inner functions added after a given number of them, which a block defined. */
+	void truncateFunctions(int functionCount) {
+		for (int i = functionNames.size() - 1; i >= functionCount; i--)
+			functions.remove(functionNames.remove(i));
 	}
 
 	void setReturnType(Class<?> returnType) {
@@ -179,4 +280,65 @@ public class FunctionDefinition implements Comparable<Object> {
 	Class<?> getReturnType() {
 		return returnType;
 	}
+	
+	/** Set whether the return value's type has been proven, so needn't be checked. */
+	void setReturnChecked(boolean returnChecked) {
+		this.returnChecked = returnChecked;
+	}
+	
+	/** True if the return value's type has been proven, so needn't be checked. */
+	boolean isReturnChecked() {
+		return returnChecked;
+	}
+	
+	/** Get an invocation of this function with no arguments or variables set, reusing one that 
+	 * has returned if there is one.
+	 */
+	FunctionInvocation obtainInvocation() {
+		if (pooledInvocationCount == 0)
+			return new FunctionInvocation(this);
+		var invocation = pooledInvocations[--pooledInvocationCount];
+		pooledInvocations[pooledInvocationCount] = null;
+		return invocation;
+	}
+	
+	/** Return an invocation of this function that has returned, so a later invocation can reuse it.
+	 * Nothing may refer to it afterwards.
+	 */
+	void releaseInvocation(FunctionInvocation invocation) {
+		if (pooledInvocationCount == maximumPooledInvocations || invocation.isCaptured())
+			return;
+		if (pooledInvocationCount == pooledInvocations.length)
+			pooledInvocations = Arrays.copyOf(pooledInvocations, pooledInvocationCount * 2);
+		invocation.clear();
+		pooledInvocations[pooledInvocationCount++] = invocation;
+	}
+	
+	/** Set the invocations a func value captured where it was defined. */
+	void setClosure(FunctionInvocation[] closure) {
+		this.closure = closure;
+	}
+	
+	/** Get the invocations a func value captured where it was defined, by level, or null if it captured none. */
+	FunctionInvocation[] getClosure() {
+		return closure;
+	}
+	
+	/** Count an invocation of this function.  Return true if it is hot. */
+	boolean countInvocation() {
+		if (!hot && ++invocationCount >= hotInvocations)
+			hot = true;
+		return hot;
+	}
+	
+	/** Make this function hot, as an earlier run found it to be. */
+	void setHot() {
+		hot = true;
+	}
+	
+	/** Count an iteration of a loop in this function. */
+	void countBackEdge() {
+		if (!hot && ++backEdgeCount >= hotBackEdges)
+			hot = true;
+	}
 }
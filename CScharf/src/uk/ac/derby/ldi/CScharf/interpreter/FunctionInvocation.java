@@ -1,34 +1,119 @@
 package uk.ac.derby.ldi.CScharf.interpreter;
 
-import java.util.Vector;
+import java.util.Arrays;
 
 import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueBoolean;
+import uk.ac.derby.ldi.CScharf.values.ValueDouble;
+import uk.ac.derby.ldi.CScharf.values.ValueFloat;
+import uk.ac.derby.ldi.CScharf.values.ValueInteger;
 
 /** Function invocation context. */
 public class FunctionInvocation implements Invocation {
 
 	private FunctionDefinition function;
 	private int argumentCount = 0;
-	private Vector<Value> slots;
+	// True if a func value has captured this invocation, so it must outlive its return.
+	private boolean captured = false;
 	
-	private final void setSlot(int n, Value v) {
-		if (n >= slots.size())
-			slots.setSize(n + 1);
-		
-		Value existingValue = slots.get(n);
-		
-		if (existingValue != null) {
-			if (existingValue.isConst())
-				throw new ExceptionSemantic("Cannot re-assign to constant value.");
+	// Slot storage.  Integers, booleans, floats and doubles are kept unboxed in longs or 
+	// doubles, according to their kind, and a Value is only created if one is asked for.  For these, values holds that Value, if one has been created since 
+	// the slot was last set, or null.  For any other kind of value, values holds the value.
+	private static final byte BOXED = 0;
+	private static final byte INTEGER = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte FLOAT = 3;
+	private static final byte DOUBLE = 4;
+	
+	private Value[] values;
+	private long[] longs;
+	private double[] doubles;
+	private byte[] kinds;
+	// True for slots holding a const variable.
+	private boolean[] constants;
+	// Number of slots in use, i.e. one more than the highest slot that has been set.
+	private int slotCount = 0;
+	
+	// Make room for slot n, and check it doesn't hold a constant.
+	private final void prepareSlot(int n) {
+		if (n >= slotCount) {
+			if (n >= values.length) {
+				var capacity = Math.max(n + 1, values.length * 2);
+				values = Arrays.copyOf(values, capacity);
+				longs = Arrays.copyOf(longs, capacity);
+				doubles = Arrays.copyOf(doubles, capacity);
+				kinds = Arrays.copyOf(kinds, capacity);
+				constants = Arrays.copyOf(constants, capacity);
+			}
+			slotCount = n + 1;
 		}
 		
-		slots.set(n, v);
+		if (constants[n])
+			throw new ExceptionSemantic("Cannot re-assign to constant value.");
+	}
+	
+	private final void setSlot(int n, Value v) {
+		prepareSlot(n);
+		
+		values[n] = v;
+		if (v == null)
+			kinds[n] = BOXED;
+		else if (v.getClass() == ValueInteger.class) {
+			kinds[n] = INTEGER;
+			longs[n] = v.longValue();
+		} else if (v.getClass() == ValueBoolean.class) {
+			kinds[n] = BOOLEAN;
+			longs[n] = v.booleanValue() ? 1 : 0;
+		} else if (v.getClass() == ValueFloat.class) {
+			kinds[n] = FLOAT;
+			doubles[n] = v.floatValue();
+		} else if (v.getClass() == ValueDouble.class) {
+			kinds[n] = DOUBLE;
+			doubles[n] = v.doubleValue();
+		} else
+			kinds[n] = BOXED;
 	}
 	
 	/** Ctor for user-defined function. */
 	public FunctionInvocation(FunctionDefinition fndef) {
 		function = fndef;
-		slots = new Vector<Value>(function.getLocalCount());
+		var capacity = Math.max(function.getLocalCount(), 1);
+		values = new Value[capacity];
+		longs = new long[capacity];
+		doubles = new double[capacity];
+		kinds = new byte[capacity];
+		constants = new boolean[capacity];
+	}
+	
+	/** Clear the arguments and variables of this invocation, so it can be reused for another
+	 * invocation of the same function.
+	 */
+	void clear() {
+		Arrays.fill(values, 0, slotCount, null);
+		Arrays.fill(kinds, 0, slotCount, BOXED);
+		Arrays.fill(constants, 0, slotCount, false);
+		slotCount = 0;
+		argumentCount = 0;
+	}
+	
+	/** Note that a func value has captured this invocation, so it mustn't be reused. */
+	void capture() {
+		captured = true;
+	}
+	
+	/** True if a func value has captured this invocation. */
+	boolean isCaptured() {
+		return captured;
+	}
+	
+	/** Get the invocations a func value captured where it was defined, by level, or null if it captured none. */
+	FunctionInvocation[] getClosure() {
+		return function.getClosure();
+	}
+	
+	/** Get the definition of the function invoked. */
+	FunctionDefinition getDefinition() {
+		return function;
 	}
 	
 	/** Get the level of the associated function. */
@@ -36,8 +121,14 @@ public class FunctionInvocation implements Invocation {
 		return function.getLevel();
 	}
 	
-	Vector<String> getSlotKeys() {
-		return function.getAllSlotKeys();
+	/** Get the number of slots in use by variables and parameters. */
+	int getSlotCount() {
+		return function.getSlotCount();
+	}
+	
+	/** Undefine the variables in the slots from a given one up. */
+	void truncateSlots(int slotCount) {
+		function.truncateSlots(slotCount);
 	}
 	
 	void removeSlot(String name) {
@@ -46,32 +137,25 @@ public class FunctionInvocation implements Invocation {
 	
 	/** Set an argument value. */
 	void setArgument(Value v) {
-		if (argumentCount >= function.getParameterCount())
-			throw new ExceptionSemantic("Function " + function.getSignature() + " expected " + function.getParameterCount() + " arguments but got " + (argumentCount + 1) + ".");
+		function.checkArgument(argumentCount, v);
 		
 		// First slots are always arguments
-		Class<?> parameterType = function.getParameterType(argumentCount);
-		Class<?> argType = v.getClass();
-		
-		if (parameterType != argType) {
-			throw new ExceptionSemantic("Cannot assign value of type: " + v.getClass() + " to parameter of type: " + parameterType + ". Are you missing a cast?");
-		}
-		
+		setSlot(argumentCount++, v);
+	}
+	
+	/** Set an argument value whose type and position the type checker has proven. */
+	void setCheckedArgument(Value v) {
 		setSlot(argumentCount++, v);
 	}
 	
 	/** Check argument count. */
 	void checkArgumentCount() {
-		if (argumentCount < function.getParameterCount())
-			throw new ExceptionSemantic("Function " + function.getSignature() + " expected " + function.getParameterCount() + " arguments but got " + argumentCount + ".");		
+		function.checkArgumentCount(argumentCount);
 	}
 	
 	/** Execute this invocation. */
 	Value execute(Parser parser) {
-		parser.doChildren(function.getFunctionBody(), null);
-		if (function.hasReturn())
-			return parser.doChild(function.getFunctionReturnExpression(), 0);
-		return null;
+		return parser.execute(function, this);
 	}
 
 	/** Get the slot number of a given variable or parameter name.  Return -1 if not found. */
@@ -79,15 +163,99 @@ public class FunctionInvocation implements Invocation {
 		return function.getLocalSlotNumber(name);
 	}
 	
+	/** Get the name of the variable or parameter in a given slot.  Return null if the slot is unused. */
+	String getSlotName(int slotNumber) {
+		return function.getSlotName(slotNumber);
+	}
+	
+	/** True if storage has been allocated for a given slot number, i.e. it or a later slot has been set. */
+	boolean hasSlot(int slotNumber) {
+		return slotNumber < slotCount;
+	}
+	
 	/** Get a variable or parameter value given a slot number. */
 	Value getValue(int slotNumber) {
-		return slots.get(slotNumber);
+		if (slotNumber >= slotCount)
+			throw new ArrayIndexOutOfBoundsException(slotNumber);
+		
+		var value = values[slotNumber];
+		if (value == null) {
+			switch (kinds[slotNumber]) {
+				case INTEGER: value = ValueInteger.valueOf(longs[slotNumber]); break;
+				case BOOLEAN: value = ValueBoolean.valueOf(longs[slotNumber] != 0); break;
+				case FLOAT: value = new ValueFloat((float)doubles[slotNumber]); break;
+				case DOUBLE: value = new ValueDouble(doubles[slotNumber]); break;
+				default: return null;
+			}
+			values[slotNumber] = value;
+		}
+		return value;
 	}
 
 	/** Given a slot number, set its value. */
 	void setValue(int slotNumber, Value value) {
 		setSlot(slotNumber, value);
 	}
+	
+	/** Given a slot number, set its value and make it constant. */
+	void setConstant(int slotNumber, Value value) {
+		setSlot(slotNumber, value);
+		constants[slotNumber] = true;
+	}
+	
+	/** True if a given slot holds an unboxed integer. */
+	boolean isLong(int slotNumber) {
+		return slotNumber < slotCount && kinds[slotNumber] == INTEGER;
+	}
+	
+	/** True if a given slot holds an unboxed boolean. */
+	boolean isBoolean(int slotNumber) {
+		return slotNumber < slotCount && kinds[slotNumber] == BOOLEAN;
+	}
+	
+	/** True if a given slot holds an unboxed double. */
+	boolean isDouble(int slotNumber) {
+		return slotNumber < slotCount && kinds[slotNumber] == DOUBLE;
+	}
+	
+	/** Get the unboxed integer in a given slot. */
+	long getLong(int slotNumber) {
+		return longs[slotNumber];
+	}
+	
+	/** Get the unboxed boolean in a given slot. */
+	boolean getBoolean(int slotNumber) {
+		return longs[slotNumber] != 0;
+	}
+	
+	/** Get the unboxed double in a given slot. */
+	double getDouble(int slotNumber) {
+		return doubles[slotNumber];
+	}
+	
+	/** Set a given slot to an unboxed integer. */
+	void setLong(int slotNumber, long value) {
+		prepareSlot(slotNumber);
+		values[slotNumber] = null;
+		kinds[slotNumber] = INTEGER;
+		longs[slotNumber] = value;
+	}
+	
+	/** Set a given slot to an unboxed boolean. */
+	void setBoolean(int slotNumber, boolean value) {
+		prepareSlot(slotNumber);
+		values[slotNumber] = null;
+		kinds[slotNumber] = BOOLEAN;
+		longs[slotNumber] = value ? 1 : 0;
+	}
+	
+	/** Set a given slot to an unboxed double. */
+	void setDouble(int slotNumber, double value) {
+		prepareSlot(slotNumber);
+		values[slotNumber] = null;
+		kinds[slotNumber] = DOUBLE;
+		doubles[slotNumber] = value;
+	}
 
 	/** Define a variable in the function definition.  Return its slot number. */
 	int defineVariable(String name) {
@@ -104,12 +272,14 @@ public class FunctionInvocation implements Invocation {
 		return function.findFunction(name);
 	}
 	
-	Vector<FunctionDefinition> getFunctions() {
-		return function.getFunctions();
+	/** Get the number of function definitions added. */
+	int getFunctionCount() {
+		return function.getFunctionCount();
 	}
 	
-	void removeFunction(String name) {
-		function.removeFunction(name);
+	/** Remove the function definitions added after a given number of them. */
+	void truncateFunctions(int functionCount) {
+		function.truncateFunctions(functionCount);
 	}
 	
 }
@@ -0,0 +1,163 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.util.ArrayList;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueClass;
+
+/** A small function compiled for execution in its caller's frame, without an invocation.
+ *
+ * A function is inlined if its body is empty and it returns a simple expression, like a getter,
+ * or it has no return value and its body only assigns a simple expression to a variable, like a
+ * setter.  A simple expression is made of literals, operators, parameters and plain variables,
+ * so it can't invoke anything.  Parameters are read from the argument values.  Other variables
+ * are resolved from the caller, so an inlined function is only used if none of them is defined
+ * at a level the caller can see but the function can't.
+ */
+final class InlinedFunction {
+
+	// Largest number of nodes in an inlined expression.
+	private static final int maximumSize = 16;
+
+	private final FunctionDefinition function;
+	// Argument values of the current execution, read by the expression's parameters.
+	private final Value[] arguments;
+	// Holds the argument values while they are evaluated, unless an argument expression executes
+	// the function again, when that execution uses an array of its own.
+	private final Value[] evaluatedArguments;
+	private boolean evaluating = false;
+	private final CompiledNode expression;
+	// Variable assigned by a setter.  Null if the function returns the expression.
+	private final ASTDereference target;
+	// Variables, other than parameters, that the function uses.
+	private final Display.Binding[] variables;
+
+	private InlinedFunction(FunctionDefinition function, Value[] arguments, CompiledNode expression, ASTDereference target, ArrayList<String> variableNames) {
+		this.function = function;
+		this.arguments = arguments;
+		evaluatedArguments = new Value[arguments.length];
+		this.expression = expression;
+		this.target = target;
+		variables = new Display.Binding[variableNames.size()];
+		for (int i = 0; i < variables.length; i++)
+			variables[i] = new Display.Binding(variableNames.get(i));
+	}
+
+	/** Return a given function inlined, or null if it can't be. */
+	static InlinedFunction inline(FunctionDefinition function, Compiler compiler) {
+		var body = function.getFunctionBody();
+		SimpleNode expressionNode;
+		ASTDereference target = null;
+		if (function.hasReturn()) {
+			if (body.jjtGetNumChildren() != 0)
+				return null;
+			expressionNode = (SimpleNode)function.getFunctionReturnExpression().jjtGetChild(0);
+		} else {
+			if (body.jjtGetNumChildren() != 1 || body.jjtGetChild(0).jjtGetNumChildren() != 1)
+				return null;
+			var assignment = body.jjtGetChild(0).jjtGetChild(0);
+			if (!(assignment instanceof ASTAssignment) || assignment.jjtGetNumChildren() != 2 || !(assignment.jjtGetChild(0) instanceof ASTDereference))
+				return null;
+			target = (ASTDereference)assignment.jjtGetChild(0);
+			if (target.jjtGetNumChildren() != 0 || isParameter(function, target.tokenValue))
+				return null;
+			expressionNode = (SimpleNode)assignment.jjtGetChild(1);
+		}
+
+		var variableNames = new ArrayList<String>();
+		if (target != null)
+			variableNames.add(target.tokenValue);
+		if (measure(expressionNode, function, variableNames) > maximumSize)
+			return null;
+
+		var arguments = new Value[function.getParameterCount()];
+		var expression = compiler.compileInline(expressionNode, function, arguments);
+		return new InlinedFunction(function, arguments, expression, target, variableNames);
+	}
+
+	// True if a given name is one of a function's parameters.
+	private static boolean isParameter(FunctionDefinition function, String name) {
+		for (int i = 0; i < function.getParameterCount(); i++)
+			if (function.getParameterName(i).equals(name))
+				return true;
+		return false;
+	}
+
+	// Return the number of nodes in a simple expression, collecting the variables it uses.  Return
+	// more than maximumSize if it isn't simple.
+	private static int measure(Node node, FunctionDefinition function, ArrayList<String> variableNames) {
+		if (node instanceof ASTDereference) {
+			if (node.jjtGetNumChildren() != 0)
+				return maximumSize + 1;
+			var name = ((SimpleNode)node).tokenValue;
+			if (!isParameter(function, name) && !variableNames.contains(name))
+				variableNames.add(name);
+			return 1;
+		}
+		if (node instanceof ASTPrimaryExpression && node.jjtGetNumChildren() != 1)
+			return maximumSize + 1;
+		if (!(node instanceof ASTPrimaryExpression || node instanceof ASTInteger || node instanceof ASTFloat || node instanceof ASTDouble
+				|| node instanceof ASTCharacter || node instanceof ASTTrue || node instanceof ASTFalse
+				|| node instanceof ASTOr || node instanceof ASTAnd || node instanceof ASTCompEqual || node instanceof ASTCompNequal
+				|| node instanceof ASTCompGTE || node instanceof ASTCompLTE || node instanceof ASTCompGT || node instanceof ASTCompLT
+				|| node instanceof ASTAdd || node instanceof ASTSubtract || node instanceof ASTTimes || node instanceof ASTDivide
+				|| node instanceof ASTModulo || node instanceof ASTUnaryNot || node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus))
+			return maximumSize + 1;
+		var size = 1;
+		for (int i = 0; i < node.jjtGetNumChildren() && size <= maximumSize; i++)
+			size += measure(node.jjtGetChild(i), function, variableNames);
+		return size;
+	}
+
+	/** The function that was inlined. */
+	FunctionDefinition getFunction() {
+		return function;
+	}
+
+	/** True if every variable the function uses, other than its parameters, resolves from
+	 * the current scope as it would in the function.
+	 */
+	boolean isVisible(Display scope) {
+		for (var binding : variables)
+			if (scope.bind(binding) && binding.getDisplayDepth() >= function.getLevel())
+				return false;
+		return true;
+	}
+
+	/** Execute the function for given argument expressions, in the current frame, with a given
+	 * receiver.  The arguments are only checked if the type checker hasn't proven them.  Return its
+	 * value, or null if it has none.
+	 */
+	Value execute(Parser parser, CompiledNode[] argumentExpressions, boolean checked, ValueClass receiver) {
+		Value[] values;
+		if (evaluating)
+			values = new Value[arguments.length];
+		else {
+			values = evaluatedArguments;
+			evaluating = true;
+		}
+		for (int i = 0; i < argumentExpressions.length; i++) {
+			var value = argumentExpressions[i].execute(parser);
+			if (!checked)
+				function.checkArgument(i, value);
+			values[i] = value;
+		}
+		if (!checked)
+			function.checkArgumentCount(argumentExpressions.length);
+		if (values == evaluatedArguments)
+			evaluating = false;
+
+		System.arraycopy(values, 0, arguments, 0, values.length);
+		var callerReceiver = parser.setReceiver(receiver);
+		try {
+			var value = expression.execute(parser);
+			if (target == null)
+				return value;
+			parser.untypedAssignment(target.tokenValue, value, target, null, false, false, false);
+			return null;
+		} finally {
+			parser.setReceiver(callerReceiver);
+		}
+	}
+}
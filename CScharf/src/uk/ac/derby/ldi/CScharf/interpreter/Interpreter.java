@@ -3,33 +3,107 @@ package uk.ac.derby.ldi.CScharf.interpreter;
 import uk.ac.derby.ldi.CScharf.parser.ast.ASTCode;
 import uk.ac.derby.ldi.CScharf.parser.ast.CScharf;
 import uk.ac.derby.ldi.CScharf.parser.ast.CScharfVisitor;
+import uk.ac.derby.ldi.CScharf.passes.PassManager;
 
 public class Interpreter {
 	
+	// Java stack reserved for each nested function call that is walked, and for everything else.
+	private static final long stackPerCall = 8 * 1024;
+	private static final long stackBase = 1024 * 1024;
+	// Most Java stack the program's thread asks for, however deep calls may nest.
+	private static final long maximumStack = 1024 * 1024 * 1024;
+	
+	private static final String outOfStack = "Out of stack space.  Use -depth to limit the nesting of function calls.";
+	
 	private static void usage() {
-		System.out.println("Usage: CScharf [-d1] < <source>");
+		System.out.println("Usage: CScharf [-d1] [-t | -c] [-vm] [-jvm] [-depth <n>] [-profile <file>] [-passes] [-disable <pass>]... < <source>");
 		System.out.println("          -d1 -- output AST");
+		System.out.println("          -t  -- execute by walking the AST, without compiling it");
+		System.out.println("          -c  -- compile the program and all functions before executing them");
+		System.out.println("          -vm -- evaluate operator expressions on the register virtual machine");
+		System.out.println("          -jvm -- compile the program and functions to JVM bytecode where possible");
+		System.out.println("          -depth <n> -- allow function calls to nest n deep (default " + Parser.defaultMaximumCallDepth + ")");
+		System.out.println("          -profile <file> -- start from the hot code and operand types recorded in file, and record this run's there");
+		System.out.println("          -passes -- report the time taken and nodes changed by each optimisation pass");
+		System.out.println("          -disable <pass> -- skip an optimisation pass (" + PassManager.createStandard().getPassNames() + ")");
 	}
 	
 	public static void main(String args[]) {
 		boolean debugAST = false;
-		if (args.length == 1) {
-			if (args[0].equals("-d1"))
+		boolean compile = true;
+		boolean tiered = true;
+		boolean useVirtualMachine = false;
+		boolean useBytecode = false;
+		int maximumCallDepth = Parser.defaultMaximumCallDepth;
+		String profileFile = null;
+		var passManager = PassManager.createStandard();
+		for (int i = 0; i < args.length; i++) {
+			var arg = args[i];
+			if (arg.equals("-d1"))
 				debugAST = true;
+			else if (arg.equals("-t"))
+				compile = false;
+			else if (arg.equals("-c"))
+				tiered = false;
+			else if (arg.equals("-vm"))
+				useVirtualMachine = true;
+			else if (arg.equals("-jvm"))
+				useBytecode = true;
+			else if (arg.equals("-depth") && i + 1 < args.length && args[i + 1].matches("[0-9]+"))
+				maximumCallDepth = Integer.parseInt(args[++i]);
+			else if (arg.equals("-profile") && i + 1 < args.length)
+				profileFile = args[++i];
+			else if (arg.equals("-passes"))
+				passManager.setReporting(true);
+			else if (arg.equals("-disable") && i + 1 < args.length && passManager.hasPass(args[i + 1]))
+				passManager.setEnabled(args[++i], false);
 			else {
 				usage();
 				return;
 			}
 		}
+		final boolean debug = debugAST;
+		final CScharfVisitor nodeVisitor = debug ? new ParserDebugger() : new Parser(compile, tiered, useVirtualMachine, useBytecode, maximumCallDepth);
+		
+		// Run on a thread whose stack can hold the deepest permitted nesting of function calls, up to
+		// maximumStack.  Calls between compiled functions are held on the heap, and nest as deep as
+		// the limit allows whatever the stack, but walked calls, calls made by JVM bytecode, and calls
+		// made within the parts of compiled functions that are walked, such as indexes and constructor
+		// arguments, nest on the Java stack.
+		final String profileFileName = profileFile;
+		var stackSize = stackBase + stackPerCall * Math.min(maximumCallDepth, (maximumStack - stackBase) / stackPerCall);
+		var thread = new Thread(null, () -> run(passManager, nodeVisitor, profileFileName), "CScharf", stackSize);
+		try {
+			thread.start();
+		} catch (OutOfMemoryError e) {
+			System.out.println(outOfStack);
+			return;
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// Parse the program read from standard input, run the passes over it, and execute it.  If a
+	// profile file is given, execution starts from the profile in it, and the profile is saved back
+	// to it once the program has run.
+	private static void run(PassManager passManager, CScharfVisitor nodeVisitor, String profileFileName) {
 		CScharf language = new CScharf(System.in);
 		try {
 			ASTCode parser = language.code();
-			CScharfVisitor nodeVisitor;
-			if (debugAST)
-				nodeVisitor = new ParserDebugger();
-			else
-				nodeVisitor = new Parser();
+			passManager.run(parser);
+			Profile profile = null;
+			if (profileFileName != null && nodeVisitor instanceof Parser) {
+				profile = Profile.load(profileFileName, parser);
+				((Parser)nodeVisitor).setProfile(profile);
+			}
 			parser.jjtAccept(nodeVisitor, null);
+			if (profile != null)
+				profile.save(profileFileName);
+		} catch (StackOverflowError e) {
+			System.out.println(outOfStack);
 		} catch (Throwable e) {
 			System.out.println(e.getMessage());
 		}
@@ -0,0 +1,115 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledExpressions.Invariant;
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+
+/** The loop-invariant expressions of a loop being compiled.
+ *
+ * An expression is invariant if it only reads literals and variables the loop never assigns,
+ * and the loop neither invokes anything nor assigns to an element or member, either of which
+ * could change what the expression reads.  Operator expressions and dereference chains such as
+ * a[1].b[2] that are invariant are hoisted: each is evaluated once per execution of the loop,
+ * on first use, so one the loop never reaches is never evaluated and any error it raises is
+ * raised where it would have been.  Invariant expressions with the same form share one value,
+ * whose type is tested when it is evaluated rather than on each use.
+ */
+final class LoopInvariants {
+
+	// Variables assigned, incremented, decremented or declared anywhere in the loop.
+	private final HashSet<String> assigned = new HashSet<String>();
+	// True if nothing the loop does can change what an invariant expression reads.
+	private final boolean pure;
+	// Hoisted expressions, by form.
+	private final LinkedHashMap<String, Invariant> invariants = new LinkedHashMap<String, Invariant>();
+
+	LoopInvariants(SimpleNode loop) {
+		pure = !CountedLoop.invokes(loop) && survey(loop);
+	}
+
+	// Collect the variables assigned in a subtree.  Return false if it assigns to an element or
+	// member, or defines a function.
+	private boolean survey(Node node) {
+		if (node instanceof ASTFnDef)
+			return false;
+		if (node instanceof ASTTypelessAssignment)
+			assigned.add(((SimpleNode)node.jjtGetChild(0)).tokenValue);
+		if (node instanceof ASTAssignment || CountedLoop.isIncrementDecrement(node)) {
+			for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+				var child = node.jjtGetChild(i);
+				if (child instanceof ASTDereference) {
+					if (child.jjtGetNumChildren() != 0)
+						return false;
+					assigned.add(((SimpleNode)child).tokenValue);
+				}
+			}
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!survey(node.jjtGetChild(i)))
+				return false;
+		return true;
+	}
+
+	/** True if a given expression is invariant and worth hoisting, i.e. it isn't just a literal or a variable. */
+	boolean isHoistable(SimpleNode expression) {
+		if (!pure)
+			return false;
+		while (expression instanceof ASTPrimaryExpression && expression.jjtGetNumChildren() == 1)
+			expression = (SimpleNode)expression.jjtGetChild(0);
+		if (expression.jjtGetNumChildren() == 0)
+			return false;
+		return isInvariant(expression);
+	}
+
+	// True if a given expression is invariant.
+	private boolean isInvariant(Node node) {
+		if (node instanceof ASTDereference) {
+			if (assigned.contains(((SimpleNode)node).tokenValue))
+				return false;
+		} else if (node instanceof ASTPrimaryExpression) {
+			if (node.jjtGetNumChildren() != 1)
+				return false;
+		} else if (!(node instanceof ASTIdentifier || node instanceof ASTInteger || node instanceof ASTFloat || node instanceof ASTDouble
+				|| node instanceof ASTCharacter || node instanceof ASTTrue || node instanceof ASTFalse
+				|| node instanceof ASTOr || node instanceof ASTAnd || node instanceof ASTCompEqual || node instanceof ASTCompNequal
+				|| node instanceof ASTCompGTE || node instanceof ASTCompLTE || node instanceof ASTCompGT || node instanceof ASTCompLT
+				|| node instanceof ASTAdd || node instanceof ASTSubtract || node instanceof ASTTimes || node instanceof ASTDivide
+				|| node instanceof ASTModulo || node instanceof ASTUnaryNot || node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus))
+			return false;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isInvariant(node.jjtGetChild(i)))
+				return false;
+		return true;
+	}
+
+	/** Return the hoisted form of a given invariant expression, sharing the value of any earlier one of the same form. */
+	Invariant hoist(SimpleNode expression, CompiledNode compiled) {
+		var form = getForm(expression, new StringBuilder()).toString();
+		var invariant = invariants.get(form);
+		if (invariant == null) {
+			invariant = new Invariant(compiled);
+			invariants.put(form, invariant);
+		}
+		return invariant;
+	}
+
+	// Describe the form of an expression, ignoring any primary expressions wrapping a single expression.
+	private static StringBuilder getForm(Node node, StringBuilder form) {
+		while (node instanceof ASTPrimaryExpression && node.jjtGetNumChildren() == 1)
+			node = node.jjtGetChild(0);
+		form.append(node.getClass().getSimpleName());
+		if (((SimpleNode)node).tokenValue != null)
+			form.append(' ').append(((SimpleNode)node).tokenValue.length()).append(':').append(((SimpleNode)node).tokenValue);
+		form.append('(');
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			getForm(node.jjtGetChild(i), form).append(i + 1 < node.jjtGetNumChildren() ? "," : "");
+		return form.append(')');
+	}
+
+	/** The hoisted expressions, which the loop resets each time it starts. */
+	Invariant[] getInvariants() {
+		return invariants.values().toArray(new Invariant[invariants.size()]);
+	}
+}
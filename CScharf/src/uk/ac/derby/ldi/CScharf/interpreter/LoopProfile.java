@@ -0,0 +1,41 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+/** What the tree-walker knows about a FOR or WHILE loop.
+ *
+ * A walked loop counts its iterations.  Once it has iterated hotBackEdges times it is
+ * compiled, and the walker hands the rest of the loop to the compiled form at the next
+ * back-edge (on-stack replacement).  Variables live in the display's slots, which the
+ * compiled form uses too, so the frame carries over as it is.
+ */
+final class LoopProfile {
+
+	private static final int hotBackEdges = 1000;
+
+	private final CountedLoop countedLoop;
+	private int backEdgeCount = 0;
+	private CompiledNode compiled = null;
+
+	LoopProfile(CountedLoop countedLoop) {
+		this.countedLoop = countedLoop;
+	}
+
+	/** The shape of a counted FOR loop.  Null if the loop isn't one. */
+	CountedLoop getCountedLoop() {
+		return countedLoop;
+	}
+
+	/** The compiled form of the loop.  Null if it hasn't been compiled. */
+	CompiledNode getCompiled() {
+		return compiled;
+	}
+
+	/** Count an iteration of the loop.  Return true if it is hot. */
+	boolean countBackEdge() {
+		return ++backEdgeCount >= hotBackEdges;
+	}
+
+	/** Set the compiled form of the loop. */
+	void setCompiled(CompiledNode compiled) {
+		this.compiled = compiled;
+	}
+}
@@ -3,18 +3,99 @@ package uk.ac.derby.ldi.CScharf.interpreter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.LinkedHashSet;
 import java.util.Vector;
 
 import uk.ac.derby.ldi.CScharf.CScharfUtil;
 import uk.ac.derby.ldi.CScharf.parser.ast.*;
 import uk.ac.derby.ldi.CScharf.values.*;
 import uk.ac.derby.ldi.CScharf.values.Modifier;
+import uk.ac.derby.ldi.CScharf.vm.Environment;
 
 public class Parser implements CScharfVisitor {	
 	// Scope display handler
-	private Display scope = new Display();
-	private Stack<ValueClass> openValueClasses = new Stack<ValueClass>();
+	private Display scope;
+	
+	// The instance whose members unqualified names refer to, if they aren't variables: the receiver
+	// of the method being executed.  A call saves it, sets it to the receiver of the method it calls,
+	// and restores it on return, so a call to a function that isn't a method keeps the caller's.
+	private ValueClass receiver = null;
+	// The receiver of the method findFunctionDefinition() last found.  Null if the function found
+	// isn't a method, or is one called without naming its receiver, which keeps the caller's.
+	private ValueClass foundReceiver = null;
+	// The receiver of the function findCallee() last found, or the reflected Java object whose 
+	// method it found instead.
+	private ValueClass calleeReceiver = null;
+	private Value reflectionTarget = null;
+	
+	// Lowers the AST into compiled execution trees.  Null if the AST is walked instead.
+	private Compiler compiler = null;
+	
+	// Compiles the program and functions to JVM bytecode.  Null if they aren't.
+	private BytecodeCompiler bytecodeCompiler = null;
+	
+	// Calls between compiled functions, made without nesting on the Java stack.
+	private final CallStack callStack = new CallStack(this);
+	
+	// If true, code is walked until it is hot, and only then compiled.
+	private boolean tiered = false;
+	
+	// The walked function currently being executed, whose loop back-edges are being counted.
+	private FunctionDefinition currentFunction = null;
+	
+	/** Default limit on the depth of nested function calls. */
+	public static final int defaultMaximumCallDepth = 10000;
+	
+	// What earlier runs learned about the program.  Null if profiles aren't in use.
+	private Profile programProfile = null;
+	
+	// Variable storage as seen by the virtual machine.
+	private final Environment environment = this::dereference;
+	
+	/** Ctor.  If compile is false, the AST is walked.  Otherwise, if tiered is true, functions
+	 * are walked until they are hot and then compiled; if tiered is false, the program and every 
+	 * function are compiled before they are executed.  If useVirtualMachine is true, compiled
+	 * operator expressions are compiled further to virtual machine code.  If useBytecode is true,
+	 * the program and functions are compiled to JVM bytecode where they can be, and compiled as
+	 * otherwise where they can't.  Function calls may nest no deeper than maximumCallDepth.
+	 */
+	public Parser(boolean compile, boolean tiered, boolean useVirtualMachine, boolean useBytecode, int maximumCallDepth) {
+		scope = new Display(maximumCallDepth);
+		if (compile)
+			compiler = new Compiler(useVirtualMachine);
+		if (compile && useBytecode)
+			bytecodeCompiler = new BytecodeCompiler();
+		this.tiered = compile && tiered;
+	}
+	
+	/** Ctor.  If compile is true, functions are compiled once they are hot;
+	 * otherwise they are executed by walking the AST.
+	 */
+	public Parser(boolean compile) {
+		this(compile, true, false, false, defaultMaximumCallDepth);
+	}
+	
+	/** Ctor for a tiered compiling Parser. */
+	public Parser() {
+		this(true);
+	}
+	
+	/** Start from what earlier runs learned about the program, and record what this run learns. */
+	void setProfile(Profile programProfile) {
+		this.programProfile = programProfile;
+		if (compiler != null)
+			compiler.setProfile(programProfile);
+	}
+	
+	// Get the scope display handler.  Used by compiled nodes.
+	Display getScope() {
+		return scope;
+	}
+	
+	// Get the variable storage used by virtual machine code.
+	Environment getEnvironment() {
+		return environment;
+	}
 	
 	// Get the ith child of a given node.
 	private static SimpleNode getChild(SimpleNode node, int childIndex) {
@@ -42,6 +123,73 @@ public class Parser implements CScharfVisitor {
 		return node.childrenAccept(this, data);
 	}
 	
+	// Execute a program.  A program only runs once, so it is walked unless everything is being
+	// compiled, or it is compiled to bytecode.
+	private void execute(ASTCode node) {
+		var program = (bytecodeCompiler != null) ? bytecodeCompiler.compileProgram(node) : null;
+		if (program != null)
+			program.execute(this);
+		else if (compiler != null && !tiered)
+			compiler.compile(node).execute(this);
+		else
+			doChildren(node, null);
+	}
+	
+	// Execute a function body for an invocation whose scope has been entered, and evaluate its
+	// return expression, if it has one.  A function is walked, counting its invocations and loop
+	// iterations, until it is hot.  It is then compiled and the compiled form is used for this
+	// and every later invocation.
+	Value execute(FunctionDefinition function, FunctionInvocation invocation) {
+		if (!compiles(function))
+			return walk(function);
+		var bytecode = compileBytecode(function);
+		if (bytecode != null)
+			return bytecode.execute(this, invocation);
+		return callStack.run(compiler.compileFunction(function));
+	}
+	
+	/** True if a function being invoked is to be executed in its compiled form.  Counts the
+	 * invocation of a function that is walked until it is hot.
+	 */
+	boolean compiles(FunctionDefinition function) {
+		return compiler != null && (!tiered || function.countInvocation());
+	}
+	
+	/** Compile a function to bytecode, if that hasn't been tried, and return how it is called.
+	 * Return null if it isn't compiled to bytecode.
+	 */
+	BytecodeFunction compileBytecode(FunctionDefinition function) {
+		return (bytecodeCompiler != null) ? bytecodeCompiler.compile(function) : null;
+	}
+	
+	/** Compile a function, if it hasn't been, and return its compiled form. */
+	CompiledFunction compileFunction(FunctionDefinition function) {
+		return compiler.compileFunction(function);
+	}
+	
+	/** Execute a function body and evaluate its return expression by walking them. */
+	Value walk(FunctionDefinition function) {
+		var caller = currentFunction;
+		currentFunction = function;
+		try {
+			doChildren(function.getFunctionBody(), null);
+			return function.hasReturn() ? doChild(function.getFunctionReturnExpression(), 0) : null;
+		} finally {
+			currentFunction = caller;
+		}
+	}
+	
+	// Get the stack of compiled function calls.  Used by compiled nodes.
+	CallStack getCallStack() {
+		return callStack;
+	}
+	
+	// Count a back-edge of a walked loop against the function it is in, if it is in one.
+	private void countBackEdge() {
+		if (tiered && currentFunction != null)
+			currentFunction.countBackEdge();
+	}
+	
 	// Called if one of the following methods is missing...
 	public Object visit(SimpleNode node, Object data) {
 		System.out.println(node + ": acceptor not implemented in subclass?");
@@ -50,7 +198,8 @@ public class Parser implements CScharfVisitor {
 	
 	// Execute a CScharf program
 	public Object visit(ASTCode node, Object data) {
-		return doChildren(node, data);	
+		execute(node);
+		return data;
 	}
 	
 	// Execute a statement
@@ -61,26 +210,14 @@ public class Parser implements CScharfVisitor {
 	// Execute a block
 	public Object visit(ASTBlock node, Object data) {
 		//Pre block execution
-		var preExistingVariables = scope.getAccessibleVariables();
-		var preExistingFunctions = scope.getAccessibleFunctions();
+		var variableCount = scope.getVariableCount();
+		var functionCount = scope.getFunctionCount();
 		
 		//Execution
 		var executionResult = doChildren(node, data);
 		
-		//Post block execution
-		var variablesAvailableAfterExecution = scope.getAccessibleVariables();
-		var functionsAvailableAfterExecution = scope.getAccessibleFunctions();
-				
-		variablesAvailableAfterExecution.removeAll(preExistingVariables);
-		functionsAvailableAfterExecution.removeAll(preExistingFunctions);
-		
-		for (var newVariable : variablesAvailableAfterExecution) {
-			scope.removeVariable(newVariable);
-		}
-		
-		for (var newFunction : functionsAvailableAfterExecution) {
-			scope.removeFunction(newFunction.getName());
-		}
+		//Post block execution: remove the variables and functions defined since the block was entered
+		scope.closeBlock(variableCount, functionCount);
 		
 		return executionResult;
 	}
@@ -104,6 +241,9 @@ public class Parser implements CScharfVisitor {
 		}
 		
 		currentFunctionDefinition.setReturnType(CScharfUtil.getClassFromString(getTokenOfChild(node, 0)));
+		currentFunctionDefinition.setReturnChecked(node.typeChecked);
+		if (programProfile != null && programProfile.isHot(getChild(node, 3)))
+			currentFunctionDefinition.setHot();
 		
 		node.optimised = currentFunctionDefinition;
 		return data;
@@ -131,68 +271,70 @@ public class Parser implements CScharfVisitor {
 	
 	// Function call
 	public Object visit(ASTCall node, Object data) {
-		int stackLength = openValueClasses.size();
-		FunctionDefinition fndef;
-		
-		var fnname = getTokenOfChild(node, 0);
-		fndef = scope.findFunction(fnname);
-		
-		if (fndef == null) {
-			var ref = scope.findReference(fnname);
-			
-			fndef = findFunctionDefinition(node, ref, fnname);
-			
-			if (fndef == null) {
-				var val = ref.getValue();
-				
-				if (val instanceof ValueReflection) {
-					return processReflectionCall(node, val);
-				}
-				
-				throw new ExceptionSemantic("Function " + fnname + " is undefined.");
-			}
-			
-			fnname = fndef.getName();
-		}
-				
-		var newInvocation = new FunctionInvocation(fndef);
-		doChild(node, 1, newInvocation);
-		var possibleValue = scope.execute(newInvocation, this);
-		
-		if (openValueClasses.size() > stackLength)
-			openValueClasses.pop();
-				
-		if (fndef.hasReturn()) {
-			var returnType = fndef.getReturnType();
-			 if (returnType != null) {
-				 if (possibleValue.getClass() != returnType)
-					 throw new ExceptionSemantic("Cannot return value of type " + possibleValue.getClass() + " from a function with a return type of " + returnType);
-			 } else {
-				 throw new ExceptionSemantic("Cannot return a value from a void method.");
-			 }
-		}
-		
+		invoke(node, null, false, null);
 		return data;
 	}
 	
 	// Function invocation in an expression
 	public Object visit(ASTFnInvoke node, Object data) {
-		int stackLength = openValueClasses.size();
+		return invoke(node, null, true, null);
+	}
+	
+	// Invoke the function named by child 0 of a call or invocation node.  The arguments are
+	// given by compiled argument expressions, or by the node's argument list (child 1) if
+	// they are null.  A compiled call site may execute a small function inlined.
+	Value invoke(SimpleNode node, CompiledNode[] arguments, boolean inExpression, CompiledExpressions.Invoke site) {
+		var fndef = findCallee(node, inExpression);
+		if (fndef == null)
+			return processReflectionCall(node, reflectionTarget, arguments);
+		var calleeReceiver = this.calleeReceiver;
+	
+		Value executionResult;
+		var inlined = (site != null) ? findInlined(fndef, site) : null;
+		if (inlined != null)
+			executionResult = inlined.execute(this, arguments, ((SimpleNode)node.jjtGetChild(1)).typeChecked, calleeReceiver);
+		else {
+			var newInvocation = prepareInvocation(fndef, node, arguments);
+			var callerReceiver = setReceiver(calleeReceiver);
+			try {
+				executionResult = scope.execute(newInvocation, this);
+			} finally {
+				setReceiver(callerReceiver);
+			}
+			fndef.releaseInvocation(newInvocation);
+		}
+		
+		return checkReturn(fndef, executionResult, inExpression);
+	}
+	
+	/** Find the function named by child 0 of a call or invocation node, and leave the receiver
+	 * it is to be called on in calleeReceiver.  Return null if it names a method of a reflected
+	 * Java object, which is left in reflectionTarget.
+	 */
+	FunctionDefinition findCallee(SimpleNode node, boolean inExpression) {
 		FunctionDefinition fndef;
+		calleeReceiver = receiver;
 
 		var fnname = getTokenOfChild(node, 0);
-		fndef = scope.findFunction(fnname);
+		if (node.optimised == null)
+			node.optimised = new CallSite(fnname);
+		var callSite = (CallSite)node.optimised;
+		fndef = scope.findFunction(callSite.getFunctionBinding());
 					
 		if (fndef == null) {
-			var ref = scope.findReference(fnname);
+			var ref = scope.bind(callSite.getVariableBinding()) ? callSite.getVariableBinding() : null;
 			
-			fndef = findFunctionDefinition(node, ref, fnname);
+			foundReceiver = null;
+			fndef = findFunctionDefinition(node, ref, fnname, callSite);
+			if (foundReceiver != null)
+				calleeReceiver = foundReceiver;
 			
 			if (fndef == null) {
-				var val = ref.getValue();
+				var val = (ref != null) ? scope.getValue(ref) : null;
 				
 				if (val instanceof ValueReflection) {
-					return processReflectionCall(node, val);
+					reflectionTarget = val;
+					return null;
 				}
 				
 				throw new ExceptionSemantic("Function " + fnname + " is undefined.");
@@ -201,44 +343,100 @@ public class Parser implements CScharfVisitor {
 			fnname = fndef.getName();
 		}
 		
-		if (!fndef.hasReturn())
+		if (inExpression && !fndef.hasReturn())
 			throw new ExceptionSemantic("Function " + fnname + " is being invoked in an expression but does not have a return value.");
+		return fndef;
+	}
 	
-		var newInvocation = new FunctionInvocation(fndef);
-		// Child 1 - arglist
-		doChild(node, 1, newInvocation);
-		// Execute
-		
-		var executionResult = scope.execute(newInvocation, this);
-		
-		if (openValueClasses.size() > stackLength)
-			openValueClasses.pop();
-				
-		if (fndef.getReturnType() != executionResult.getClass())
-			throw new ExceptionSemantic("Cannot return value of type " + executionResult.getClass() + " from a function with a return type of " + fndef.getReturnType());
+	/** Get the receiver of the function findCallee() last found. */
+	ValueClass getCalleeReceiver() {
+		return calleeReceiver;
+	}
+	
+	/** Get the reflected Java object whose method findCallee() last found. */
+	Value getReflectionTarget() {
+		return reflectionTarget;
+	}
+	
+	/** Return the inlined form of a function invoked at a compiled call site, or null if it
+	 * can't be executed inlined here.
+	 */
+	InlinedFunction findInlined(FunctionDefinition fndef, CompiledExpressions.Invoke site) {
+		var inlined = (fndef.getClosure() == null) ? site.inline(fndef, compiler) : null;
+		return (inlined != null && inlined.isVisible(scope)) ? inlined : null;
+	}
+	
+	/** Obtain an invocation of a function called by a call or invocation node, with its arguments
+	 * set from compiled argument expressions, or from the node's argument list if they are null.
+	 */
+	FunctionInvocation prepareInvocation(FunctionDefinition fndef, SimpleNode node, CompiledNode[] arguments) {
+		var newInvocation = fndef.obtainInvocation();
+		if (arguments == null) {
+			// Child 1 - arglist
+			doChild(node, 1, newInvocation);
+		} else if (((SimpleNode)node.jjtGetChild(1)).typeChecked) {
+			for (var argument : arguments)
+				newInvocation.setCheckedArgument(argument.execute(this));
+		} else {
+			for (var argument : arguments)
+				newInvocation.setArgument(argument.execute(this));
+			newInvocation.checkArgumentCount();
+		}
+		return newInvocation;
+	}
+	
+	/** Check the value returned by a function to a call or invocation node against its return type, and return it. */
+	Value checkReturn(FunctionDefinition fndef, Value executionResult, boolean inExpression) {
+		if (fndef.isReturnChecked())
+			return executionResult;
+		
+		if (inExpression) {
+			if (fndef.getReturnType() != executionResult.getClass())
+				throw new ExceptionSemantic("Cannot return value of type " + executionResult.getClass() + " from a function with a return type of " + fndef.getReturnType());
+		} else if (fndef.hasReturn()) {
+			var returnType = fndef.getReturnType();
+			 if (returnType != null) {
+				 if (executionResult.getClass() != returnType)
+					 throw new ExceptionSemantic("Cannot return value of type " + executionResult.getClass() + " from a function with a return type of " + returnType);
+			 } else {
+				 throw new ExceptionSemantic("Cannot return a value from a void method.");
+			 }
+		}
 		
 		return executionResult;
 	}
 	
-	private Value processReflectionCall(SimpleNode node, Value val) {
+	// Make a given instance the receiver of unqualified member names.  Return the previous receiver.
+	ValueClass setReceiver(ValueClass newReceiver) {
+		var previousReceiver = receiver;
+		receiver = newReceiver;
+		return previousReceiver;
+	}
+	
+	// Call the method of a reflected Java object named by a call or invocation node, with compiled
+	// argument expressions, or the node's argument list if they are null.
+	Value processReflectionCall(SimpleNode node, Value val, CompiledNode[] arguments) {
 		var derefNode = getChild(node, 0);
 		var argListNode = getChild(node, 1);
 		
 		var values = new ArrayList<Value>();
 		
 		for (var i = 0; i < argListNode.jjtGetNumChildren(); ++i) {
-			values.add(doChild(argListNode, i));
+			values.add(arguments == null ? doChild(argListNode, i) : arguments[i].execute(this));
 		}
 		
 		return ((ValueReflection) val).invokeMethod(getTokenOfChild(derefNode, 0), values);
 	}
 	
-	private FunctionDefinition findFunctionDefinition(SimpleNode node, Display.Reference ref, String funcName) {
+	// Find the function called by a call or invocation node whose name isn't a function's: a func
+	// value or method held by the variable a given binding is bound to, or if it is null, a method
+	// of the receiver or of an instance it holds.  The receiver of a method found is left in foundReceiver.
+	private FunctionDefinition findFunctionDefinition(SimpleNode node, Display.Binding ref, String funcName, CallSite callSite) {
 		FunctionDefinition fndef = null;
 		String fnname = funcName;
 		
 		if (ref != null) {
-			Value val = ref.getValue();
+			Value val = scope.getValue(ref);
 			
 			if (val instanceof ValueReflection) {
 				return null;
@@ -246,12 +444,12 @@ public class Parser implements CScharfVisitor {
 			
 			if (val instanceof ValueClass) {
 				var valClass = findValueClass(node.jjtGetChild(0), (ValueClass) val);
-				openValueClasses.push(valClass);
+				foundReceiver = valClass;
 				
 				var classDef = valClass.getClassDefinition();
 
 				if (classDef != null) {
-					fndef = classDef.findFunction(getTokenOfChild((SimpleNode) node.jjtGetChild(0), node.jjtGetChild(0).jjtGetNumChildren() - 1));
+					fndef = callSite.findMethod(classDef, getTokenOfChild((SimpleNode) node.jjtGetChild(0), node.jjtGetChild(0).jjtGetNumChildren() - 1));
 					fnname = fndef.getName();
 				} else {
 					if (node.jjtGetChild(0).jjtGetNumChildren() >= 1) {
@@ -275,42 +473,36 @@ public class Parser implements CScharfVisitor {
 					throw new ExceptionSemantic("Cannot invoke a value of type: " + val.getClass() + " like a function.");
 				}
 			}
-		} else {
-			ValueClass openValClass = null;
+		} else if (receiver != null) {
+			var classDef = receiver.getClassDefinition();
 			
-			for (var i = openValueClasses.size() - 1; i >= 0; --i) {
-				var classDef = openValueClasses.elementAt(i).getClassDefinition();
-				
-				if (classDef != null) {
-					if (classDef.findFunction(fnname) != null) {
-						fndef = classDef.findFunction(fnname);
-					} else {
-						var variable = openValueClasses.elementAt(i).getVariable(fnname);
-						if (variable != null && variable instanceof ValueClass) {
-							openValClass = findValueClass(node.jjtGetChild(0), (ValueClass) variable);
-								
-							var classDefinition = openValClass.getClassDefinition();
+			if (classDef != null) {
+				fndef = callSite.findMethod(classDef, fnname);
+				if (fndef == null) {
+					var variable = receiver.getVariable(fnname);
+					if (variable != null && variable instanceof ValueClass) {
+						var memberClass = findValueClass(node.jjtGetChild(0), (ValueClass) variable);
+						foundReceiver = memberClass;
+							
+						var classDefinition = memberClass.getClassDefinition();
 
-							if (classDefinition != null) {
-								fndef = classDefinition.findFunction(getTokenOfChild((SimpleNode) node.jjtGetChild(0), node.jjtGetChild(0).jjtGetNumChildren() - 1));
-								fnname = fndef.getName();
+						if (classDefinition != null) {
+							fndef = callSite.findMethod(classDefinition, getTokenOfChild((SimpleNode) node.jjtGetChild(0), node.jjtGetChild(0).jjtGetNumChildren() - 1));
+							fnname = fndef.getName();
+						} else {
+							if (node.jjtGetChild(0).jjtGetNumChildren() >= 1) {
+								variable = doChild(node, 0);
+							}
+							
+							if (variable.getClass() == ValueFn.class) {
+								fndef = ((ValueFn)variable).getFunctionDefinition();
 							} else {
-								if (node.jjtGetChild(0).jjtGetNumChildren() >= 1) {
-									variable = doChild(node, 0);
-								}
-								
-								if (variable.getClass() == ValueFn.class) {
-									fndef = ((ValueFn)variable).getFunctionDefinition();
-								} else {
-									throw new ExceptionSemantic("Cannot invoke a value of type: " + variable.getClass() + " like a function.");
-								}
+								throw new ExceptionSemantic("Cannot invoke a value of type: " + variable.getClass() + " like a function.");
 							}
 						}
 					}
-				} 
+				}
 			}
-			
-			openValueClasses.push(openValClass);
 		}
 		
 		return fndef;
@@ -320,6 +512,12 @@ public class Parser implements CScharfVisitor {
 	public Object visit(ASTArgList node, Object data) {
 		var newInvocation = (FunctionInvocation)data;
 		
+		if (node.typeChecked) {
+			for (int i=0; i<node.jjtGetNumChildren(); i++)
+				newInvocation.setCheckedArgument(doChild(node, i));
+			return data;
+		}
+		
 		for (int i=0; i<node.jjtGetNumChildren(); i++)
 			newInvocation.setArgument(doChild(node, i));
 		newInvocation.checkArgumentCount();
@@ -346,8 +544,29 @@ public class Parser implements CScharfVisitor {
 		if (assignmentNode.jjtGetChild(0) instanceof ASTModifier)
 			throw new ExceptionSemantic("Cannot apply const/readonly to variable used for loop initialisation.");
 		
+		// a hot loop runs in compiled form
+		var profile = getLoopProfile(node);
+		if (profile.getCompiled() != null) {
+			profile.getCompiled().execute(this);
+			return data;
+		}
+		
 		// loop initialisation
 		doChild(node, 0);
+		if (profile.getCountedLoop() != null)
+			doCountedLoop(node, profile);
+		else
+			doForLoop(node, profile);
+		
+		if (assignmentNode.jjtGetNumChildren() == 3) {
+			scope.removeVariable(((SimpleNode)assignmentNode.jjtGetChild(1)).tokenValue);
+		}
+
+		return data;
+	}
+	
+	// Execute the iterations of a FOR loop
+	private void doForLoop(ASTForLoop node, LoopProfile profile) {
 		while (true) {
 			// evaluate loop test
 			var hopefullyValueBoolean = doChild(node, 1);
@@ -361,17 +580,68 @@ public class Parser implements CScharfVisitor {
 			doChild(node, 3);
 			// assign loop increment
 			doChild(node, 2);
+			
+			var compiled = countBackEdge(node, profile);
+			if (compiled != null) {
+				resumeLoop(compiled);
+				return;
+			}
+		}
+	}
+	
+	// Execute the iterations of a counted FOR loop with a native counter.  If the counter or
+	// bound turn out not to be integers, continue as an ordinary FOR loop.
+	private void doCountedLoop(ASTForLoop node, LoopProfile profile) {
+		var loop = profile.getCountedLoop();
+		var hopefullyValueInteger = (Value)loop.getBound().jjtAccept(this, null);
+		var binding = loop.getBinding();
+		if (hopefullyValueInteger == null || hopefullyValueInteger.getClass() != ValueInteger.class || !scope.bind(binding)) {
+			doForLoop(node, profile);
+			return;
+		}
+		var invocation = scope.getInvocation(binding);
+		var slotNumber = binding.getSlotNumber();
+		if (!invocation.isLong(slotNumber)) {
+			doForLoop(node, profile);
+			return;
 		}
 		
-		if (assignmentNode.jjtGetNumChildren() == 3) {
-			scope.removeVariable(((SimpleNode)assignmentNode.jjtGetChild(1)).tokenValue);
+		var bound = hopefullyValueInteger.longValue();
+		var counter = invocation.getLong(slotNumber);
+		while (loop.test(counter, bound)) {
+			if (loop.isSynchronised())
+				invocation.setLong(slotNumber, counter);
+			doChild(node, 3);
+			if (loop.isSynchronised()) {
+				if (!invocation.isLong(slotNumber)) {
+					doChild(node, 2);
+					countBackEdge();
+					doForLoop(node, profile);
+					return;
+				}
+				counter = invocation.getLong(slotNumber);
+			}
+			counter += loop.getStep();
+			
+			var compiled = countBackEdge(node, profile);
+			if (compiled != null) {
+				invocation.setLong(slotNumber, counter);
+				resumeLoop(compiled);
+				return;
+			}
 		}
-
-		return data;
+		invocation.setLong(slotNumber, counter);
 	}
 	
 	// Execute a WHILE loop
 	public Object visit(ASTWhileLoop node, Object data) {
+		// a hot loop runs in compiled form
+		var profile = getLoopProfile(node);
+		if (profile.getCompiled() != null) {
+			profile.getCompiled().execute(this);
+			return data;
+		}
+		
 		while (true) {
 			var hopefullyValueBoolean = doChild(node, 0);
 			
@@ -381,11 +651,48 @@ public class Parser implements CScharfVisitor {
 				break;
 			
 			doChild(node, 1);
+			
+			var compiled = countBackEdge(node, profile);
+			if (compiled != null) {
+				resumeLoop(compiled);
+				break;
+			}
 		}
 		
 		return data;
 	}
 	
+	// Get the profile of a walked loop, creating it on first use.  A loop an earlier run found
+	// to be hot is compiled straight away.
+	private LoopProfile getLoopProfile(SimpleNode node) {
+		if (node.optimised == null) {
+			var loopProfile = new LoopProfile((node instanceof ASTForLoop) ? CountedLoop.analyse((ASTForLoop)node) : null);
+			if (compiler != null && programProfile != null && programProfile.isHot(node))
+				loopProfile.setCompiled(compiler.compileLoop(node));
+			node.optimised = loopProfile;
+		}
+		return (LoopProfile)node.optimised;
+	}
+	
+	// Count an iteration of a walked loop.  If the loop has become hot, return its compiled form
+	// so the walker can hand the remaining iterations to it.  Otherwise return null.
+	private CompiledNode countBackEdge(SimpleNode node, LoopProfile profile) {
+		countBackEdge();
+		if (compiler == null || !profile.countBackEdge())
+			return null;
+		if (profile.getCompiled() == null)
+			profile.setCompiled(compiler.compileLoop(node));
+		return profile.getCompiled();
+	}
+	
+	// Continue a walked loop in compiled form, from its next test.
+	private void resumeLoop(CompiledNode compiled) {
+		if (compiled instanceof CompiledStatements.For)
+			((CompiledStatements.For)compiled).resume(this);
+		else
+			compiled.execute(this);
+	}
+	
 	// Process an identifier
 	// This doesn't do anything, but needs to be here because we need an ASTIdentifier node.
 	public Object visit(ASTIdentifier node, Object data) {
@@ -412,38 +719,57 @@ public class Parser implements CScharfVisitor {
 	
 	// Dereference a variable or parameter, and return its value.
 	public Object visit(ASTDereference node, Object data) {	
-		Display.Reference reference;
+		if (node.member)
+			return (node.jjtGetNumChildren() == 0) ? dereferenceMember(node.tokenValue) : processGet(dereferenceMember(node.tokenValue), node);
 		
-		String name = node.tokenValue;
-		reference = scope.findReference(name);
-		if (reference == null) {
-			for(var i = openValueClasses.size() - 1; i >= 0 ; --i) {
-				var valClass = openValueClasses.elementAt(i);
+		if (node.optimised == null)
+			node.optimised = new Display.Binding(node.tokenValue);
+		var binding = (Display.Binding)node.optimised;
+		
+		if (node.jjtGetNumChildren() == 0)
+			return dereference(binding);
+		
+		if (!scope.bind(binding)) {
+			if (receiver != null) {
+				var value = processGet(receiver.getVariable(binding.getName()), node);
 				
-				if (node.jjtGetNumChildren() == 0) {
-					var value = valClass.getVariable(name);
-					if (value != null) {
-						return value;
-					}
-				} else {
-					var container = valClass.getVariable(name);
-					var value = processGet(container, node);
-					
-					if (value != null) {
-						return value;
-					}
+				if (value != null) {
+					return value;
 				}
 			}
 
-			throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
+			throw new ExceptionSemantic("Variable or parameter " + binding.getName() + " is undefined.");
 		}
-	
-		var value = reference.getValue();
 		
-		//If this is a member access case or index access case (i.e. obj.var/arr[0])
-		if (node.jjtGetNumChildren() >= 1) value = processGet(value, node);
+		//This is a member access case or index access case (i.e. obj.var/arr[0])
+		return processGet(scope.getValue(binding), node);
+	}
+	
+	// Dereference a plain variable, parameter or member of the receiver by name.
+	Value dereference(String name) {
+		var reference = scope.findReference(name);
+		if (reference != null)
+			return reference.getValue();
+		return dereferenceMember(name);
+	}
+	
+	// Dereference a plain variable, parameter or member of the receiver, given its binding.
+	Value dereference(Display.Binding binding) {
+		if (scope.bind(binding))
+			return scope.getValue(binding);
+		return dereferenceMember(binding.getName());
+	}
+	
+	// Dereference a member of the receiver by name.
+	Value dereferenceMember(String name) {
+		if (receiver != null) {
+			var value = receiver.getVariable(name);
+			if (value != null) {
+				return value;
+			}
+		}
 		
-		return value;
+		throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
 	}
 	
 	private ValueClass findValueClass(Node node, ValueClass container) {
@@ -596,20 +922,19 @@ public class Parser implements CScharfVisitor {
 		}
 	}
 	
-	private Object untypedAssignment(String name, Value valToAssign, ASTDereference derefNode, Object data, boolean isIncOrDec, boolean increment, boolean prefix) {
+	Object untypedAssignment(String name, Value valToAssign, ASTDereference derefNode, Object data, boolean isIncOrDec, boolean increment, boolean prefix) {
 		Display.Reference reference;
 		ValueClass owningClass = null;
 		Value existingValue = null;
 		var classMember = false;	
-		reference = scope.findReference(name);
+		reference = derefNode.member ? null : scope.findReference(name);
 		
 		if (reference == null) {
-			for(var i = openValueClasses.size() - 1; i >= 0 ; --i) {
-				var valClass = openValueClasses.elementAt(i);
-				var value = valClass.getVariable(name);
+			if (receiver != null) {
+				var value = receiver.getVariable(name);
 				if (value != null) {
 					existingValue = value;
-					owningClass = valClass;
+					owningClass = receiver;
 					classMember = true;
 				}
 			}
@@ -637,16 +962,16 @@ public class Parser implements CScharfVisitor {
 				if (existingValue != null) {
 					if (existingValue instanceof ValueArray || existingValue instanceof ValueContainer) {
 						valToAssign = processGet(existingValue, (ASTDereference) derefNode);
-						valToAssign = increment ? valToAssign.add(new ValueInteger(1)) : valToAssign.subtract(new ValueInteger(1));
+						valToAssign = increment ? valToAssign.add(ValueInteger.valueOf(1)) : valToAssign.subtract(ValueInteger.valueOf(1));
 					} else {
-						if (increment) valToAssign = existingValue.add(new ValueInteger(1));
-						else valToAssign = existingValue.subtract(new ValueInteger(1));
+						if (increment) valToAssign = existingValue.add(ValueInteger.valueOf(1));
+						else valToAssign = existingValue.subtract(ValueInteger.valueOf(1));
 					}
 				}
 			}
 		}
 		
-		if (valToAssign.getClass().equals(existingValue.getClass()) && derefNode.jjtGetNumChildren() <= 0) {
+		if ((derefNode.typeChecked || valToAssign.getClass().equals(existingValue.getClass())) && derefNode.jjtGetNumChildren() <= 0) {
 			if (classMember) 
 				owningClass.setVariable(name, valToAssign);
 			else
@@ -661,8 +986,6 @@ public class Parser implements CScharfVisitor {
 	}
 
 	private Object typedAssignment(ASTAssignment node, Object data) {
-		Display.Reference reference;
-		
 		var childCount = node.jjtGetNumChildren();
 
 		/*
@@ -671,24 +994,31 @@ public class Parser implements CScharfVisitor {
 		 * childCount - 3 = type of variable
 		 * childCount - 4 = modifier
 		 */
-				
-		var name = getTokenOfChild(node, childCount - 2);
-		reference = scope.findReference(name);
-		if (reference == null) {
-			reference = scope.defineVariable(name);
-		}
-		else {
-			try {
-				reference.getValue();
-				throw new ExceptionSemantic("Variable '" + name + "' has already been defined in this scope.");
-			} catch (Exception e) {
-				reference = scope.defineVariable(name);
-			}
-		}
 		
+		if (node.optimised == null)
+			node.optimised = new Display.Binding(getTokenOfChild(node, childCount - 2));
+		var binding = (Display.Binding)node.optimised;
+		
+		defineAssignedVariable(binding);
 		var valToAssign = doChild(node, childCount - 1);
 		var specifiedType = CScharfUtil.getClassFromString(getTokenOfChild(node, childCount - 3));
 		
+		assignTyped(binding, valToAssign, specifiedType, childCount == 4 ? getTokenOfChild(node, 0) : null, node.typeChecked);
+
+		return data;
+	}
+	
+	// Define the variable declared by a typed assignment, and bind its name to it.
+	void defineAssignedVariable(Display.Binding binding) {
+		if (scope.bind(binding) && scope.isAssigned(binding))
+			throw new ExceptionSemantic("Variable '" + binding.getName() + "' has already been defined in this scope.");
+		
+		scope.defineVariable(binding);
+	}
+	
+	// Assign the value of a typed assignment to the variable it defines, given its declared type and optional modifier.
+	// The value's type isn't checked if the type checker has already proven it.
+	void assignTyped(Display.Binding binding, Value valToAssign, Class<?> specifiedType, String modifier, boolean typeChecked) {
 		if (specifiedType == null) {
 			throw new ExceptionSemantic("Cannot use void as a variable type.");
 		}
@@ -698,47 +1028,49 @@ public class Parser implements CScharfVisitor {
 		}
 
 		
-		if (!valToAssign.getClass().equals(specifiedType)) {
+		if (!typeChecked && !valToAssign.getClass().equals(specifiedType)) {
 			throw new ExceptionSemantic("Cannot assign value of type: " + valToAssign.getClass() + " to variable of type: " + specifiedType + ". Are you missing a cast?");
 		}
 		
-		if (childCount == 4) {
-			if (getTokenOfChild(node, childCount - 4).equals("const")) {
-				valToAssign.setConst();
+		if (modifier != null) {
+			if (modifier.equals("const")) {
+				scope.setConstant(binding, valToAssign);
+				return;
 			} else {
 				throw new ExceptionSemantic("Cannot declare a readonly variable outside of a class.");
 			}
 		}
 		
-		reference.setValue(valToAssign);
-
-		return data;
+		scope.setValue(binding, valToAssign);
 	}
 
+	// Define a variable without a declared type, and assign it.  The members of anonymous objects
+	// are written this way, but only statements produced by passes are executed this way.
 	public Object visit(ASTTypelessAssignment node, Object data) {
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				reference = scope.defineVariable(name);
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
-		
-		reference.setValue(doChild(node, 1));
+		if (node.optimised == null)
+			node.optimised = new Display.Binding(getTokenOfChild(node, 0));
+		var binding = (Display.Binding)node.optimised;
+		
+		defineAssignedVariable(binding);
+		scope.setValue(binding, doChild(node, 1));
 
 		return data;
 	}
 	
-	// OR
+	// OR.  The right operand isn't evaluated if the left is true.
 	public Object visit(ASTOr node, Object data) {
-		return doChild(node, 0).or(doChild(node, 1));
+		var left = doChild(node, 0);
+		if (left.getClass() == ValueBoolean.class && left.booleanValue())
+			return left;
+		return left.or(doChild(node, 1));
 	}
 
-	// AND
+	// AND.  The right operand isn't evaluated if the left is false.
 	public Object visit(ASTAnd node, Object data) {
-		return doChild(node, 0).and(doChild(node, 1));
+		var left = doChild(node, 0);
+		if (left.getClass() == ValueBoolean.class && !left.booleanValue())
+			return left;
+		return left.and(doChild(node, 1));
 	}
 
 	// ==
@@ -836,7 +1168,7 @@ public class Parser implements CScharfVisitor {
 	// Return integer literal
 	public Object visit(ASTInteger node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueInteger(Long.parseLong(node.tokenValue));
+			node.optimised = ValueInteger.valueOf(Long.parseLong(node.tokenValue));
 		return node.optimised;
 	}
 	
@@ -857,14 +1189,14 @@ public class Parser implements CScharfVisitor {
 	// Return true literal
 	public Object visit(ASTTrue node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueBoolean(true);
+			node.optimised = ValueBoolean.TRUE;
 		return node.optimised;
 	}
 
 	// Return false literal
 	public Object visit(ASTFalse node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueBoolean(false);
+			node.optimised = ValueBoolean.FALSE;
 		return node.optimised;
 	}
 
@@ -930,7 +1262,7 @@ public class Parser implements CScharfVisitor {
 		for(var i = 0; i < node.jjtGetNumChildren(); ++i) {
 			SimpleNode classBodyChildNode = getChild(node, i);
 			if (classBodyChildNode instanceof ASTClassConstructor) {
-				doChild(node, i);
+				doChild(node, i, classDef);
 			} else if (classBodyChildNode instanceof ASTAssignment) {
 				var childrenCount = classBodyChildNode.jjtGetNumChildren();
 				var modifier = Modifier.NONE;
@@ -967,6 +1299,9 @@ public class Parser implements CScharfVisitor {
 				}
 				
 				functionDefinition.setReturnType(CScharfUtil.getClassFromString(getTokenOfChild(classBodyChildNode, 0)));
+				functionDefinition.setReturnChecked(classBodyChildNode.typeChecked);
+				if (programProfile != null && programProfile.isHot(getChild(classBodyChildNode, 3)))
+					functionDefinition.setHot();
 				
 				classDef.addFunction(functionDefinition);
 			} else if (classBodyChildNode instanceof ASTClassDef) {
@@ -999,58 +1334,64 @@ public class Parser implements CScharfVisitor {
 		var currentFunctionDefinition = new FunctionDefinition(constructorName, scope.getLevel() + 1);
 		doChild(node, 1, currentFunctionDefinition);
 		
-		scope.addFunction(currentFunctionDefinition);
+		((ClassDefinition)data).addConstructor(currentFunctionDefinition);
 		currentFunctionDefinition.setFunctionBody(getChild(node, 2));
 				
 		return data;
 	}
 	
+	// Class instantiation.  The class and the constructor last used are cached at the site, and
+	// the constructor is chosen by the types of the arguments, which are evaluated once.
 	public Object visit(ASTClassInstance node, Object data) {
-		
-		FunctionDefinition fndef;
-		ValueClass valClass = null;
-		
-		var classDef = scope.findClass(getTokenOfChild(node, 0));
-		
-		if (classDef == null) {
-			throw new ExceptionSemantic("Class " + getTokenOfChild(node, 0) + " could not be found.");
-		}
-		
-		if (node.jjtGetNumChildren() > 2) {
-			for (var i = 1; i < node.jjtGetNumChildren() - 1; ++i) {
-				classDef = classDef.findClass(getTokenOfChild(node, i));
+		var site = (ConstructorSite)node.optimised;
+		if (site == null) {
+			var classDef = scope.findClass(getTokenOfChild(node, 0));
+			
+			if (classDef == null) {
+				throw new ExceptionSemantic("Class " + getTokenOfChild(node, 0) + " could not be found.");
 			}
+			
+			if (node.jjtGetNumChildren() > 2) {
+				for (var i = 1; i < node.jjtGetNumChildren() - 1; ++i) {
+					classDef = classDef.findClass(getTokenOfChild(node, i));
+				}
+			}
+			
+			site = new ConstructorSite(classDef);
+			node.optimised = site;
 		}
-
-		var constructorName = classDef.getName() + " Constructor(";
-		var argListNode = node.jjtGetChild(node.jjtGetNumChildren() - 1);
-		
-		for (var i = 0; i < argListNode.jjtGetNumChildren(); ++i) {
-			var val = doChild((SimpleNode)argListNode, i);
-			constructorName = constructorName + CScharfUtil.getStringFromClass(val.getClass()) + ",";
-		}
-		
-		constructorName = constructorName.substring(0, constructorName.length() - 1) + ")";
 		
-		valClass = new ValueClass(classDef);
+		var classDef = site.getClassDefinition();
+		var argListNode = getChild(node, node.jjtGetNumChildren() - 1);
+		var arguments = new Value[argListNode.jjtGetNumChildren()];
 		
-		//This allows the constructor to modify the value class variables
-		openValueClasses.push(valClass);
+		for (var i = 0; i < arguments.length; ++i) {
+			arguments[i] = doChild(argListNode, i);
+		}
 		
-		fndef = scope.findFunction(constructorName);
+		var fndef = site.findConstructor(arguments);
 		
 		if (fndef == null) {
 			throw new ExceptionSemantic("Could not find compatible constructor for class:  " + classDef.getName() + ".");
 		}
-
-		var newInvocation = new FunctionInvocation(fndef);
-		doChild(node, node.jjtGetNumChildren() - 1, newInvocation);
 		
+		var valClass = new ValueClass(classDef);
+		
+		var newInvocation = fndef.obtainInvocation();
+		for (var argument : arguments) {
+			newInvocation.setCheckedArgument(argument);
+		}
+		
+		//This allows the constructor to modify the value class variables
+		var callerReceiver = setReceiver(valClass);
 		valClass.setInConstructor(true);		
-		scope.execute(newInvocation, this);
+		try {
+			scope.execute(newInvocation, this);
+		} finally {
+			setReceiver(callerReceiver);
+		}
 		valClass.setInConstructor(false);
-		
-		openValueClasses.pop();
+		fndef.releaseInvocation(newInvocation);
 		
 		return valClass;
 	}
@@ -1083,7 +1424,15 @@ public class Parser implements CScharfVisitor {
 		return data;
 	}
 			
+	// Func value.  It captures the invocations of the enclosing functions that hold the variables
+	// and functions it names, so it runs in the scopes it was defined in wherever it is invoked.
 	public Object visit(ASTFn node, Object data) {
+		if (node.optimised == null) {
+			var names = new LinkedHashSet<String>();
+			collectNames(node, names);
+			node.optimised = names.toArray(new String[names.size()]);
+		}
+		
 		var valueFunction = new ValueFn();
 		var funcDef = new FunctionDefinition("", scope.getLevel() + 1);
 		
@@ -1096,18 +1445,24 @@ public class Parser implements CScharfVisitor {
 		
 		funcDef.setReturnType(CScharfUtil.getClassFromString(getTokenOfChild(node, 0)));
 		
+		funcDef.setClosure(scope.capture((String[])node.optimised));
+		
 		valueFunction.setFunctionDefinition(funcDef);
-		node.optimised = valueFunction;
-				
-		return node.optimised;
+		
+		return valueFunction;
+	}
+	
+	// Collect the variable and function names used in a given subtree.
+	private static void collectNames(Node node, LinkedHashSet<String> names) {
+		if (node instanceof ASTDereference)
+			names.add(((SimpleNode)node).tokenValue);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			collectNames(node.jjtGetChild(i), names);
 	}
 
 	public Object visit(ASTAnon node, Object data) {
 		ValueAnonymousType obj = new ValueAnonymousType();
 		
-		if (node.optimised == null)
-			node.optimised = obj;
-		
 		int children = node.jjtGetNumChildren();
 		
 		for(int i = 0; i < children; ++i) {
@@ -1115,7 +1470,7 @@ public class Parser implements CScharfVisitor {
 			obj.addValue(getTokenOfChild(assignmentNode, 0), doChild(assignmentNode, 1));
 		}
 				
-		return node.optimised;
+		return obj;
 	}
 
 	public Object visit(ASTArray node, Object data) {
@@ -0,0 +1,132 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import uk.ac.derby.ldi.CScharf.interpreter.CompiledExpressions.Specialising;
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+
+/** What a run of a program learned about it, saved so that later runs of the same program
+ * start with it instead of learning it again.
+ *
+ * A profile records the functions and loops that became hot, and the operand types each
+ * compiled operator specialised to.  Sites are numbered by their position in the AST, and
+ * a profile is only used for a program whose AST has the same fingerprint as the one it was
+ * recorded for.  A function or loop recorded as hot is compiled on its first execution, and
+ * an operator starts in its recorded state; its guards still revert it if the types differ.
+ */
+final class Profile {
+
+	private static final String header = "CScharf profile";
+
+	// The program profiled, and the number of each of its sites.
+	private final ASTCode program;
+	private final IdentityHashMap<Node, Integer> sites = new IdentityHashMap<Node, Integer>();
+	private final String fingerprint;
+
+	// Recorded facts: sites of hot function bodies and loops, and states of operators.
+	private final TreeSet<Integer> hot = new TreeSet<Integer>();
+	private final TreeMap<Integer, Integer> states = new TreeMap<Integer, Integer>();
+
+	// Operators compiled during this run, by site.
+	private final HashMap<Integer, ArrayList<Specialising>> operators = new HashMap<Integer, ArrayList<Specialising>>();
+
+	private Profile(ASTCode program) {
+		this.program = program;
+		var description = new StringBuilder();
+		number(program, description);
+		fingerprint = Integer.toHexString(sites.size()) + "-" + Integer.toHexString(description.toString().hashCode());
+	}
+
+	// Number the sites in a given subtree, in pre-order, and describe it.
+	private void number(Node node, StringBuilder description) {
+		sites.put(node, sites.size());
+		description.append(node.getClass().getSimpleName()).append(' ').append(((SimpleNode)node).tokenValue).append('(');
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			number(node.jjtGetChild(i), description);
+		description.append(')');
+	}
+
+	/** Return the profile saved in a given file for a given program.  If there is none, or it was
+	 * saved for a different program, return an empty one.
+	 */
+	static Profile load(String fileName, ASTCode program) {
+		var profile = new Profile(program);
+		try (var reader = new BufferedReader(new FileReader(fileName))) {
+			if (!(header + " " + profile.fingerprint).equals(reader.readLine()))
+				return profile;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				var fields = line.split(" ");
+				if (fields[0].equals("hot") && fields.length == 2)
+					profile.hot.add(Integer.parseInt(fields[1]));
+				else if (fields[0].equals("types") && fields.length == 3)
+					profile.states.put(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+			}
+		} catch (IOException | NumberFormatException e) {
+			profile.hot.clear();
+			profile.states.clear();
+		}
+		return profile;
+	}
+
+	/** Save this profile, including what has been learned during this run, to a given file. */
+	void save(String fileName) throws IOException {
+		record(program);
+		for (var entry : operators.entrySet()) {
+			var state = Specialising.UNINITIALISED;
+			for (var operator : entry.getValue()) {
+				if (operator.state == Specialising.UNINITIALISED)
+					continue;
+				state = (state == Specialising.UNINITIALISED || state == operator.state) ? operator.state : Specialising.GENERIC;
+			}
+			if (state != Specialising.UNINITIALISED)
+				states.put(entry.getKey(), state);
+		}
+
+		try (var writer = new PrintWriter(new FileWriter(fileName))) {
+			writer.println(header + " " + fingerprint);
+			for (var site : hot)
+				writer.println("hot " + site);
+			for (var entry : states.entrySet())
+				writer.println("types " + entry.getKey() + " " + entry.getValue());
+		}
+	}
+
+	// Record the function bodies and loops in a given subtree that have been compiled.
+	private void record(Node node) {
+		var optimised = ((SimpleNode)node).optimised;
+		if ((node instanceof ASTFnBody && optimised instanceof CompiledNode)
+				|| (optimised instanceof LoopProfile && ((LoopProfile)optimised).getCompiled() != null))
+			hot.add(sites.get(node));
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			record(node.jjtGetChild(i));
+	}
+
+	/** True if a given function body or loop was hot when this profile was recorded. */
+	boolean isHot(SimpleNode node) {
+		var site = sites.get(node);
+		return site != null && hot.contains(site);
+	}
+
+	/** Start an operator compiled from a given node in its recorded state, and note it so its
+	 * state can be recorded at the end of this run.
+	 */
+	void specialise(SimpleNode node, Specialising operator) {
+		var site = sites.get(node);
+		if (site == null)
+			return;
+		var state = states.get(site);
+		if (state != null)
+			operator.presume(state);
+		operators.computeIfAbsent(site, s -> new ArrayList<Specialising>()).add(operator);
+	}
+}
@@ -0,0 +1,23 @@
+package uk.ac.derby.ldi.CScharf.interpreter;
+
+import uk.ac.derby.ldi.CScharf.values.Value;
+
+/** Thrown by the typed execute methods of a CompiledNode when the node's value turns out
+ * not to be of the expected type.  It carries the value, so the caller can continue with it.
+ */
+class UnexpectedValue extends RuntimeException {
+
+	static final long serialVersionUID = 0;
+	
+	private final Value value;
+	
+	UnexpectedValue(Value value) {
+		super(null, null, false, false);
+		this.value = value;
+	}
+	
+	/** Get the value that was not of the expected type. */
+	Value getValue() {
+		return value;
+	}
+}
@@ -0,0 +1,193 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import java.util.HashMap;
+
+import uk.ac.derby.ldi.CScharf.interpreter.Parser;
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+import uk.ac.derby.ldi.CScharf.values.*;
+
+/** Fold constant expressions into literals, remove IF branches that can't be taken, and
+ * replace uses of const variables initialised with a literal by the literal.
+ *
+ * Constant expressions are evaluated by the tree-walker, so folding them gives exactly the
+ * values they would have had.  An expression whose evaluation fails, such as 1 / 0, is left
+ * to fail at run-time.
+ *
+ * A const variable is only propagated if its name is declared nowhere else and never used
+ * for anything else, and then only into the statements that follow its declaration in the
+ * same statement list, which are the only ones certain to run after it.
+ */
+class ConstantFolding implements Pass {
+
+	// Evaluates constant expressions.
+	private final Parser evaluator = new Parser(false);
+	// Number of times each name is declared or used other than as a plain variable.
+	private final HashMap<String, Integer> declarations = new HashMap<String, Integer>();
+
+	public String getName() {
+		return "fold";
+	}
+
+	public void run(ASTCode program) {
+		declarations.clear();
+		countDeclarations(program);
+		fold(program, new HashMap<String, SimpleNode>());
+	}
+
+	// Count the declarations of each name in a given subtree.
+	private void countDeclarations(Node node) {
+		String name = null;
+		if (node instanceof ASTIdentifier)
+			name = ((SimpleNode)node).tokenValue;
+		else if (node instanceof ASTAssignment) {
+			var target = node.jjtGetChild(node.jjtGetNumChildren() == 2 ? 0 : node.jjtGetNumChildren() - 2);
+			if (target instanceof ASTDereference)
+				name = ((SimpleNode)target).tokenValue;
+			else if (node.jjtGetChild(1) instanceof ASTDereference)
+				name = ((SimpleNode)node.jjtGetChild(1)).tokenValue;
+		} else if (isIncrementDecrement(node))
+			for (int i = 0; i < node.jjtGetNumChildren(); i++)
+				if (node.jjtGetChild(i) instanceof ASTDereference)
+					name = ((SimpleNode)node.jjtGetChild(i)).tokenValue;
+		if (name != null)
+			declarations.merge(name, 1, Integer::sum);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			countDeclarations(node.jjtGetChild(i));
+	}
+
+	// Fold the children of a given node, given the const variables that can be propagated into them.
+	private void fold(Node node, HashMap<String, SimpleNode> constants) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			var child = node.jjtGetChild(i);
+
+			// A use of a propagated const variable
+			if (child instanceof ASTDereference && child.jjtGetNumChildren() == 0 && constants.containsKey(((SimpleNode)child).tokenValue)
+					&& !(node instanceof ASTAssignment || node instanceof ASTCall || node instanceof ASTFnInvoke || isIncrementDecrement(node))) {
+				replace(node, i, copyLiteral(constants.get(((SimpleNode)child).tokenValue)));
+				continue;
+			}
+
+			fold(child, new HashMap<String, SimpleNode>(constants));
+
+			if (child instanceof ASTIfStatement)
+				foldIf(node, i, (ASTIfStatement)child);
+			else if (isOperator(child))
+				foldOperator(node, i, (SimpleNode)child);
+			else if (child instanceof ASTStatement)
+				recordConstant((ASTStatement)child, constants);
+		}
+	}
+
+	// Replace an operator whose operands are all literals by the literal for its value.
+	private void foldOperator(Node parent, int childIndex, SimpleNode operator) {
+		for (int i = 0; i < operator.jjtGetNumChildren(); i++)
+			if (getLiteral(operator.jjtGetChild(i)) == null)
+				return;
+		Value value;
+		try {
+			value = (Value)operator.jjtAccept(evaluator, null);
+		} catch (Throwable e) {
+			return;
+		}
+		var literal = createLiteral(value);
+		if (literal != null)
+			replace(parent, childIndex, literal);
+	}
+
+	// Replace an IF whose test is a boolean literal by the branch it always takes, or by
+	// an empty statement if it takes none.
+	private void foldIf(Node parent, int childIndex, ASTIfStatement ifStatement) {
+		var test = getLiteral(ifStatement.jjtGetChild(0));
+		if (test instanceof ASTTrue)
+			replace(parent, childIndex, ifStatement.jjtGetChild(1));
+		else if (test instanceof ASTFalse) {
+			if (ifStatement.ifHasElse)
+				replace(parent, childIndex, ifStatement.jjtGetChild(2));
+			else
+				replace(parent, childIndex, new ASTStatement(CScharfTreeConstants.JJTSTATEMENT));
+		}
+	}
+
+	// If a statement defines a const variable that can be propagated, record its literal value.
+	private void recordConstant(ASTStatement statement, HashMap<String, SimpleNode> constants) {
+		if (statement.jjtGetNumChildren() != 1 || !(statement.jjtGetChild(0) instanceof ASTAssignment))
+			return;
+		var assignment = statement.jjtGetChild(0);
+		if (assignment.jjtGetNumChildren() != 4 || !((SimpleNode)assignment.jjtGetChild(0)).tokenValue.equals("const"))
+			return;
+		var type = ((SimpleNode)assignment.jjtGetChild(1)).tokenValue;
+		var name = ((SimpleNode)assignment.jjtGetChild(2)).tokenValue;
+		var literal = getLiteral(assignment.jjtGetChild(3));
+		if (literal == null || declarations.get(name) != 1)
+			return;
+		if ((type.equals("int") && literal instanceof ASTInteger)
+				|| (type.equals("float") && literal instanceof ASTFloat)
+				|| (type.equals("double") && literal instanceof ASTDouble)
+				|| (type.equals("string") && literal instanceof ASTCharacter)
+				|| (type.equals("bool") && (literal instanceof ASTTrue || literal instanceof ASTFalse)))
+			constants.put(name, literal);
+	}
+
+	// True if a given node increments or decrements a variable within an expression.
+	private static boolean isIncrementDecrement(Node node) {
+		if (node instanceof ASTPrimaryExpression)
+			for (int i = 0; i < node.jjtGetNumChildren(); i++)
+				if (node.jjtGetChild(i) instanceof ASTIncrementDecrement)
+					return true;
+		return false;
+	}
+
+	// True if a given node is an operator.
+	private static boolean isOperator(Node node) {
+		return node instanceof ASTOr || node instanceof ASTAnd || node instanceof ASTCompEqual || node instanceof ASTCompNequal
+			|| node instanceof ASTCompGTE || node instanceof ASTCompLTE || node instanceof ASTCompGT || node instanceof ASTCompLT
+			|| node instanceof ASTAdd || node instanceof ASTSubtract || node instanceof ASTTimes || node instanceof ASTDivide
+			|| node instanceof ASTModulo || node instanceof ASTUnaryNot || node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus;
+	}
+
+	// Return the literal a given expression consists of, or null if it isn't one.
+	private static SimpleNode getLiteral(Node node) {
+		while (node instanceof ASTPrimaryExpression && node.jjtGetNumChildren() == 1)
+			node = node.jjtGetChild(0);
+		if (node instanceof ASTInteger || node instanceof ASTFloat || node instanceof ASTDouble || node instanceof ASTCharacter
+				|| node instanceof ASTTrue || node instanceof ASTFalse)
+			return (SimpleNode)node;
+		return null;
+	}
+
+	// Return a new literal node for a given value, or null if it has none.
+	private static SimpleNode createLiteral(Value value) {
+		SimpleNode literal;
+		if (value instanceof ValueInteger) {
+			literal = new ASTInteger(CScharfTreeConstants.JJTINTEGER);
+			literal.tokenValue = Long.toString(value.longValue());
+		} else if (value instanceof ValueFloat) {
+			literal = new ASTFloat(CScharfTreeConstants.JJTFLOAT);
+			literal.tokenValue = Float.toString(value.floatValue());
+		} else if (value instanceof ValueDouble) {
+			literal = new ASTDouble(CScharfTreeConstants.JJTDOUBLE);
+			literal.tokenValue = Double.toString(value.doubleValue());
+		} else if (value instanceof ValueString) {
+			literal = new ASTCharacter(CScharfTreeConstants.JJTCHARACTER);
+			literal.tokenValue = "\"" + value.stringValue() + "\"";
+		} else if (value instanceof ValueBoolean)
+			literal = value.booleanValue() ? new ASTTrue(CScharfTreeConstants.JJTTRUE) : new ASTFalse(CScharfTreeConstants.JJTFALSE);
+		else
+			return null;
+		literal.optimised = value;
+		return literal;
+	}
+
+	// Return a copy of a literal node.
+	private SimpleNode copyLiteral(SimpleNode literal) {
+		var copy = createLiteral((Value)literal.jjtAccept(evaluator, null));
+		copy.tokenValue = literal.tokenValue;
+		return copy;
+	}
+
+	// Replace the ith child of a given node.
+	private static void replace(Node parent, int childIndex, Node child) {
+		child.jjtSetParent(parent);
+		parent.jjtAddChild(child, childIndex);
+	}
+}
@@ -0,0 +1,193 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+import uk.ac.derby.ldi.CScharf.values.*;
+
+/** Remove assignments to variables whose values are never read.
+ *
+ * A variable is dead if its name is used nowhere in the program except as the target of
+ * assignment statements that are pure: statements whose type the type checker has proven, and
+ * whose value can't fail or have any effect.  Such a value is built from literals and variables
+ * certain to be defined, with operators that can't fail on operands of their types; variables
+ * certain to be defined are the parameters of the enclosing function and those declared by the
+ * statements before, in the same or an enclosing statement list.  Nothing is assumed to be
+ * defined in the constructors and methods of a class, which may run anywhere.  An assignment
+ * without a type is pure only if its variable is certain to be defined, and a declaration only
+ * if its variable isn't, and no other statement declares a variable of the same name; otherwise
+ * it may fail, and must stay to do so.  Every assignment
+ * to a dead variable is replaced by an empty statement.  Removing them may leave others dead,
+ * so the pass repeats until there are none.
+ */
+class DeadAssignments implements Pass {
+
+	// Proves the types of assignments and gives the types of expressions.
+	private final TypeChecker typeChecker;
+	// Number of times each name is used anywhere in the program.
+	private final HashMap<String, Integer> uses = new HashMap<String, Integer>();
+	// Number of statements that declare a variable of each name anywhere in the program.
+	private final HashMap<String, Integer> declarations = new HashMap<String, Integer>();
+	// Pure assignment statements, by the name they assign to.
+	private final HashMap<String, ArrayList<ASTStatement>> assignments = new HashMap<String, ArrayList<ASTStatement>>();
+
+	DeadAssignments(TypeChecker typeChecker) {
+		this.typeChecker = typeChecker;
+	}
+
+	public String getName() {
+		return "dead";
+	}
+
+	public void run(ASTCode program) {
+		boolean removed;
+		do {
+			uses.clear();
+			declarations.clear();
+			assignments.clear();
+			countUses(program);
+			collect(program, new HashSet<String>());
+			removed = false;
+			for (var entry : assignments.entrySet()) {
+				if (entry.getValue().size() != uses.get(entry.getKey()))
+					continue;
+				for (var statement : entry.getValue())
+					replace(statement, new ASTStatement(CScharfTreeConstants.JJTSTATEMENT));
+				removed = true;
+			}
+		} while (removed);
+	}
+
+	// Count the uses of each name in a given subtree.
+	private void countUses(Node node) {
+		var name = ((SimpleNode)node).tokenValue;
+		if (name != null && !isLiteral(node))
+			uses.merge(name, 1, Integer::sum);
+		var declared = getDeclaredName(node);
+		if (declared != null)
+			declarations.merge(declared, 1, Integer::sum);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			countUses(node.jjtGetChild(i));
+	}
+
+	// Collect the pure assignment statements among the children of a given node, given the
+	// variables certain to be defined there.
+	private void collect(Node node, HashSet<String> defined) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			var child = node.jjtGetChild(i);
+			if (child instanceof ASTFnDef) {
+				var parameters = new HashSet<String>();
+				var parameterList = child.jjtGetChild(2);
+				for (int j = 1; j < parameterList.jjtGetNumChildren(); j += 2)
+					parameters.add(getToken(parameterList, j));
+				collect(child, parameters);
+				continue;
+			}
+			if (child instanceof ASTClassDef || child instanceof ASTAnon) {
+				collect(child, new HashSet<String>());
+				continue;
+			}
+
+			var childDefined = new HashSet<String>(defined);
+			if (child instanceof ASTForLoop && child.jjtGetChild(0).jjtGetNumChildren() == 3)
+				childDefined.add(getToken(child.jjtGetChild(0), 1));
+			collect(child, childDefined);
+
+			if (child instanceof ASTStatement && child.jjtGetNumChildren() == 1) {
+				var statement = child.jjtGetChild(0);
+				var name = getAssignedName(statement, defined);
+				if (name != null)
+					assignments.computeIfAbsent(name, n -> new ArrayList<ASTStatement>()).add((ASTStatement)child);
+				var declared = getDeclaredName(statement);
+				if (declared != null)
+					defined.add(declared);
+			}
+		}
+	}
+
+	// Return the name a given statement assigns to, if it is a pure assignment given the variables
+	// certain to be defined before it.  Otherwise return null.
+	private String getAssignedName(Node statement, HashSet<String> defined) {
+		if (!(statement instanceof ASTAssignment))
+			return null;
+		var childCount = statement.jjtGetNumChildren();
+		var target = (SimpleNode)statement.jjtGetChild(childCount - 2);
+		if (!(target instanceof ASTDereference) || target.jjtGetNumChildren() != 0)
+			return null;
+		if (childCount == 2 && (!target.typeChecked || !defined.contains(target.tokenValue)))
+			return null;
+		if (childCount == 3 && (!((SimpleNode)statement).typeChecked || defined.contains(target.tokenValue) || declarations.get(target.tokenValue) != 1))
+			return null;
+		if (childCount > 3)
+			return null;
+		return isPure(statement.jjtGetChild(childCount - 1), defined) ? target.tokenValue : null;
+	}
+
+	// True if evaluating a given expression can't fail or have any effect, given the variables certain to be defined.
+	private boolean isPure(Node node, HashSet<String> defined) {
+		while (node instanceof ASTPrimaryExpression && node.jjtGetNumChildren() == 1)
+			node = node.jjtGetChild(0);
+		if (isLiteral(node))
+			return true;
+		if (node instanceof ASTDereference)
+			return node.jjtGetNumChildren() == 0 && defined.contains(((SimpleNode)node).tokenValue);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isPure(node.jjtGetChild(i), defined))
+				return false;
+
+		var type = typeChecker.typeOf(node.jjtGetChild(0));
+		if (type == null)
+			return false;
+		var numeric = type == ValueInteger.class || type == ValueFloat.class || type == ValueDouble.class;
+		if (node instanceof ASTUnaryNot)
+			return type == ValueBoolean.class;
+		if (node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus)
+			return numeric;
+		if (node.jjtGetNumChildren() != 2 || typeChecker.typeOf(node.jjtGetChild(1)) != type)
+			return false;
+		if (node instanceof ASTOr || node instanceof ASTAnd)
+			return type == ValueBoolean.class;
+		if (node instanceof ASTCompEqual || node instanceof ASTCompNequal)
+			return true;
+		if (node instanceof ASTAdd)
+			return numeric || type == ValueString.class;
+		if (node instanceof ASTSubtract || node instanceof ASTTimes
+				|| node instanceof ASTCompGTE || node instanceof ASTCompLTE || node instanceof ASTCompGT || node instanceof ASTCompLT)
+			return numeric;
+		return false;
+	}
+
+	// Return the name of the variable a given statement declares, or null if it declares none.
+	private static String getDeclaredName(Node statement) {
+		if (statement instanceof ASTAssignment && statement.jjtGetNumChildren() >= 3)
+			return getToken(statement, statement.jjtGetNumChildren() - 2);
+		if (statement instanceof ASTVariableDeclaration)
+			return getToken(statement, statement.jjtGetNumChildren() - 1);
+		return null;
+	}
+
+	// True if a given node is a literal.
+	private static boolean isLiteral(Node node) {
+		return node instanceof ASTInteger || node instanceof ASTFloat || node instanceof ASTDouble || node instanceof ASTCharacter
+			|| node instanceof ASTTrue || node instanceof ASTFalse;
+	}
+
+	// Replace a given node by another in its parent.
+	private static void replace(Node node, Node replacement) {
+		var parent = node.jjtGetParent();
+		for (int i = 0; i < parent.jjtGetNumChildren(); i++) {
+			if (parent.jjtGetChild(i) == node) {
+				replacement.jjtSetParent(parent);
+				parent.jjtAddChild(replacement, i);
+				return;
+			}
+		}
+	}
+
+	// Return the token of the ith child of a given node.
+	private static String getToken(Node node, int i) {
+		return ((SimpleNode)node.jjtGetChild(i)).tokenValue;
+	}
+}
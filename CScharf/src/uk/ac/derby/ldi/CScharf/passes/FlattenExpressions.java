@@ -0,0 +1,35 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.ASTCode;
+import uk.ac.derby.ldi.CScharf.parser.ast.ASTPrimaryExpression;
+import uk.ac.derby.ldi.CScharf.parser.ast.Node;
+
+/** Remove primary expressions that only wrap another primary expression.
+ *
+ * The grammar nests these around most operands, e.g. print(a) has two around a.  One is
+ * left in place, so every node still has the children the interpreter expects.
+ */
+class FlattenExpressions implements Pass {
+	
+	public String getName() {
+		return "flatten";
+	}
+	
+	public void run(ASTCode program) {
+		flatten(program);
+	}
+	
+	// Flatten the primary expressions in a given subtree.
+	private static void flatten(Node node) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			var child = node.jjtGetChild(i);
+			while (child instanceof ASTPrimaryExpression && child.jjtGetNumChildren() == 1 
+					&& child.jjtGetChild(0) instanceof ASTPrimaryExpression) {
+				child = child.jjtGetChild(0);
+				child.jjtSetParent(node);
+				node.jjtAddChild(child, i);
+			}
+			flatten(child);
+		}
+	}
+}
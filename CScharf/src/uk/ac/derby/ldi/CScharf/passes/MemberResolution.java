@@ -0,0 +1,88 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import java.util.HashSet;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+
+/** Resolve the names in methods and constructors that can only refer to members of their receiver.
+ *
+ * A name in the body of a method or constructor refers to a variable if one of that name is
+ * visible, and otherwise to a member of the receiver.  If a class declares a member of a given
+ * name, and nothing else in the program declares a variable or parameter of that name, the name
+ * can't refer to a variable, so each use of it in the class's methods is marked member and looked
+ * up in the receiver without searching the variables first.  Functions defined within a method
+ * are left alone, since they may be called with another receiver.
+ */
+class MemberResolution implements Pass {
+
+	// Names declared anywhere other than as a member of a class.
+	private final HashSet<String> declared = new HashSet<String>();
+
+	public String getName() {
+		return "members";
+	}
+
+	public void run(ASTCode program) {
+		declared.clear();
+		collectDeclarations(program);
+		resolve(program);
+	}
+
+	// Collect the names declared in a given subtree, other than members.
+	private void collectDeclarations(Node node) {
+		var isMember = node.jjtGetParent() instanceof ASTClassBody;
+		if (node instanceof ASTAssignment && node.jjtGetNumChildren() >= 3 && !isMember)
+			declared.add(getToken(node, node.jjtGetNumChildren() - 2));
+		else if (node instanceof ASTVariableDeclaration && !isMember)
+			declared.add(getToken(node, node.jjtGetNumChildren() - 1));
+		else if (node instanceof ASTParmlist) {
+			for (int i = 1; i < node.jjtGetNumChildren(); i += 2)
+				declared.add(getToken(node, i));
+		} else if (node instanceof ASTTypelessAssignment)
+			declared.add(getToken(node, 0));
+		else if (node instanceof ASTFnDef)
+			declared.add(getToken(node, 1));
+		else if (node instanceof ASTClassDef || node instanceof ASTInterfaceDef)
+			declared.add(((SimpleNode)node).tokenValue);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			collectDeclarations(node.jjtGetChild(i));
+	}
+
+	// Resolve the member names in the methods and constructors of the classes in a given subtree.
+	private void resolve(Node node) {
+		if (node instanceof ASTClassBody) {
+			var members = new HashSet<String>();
+			for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+				var child = node.jjtGetChild(i);
+				if (child instanceof ASTAssignment && child.jjtGetNumChildren() >= 3)
+					members.add(getToken(child, child.jjtGetNumChildren() - 2));
+				else if (child instanceof ASTVariableDeclaration)
+					members.add(getToken(child, child.jjtGetNumChildren() - 1));
+			}
+			members.removeAll(declared);
+			for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+				var child = node.jjtGetChild(i);
+				if ((child instanceof ASTFnDef || child instanceof ASTClassConstructor) && !members.isEmpty())
+					for (int j = 0; j < child.jjtGetNumChildren(); j++)
+						mark(child.jjtGetChild(j), members);
+			}
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			resolve(node.jjtGetChild(i));
+	}
+
+	// Mark the uses of members in a given subtree of a method or constructor.
+	private static void mark(Node node, HashSet<String> members) {
+		if (node instanceof ASTFnDef || node instanceof ASTFn || node instanceof ASTClassDef)
+			return;
+		if (node instanceof ASTDereference && members.contains(((SimpleNode)node).tokenValue))
+			((SimpleNode)node).member = true;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			mark(node.jjtGetChild(i), members);
+	}
+
+	// Return the token of the ith child of a given node.
+	private static String getToken(Node node, int i) {
+		return ((SimpleNode)node.jjtGetChild(i)).tokenValue;
+	}
+}
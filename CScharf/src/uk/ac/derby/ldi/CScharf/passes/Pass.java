@@ -0,0 +1,17 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.ASTCode;
+
+/** An analysis or rewrite of a parsed program, run before it is executed.
+ *
+ * A rewrite pass changes the AST in place.  Any pass may reject the program by throwing
+ * an ExceptionSemantic.
+ */
+public interface Pass {
+	
+	/** Get the name used to enable, disable and report the pass. */
+	String getName();
+	
+	/** Run the pass over a given program. */
+	void run(ASTCode program);
+}
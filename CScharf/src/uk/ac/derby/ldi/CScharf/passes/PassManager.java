@@ -0,0 +1,93 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.ASTCode;
+import uk.ac.derby.ldi.CScharf.parser.ast.Node;
+
+/** Runs an ordered pipeline of passes over a parsed program.
+ *
+ * Passes can be disabled by name.  If reporting is on, the time each pass took and the 
+ * change it made to the number of AST nodes are printed once the pipeline has run.
+ */
+public class PassManager {
+	
+	private final ArrayList<Pass> passes = new ArrayList<Pass>();
+	private final HashSet<String> disabled = new HashSet<String>();
+	private boolean reporting = false;
+	
+	/** Return a PassManager with the standard pipeline of passes. */
+	public static PassManager createStandard() {
+		var manager = new PassManager();
+		manager.add(new FlattenExpressions());
+		manager.add(new ConstantFolding());
+		manager.add(new ScalarReplacement());
+		manager.add(new MemberResolution());
+		var typeChecker = new TypeChecker();
+		manager.add(typeChecker);
+		manager.add(new DeadAssignments(typeChecker));
+		return manager;
+	}
+	
+	/** Add a pass to the end of the pipeline. */
+	public void add(Pass pass) {
+		passes.add(pass);
+	}
+	
+	/** True if the pipeline has a pass of a given name. */
+	public boolean hasPass(String name) {
+		for (var pass : passes)
+			if (pass.getName().equals(name))
+				return true;
+		return false;
+	}
+	
+	/** Enable or disable the pass of a given name. */
+	public void setEnabled(String name, boolean enabled) {
+		if (enabled)
+			disabled.remove(name);
+		else
+			disabled.add(name);
+	}
+	
+	/** Set whether the cost and effect of each pass are reported. */
+	public void setReporting(boolean reporting) {
+		this.reporting = reporting;
+	}
+	
+	/** Get the names of the passes in the pipeline, in order. */
+	public String getPassNames() {
+		var names = new StringBuilder();
+		for (var pass : passes)
+			names.append(names.length() == 0 ? "" : ", ").append(pass.getName());
+		return names.toString();
+	}
+	
+	/** Run the enabled passes over a given program, in order. */
+	public void run(ASTCode program) {
+		var report = new StringBuilder();
+		for (var pass : passes) {
+			if (disabled.contains(pass.getName()))
+				continue;
+			var nodesBefore = reporting ? countNodes(program) : 0;
+			var start = System.nanoTime();
+			pass.run(program);
+			var time = System.nanoTime() - start;
+			if (reporting) {
+				var nodesAfter = countNodes(program);
+				report.append(String.format("%-12s %8.3fms %7d -> %d nodes%n", pass.getName(), time / 1000000.0, nodesBefore, nodesAfter));
+			}
+		}
+		if (reporting)
+			System.out.print(report);
+	}
+	
+	// Count the nodes in a given subtree.
+	private static int countNodes(Node node) {
+		var count = 1;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			count += countNodes(node.jjtGetChild(i));
+		return count;
+	}
+}
@@ -0,0 +1,137 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+
+/** Replace anonymous objects that never escape by a variable for each of their members.
+ *
+ * An object declared by anon p = new { a = ..., b = ... } doesn't escape if the only other uses
+ * of the name p in the program are reads of its members, p.a and p.b, in the statements that
+ * follow the declaration in the same statement list or in the return expression of the function
+ * whose body it is, and not in any function defined there.  The declaration is then replaced by
+ * definitions of the variables p.a and p.b, which no program can name, and each p.a by a plain
+ * dereference of p.a, so no object is built.
+ */
+class ScalarReplacement implements Pass {
+
+	// Number of uses of each name, other than as a member name.
+	private final HashMap<String, Integer> uses = new HashMap<String, Integer>();
+
+	public String getName() {
+		return "scalars";
+	}
+
+	public void run(ASTCode program) {
+		uses.clear();
+		countUses(program);
+		replace(program);
+	}
+
+	// Count the uses of each name in a given subtree.
+	private void countUses(Node node) {
+		if (node instanceof ASTDereference || (node instanceof ASTIdentifier && !(node.jjtGetParent() instanceof ASTDereference)))
+			uses.merge(((SimpleNode)node).tokenValue, 1, Integer::sum);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			countUses(node.jjtGetChild(i));
+	}
+
+	// Replace the objects declared in the statement lists of a given subtree.
+	private void replace(Node node) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			var child = node.jjtGetChild(i);
+			if (child instanceof ASTStatement && child.jjtGetNumChildren() == 1 && child.jjtGetChild(0) instanceof ASTAssignment)
+				replaceObject(node, i);
+			replace(node.jjtGetChild(i));
+		}
+	}
+
+	// Replace the object declared by the ith statement of a statement list, if it doesn't escape.
+	private void replaceObject(Node statements, int statementIndex) {
+		var assignment = statements.jjtGetChild(statementIndex).jjtGetChild(0);
+		if (assignment.jjtGetNumChildren() != 3 || !((SimpleNode)assignment.jjtGetChild(0)).tokenValue.equals("anon"))
+			return;
+		var target = (SimpleNode)assignment.jjtGetChild(1);
+		var expression = assignment.jjtGetChild(2);
+		while (expression instanceof ASTPrimaryExpression && expression.jjtGetNumChildren() == 1)
+			expression = expression.jjtGetChild(0);
+		if (!(target instanceof ASTDereference) || target.jjtGetNumChildren() != 0
+				|| !(expression instanceof ASTNewObj) || !(expression.jjtGetChild(0) instanceof ASTAnon))
+			return;
+		var name = target.tokenValue;
+		var anon = expression.jjtGetChild(0);
+
+		var members = new HashSet<String>();
+		for (int i = 0; i < anon.jjtGetNumChildren(); i++)
+			if (!members.add(((SimpleNode)anon.jjtGetChild(i).jjtGetChild(0)).tokenValue))
+				return;
+
+		// Every other use of the name must be a member read that can be replaced.
+		var reads = new ArrayList<SimpleNode>();
+		for (int i = statementIndex + 1; i < statements.jjtGetNumChildren(); i++)
+			if (!collectReads(statements.jjtGetChild(i), name, members, reads))
+				return;
+		if (statements instanceof ASTFnBody && statements.jjtGetParent().jjtGetNumChildren() == 5)
+			if (!collectReads(statements.jjtGetParent().jjtGetChild(4), name, members, reads))
+				return;
+		if (uses.get(name) != reads.size() + 1)
+			return;
+
+		var definitions = new ASTStatement(CScharfTreeConstants.JJTSTATEMENT);
+		for (int i = 0; i < anon.jjtGetNumChildren(); i++) {
+			var definition = anon.jjtGetChild(i);
+			((SimpleNode)definition.jjtGetChild(0)).tokenValue = name + "." + ((SimpleNode)definition.jjtGetChild(0)).tokenValue;
+			definition.jjtSetParent(definitions);
+			definitions.jjtAddChild(definition, i);
+		}
+		definitions.jjtSetParent(statements);
+		statements.jjtAddChild(definitions, statementIndex);
+
+		for (var read : reads) {
+			var variable = new ASTDereference(CScharfTreeConstants.JJTDEREFERENCE);
+			variable.tokenValue = name + "." + ((SimpleNode)read.jjtGetChild(0)).tokenValue;
+			var parent = read.jjtGetParent();
+			for (int i = 0; i < parent.jjtGetNumChildren(); i++)
+				if (parent.jjtGetChild(i) == read) {
+					variable.jjtSetParent(parent);
+					parent.jjtAddChild(variable, i);
+				}
+		}
+	}
+
+	// Collect the reads of members of a named object in a given subtree.  Return false if it uses the
+	// name in any other way, or in a function it defines.
+	private static boolean collectReads(Node node, String name, HashSet<String> members, ArrayList<SimpleNode> reads) {
+		if (node instanceof ASTDereference && ((SimpleNode)node).tokenValue.equals(name)) {
+			var parent = node.jjtGetParent();
+			if (node.jjtGetNumChildren() != 1 || !members.contains(((SimpleNode)node.jjtGetChild(0)).tokenValue))
+				return false;
+			if ((parent instanceof ASTAssignment && parent.jjtGetChild(parent.jjtGetNumChildren() - 1) != node)
+					|| parent instanceof ASTCall || parent instanceof ASTFnInvoke)
+				return false;
+			for (int i = 0; i < parent.jjtGetNumChildren(); i++)
+				if (parent.jjtGetChild(i) instanceof ASTIncrementDecrement)
+					return false;
+			reads.add((SimpleNode)node);
+			return true;
+		}
+		if (node instanceof ASTFnDef || node instanceof ASTFn || node instanceof ASTClassDef)
+			return !mentions(node, name);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!collectReads(node.jjtGetChild(i), name, members, reads))
+				return false;
+		return true;
+	}
+
+	// True if a given subtree uses a name.
+	private static boolean mentions(Node node, String name) {
+		if ((node instanceof ASTDereference || node instanceof ASTIdentifier) && ((SimpleNode)node).tokenValue.equals(name))
+			return true;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (mentions(node.jjtGetChild(i), name))
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,198 @@
+package uk.ac.derby.ldi.CScharf.passes;
+
+import java.util.HashMap;
+
+import uk.ac.derby.ldi.CScharf.CScharfUtil;
+import uk.ac.derby.ldi.CScharf.interpreter.ExceptionSemantic;
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+import uk.ac.derby.ldi.CScharf.values.*;
+
+/** Check the types of assignments, arguments and return values before the program runs.
+ *
+ * The type of an expression is known if it is a literal, a variable whose every declaration
+ * in the program has the same int, float, double, bool or string type, an operator applied to
+ * operands of known type, or an invocation of a function whose name is defined only once.
+ * Where the type is known to be the one required, the site is marked typeChecked so execution
+ * skips the check; where it is known to be another, the error is reported now, with the message
+ * it would have had at run-time.  Anything else is left to be checked as it runs.
+ */
+class TypeChecker implements Pass {
+
+	// Type of each variable name, or Object.class if its declarations don't agree on one.
+	private final HashMap<String, Class<?>> variables = new HashMap<String, Class<?>>();
+	// The definition of each function name, or null if the name is defined more than once.
+	private final HashMap<String, ASTFnDef> functions = new HashMap<String, ASTFnDef>();
+
+	public String getName() {
+		return "types";
+	}
+
+	public void run(ASTCode program) {
+		variables.clear();
+		functions.clear();
+		collectDeclarations(program);
+		check(program);
+	}
+
+	// Collect the declarations of variables and functions in a given subtree.
+	private void collectDeclarations(Node node) {
+		if (node instanceof ASTAssignment && node.jjtGetNumChildren() >= 3)
+			declare(getToken(node, node.jjtGetNumChildren() - 2), getToken(node, node.jjtGetNumChildren() - 3));
+		else if (node instanceof ASTVariableDeclaration)
+			declare(getToken(node, node.jjtGetNumChildren() - 1), getToken(node, node.jjtGetNumChildren() - 2));
+		else if (node instanceof ASTParmlist) {
+			for (int i = 0; i < node.jjtGetNumChildren(); i += 2)
+				declare(getToken(node, i + 1), getToken(node, i));
+		} else if (node instanceof ASTTypelessAssignment)
+			declare(getToken(node, 0), null);
+		else if (node instanceof ASTFnDef) {
+			var name = getToken(node, 1);
+			functions.put(name, functions.containsKey(name) ? null : (ASTFnDef)node);
+		} else if (node instanceof ASTClassDef || node instanceof ASTInterfaceDef)
+			declare(((SimpleNode)node).tokenValue, null);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			collectDeclarations(node.jjtGetChild(i));
+	}
+
+	// Record a declaration of a given name with a given type, or with no type it can be relied on to have.
+	private void declare(String name, String type) {
+		Class<?> typeClass = Object.class;
+		if (type != null && (type.equals("int") || type.equals("float") || type.equals("double") || type.equals("bool") || type.equals("string")))
+			typeClass = CScharfUtil.getClassFromString(type);
+		var existing = variables.get(name);
+		variables.put(name, (existing == null || existing == typeClass) ? typeClass : Object.class);
+	}
+
+	// Check the sites in a given subtree.
+	private void check(Node node) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			check(node.jjtGetChild(i));
+
+		if (node instanceof ASTAssignment && !(node.jjtGetParent() instanceof ASTClassBody))
+			checkAssignment((ASTAssignment)node);
+		else if (node instanceof ASTFnDef && ((SimpleNode)node).fnHasReturn)
+			checkReturn((ASTFnDef)node);
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			checkArguments((SimpleNode)node);
+	}
+
+	// Check the value assigned by an assignment fits its variable.
+	private void checkAssignment(ASTAssignment assignment) {
+		var childCount = assignment.jjtGetNumChildren();
+		var target = assignment.jjtGetChild(childCount - 2);
+		if (!(target instanceof ASTDereference) || target.jjtGetNumChildren() != 0)
+			return;
+		var valueType = typeOf(assignment.jjtGetChild(childCount - 1));
+		if (valueType == null)
+			return;
+		if (childCount == 2) {
+			// An untyped assignment must keep the type of its variable.
+			var variableType = getVariableType(((SimpleNode)target).tokenValue);
+			if (variableType == null)
+				return;
+			if (valueType != variableType)
+				throw new ExceptionSemantic("Cannot assign value of type: " + valueType + " to variable of type: " + variableType + ". Are you missing a cast?");
+			((SimpleNode)target).typeChecked = true;
+		} else {
+			var specifiedType = CScharfUtil.getClassFromString(getToken(assignment, childCount - 3));
+			if (specifiedType == null)
+				return;
+			if (valueType != specifiedType)
+				throw new ExceptionSemantic("Cannot assign value of type: " + valueType + " to variable of type: " + specifiedType + ". Are you missing a cast?");
+			assignment.typeChecked = true;
+		}
+	}
+
+	// Check the return expression of a function fits its return type.
+	private void checkReturn(ASTFnDef function) {
+		var returnType = CScharfUtil.getClassFromString(getToken(function, 0));
+		var valueType = typeOf(function.jjtGetChild(4).jjtGetChild(0));
+		if (returnType == null || valueType == null)
+			return;
+		if (valueType != returnType)
+			throw new ExceptionSemantic("Cannot return value of type " + valueType + " from a function with a return type of " + returnType);
+		function.typeChecked = true;
+	}
+
+	// Check the arguments of a call to a function defined only once fit its parameters.
+	private void checkArguments(SimpleNode call) {
+		var function = getFunction(call.jjtGetChild(0));
+		if (function == null)
+			return;
+		var parameters = function.jjtGetChild(2);
+		var arguments = (SimpleNode)call.jjtGetChild(1);
+		if (arguments.jjtGetNumChildren() * 2 != parameters.jjtGetNumChildren())
+			return;
+		var checked = true;
+		for (int i = 0; i < arguments.jjtGetNumChildren(); i++) {
+			var parameterType = CScharfUtil.getClassFromString(getToken(parameters, i * 2));
+			var argumentType = typeOf(arguments.jjtGetChild(i));
+			if (argumentType == null)
+				checked = false;
+			else if (argumentType != parameterType)
+				throw new ExceptionSemantic("Cannot assign value of type: " + argumentType + " to parameter of type: " + parameterType + ". Are you missing a cast?");
+		}
+		arguments.typeChecked = checked;
+	}
+
+	/** Return the type of a given expression, or null if it isn't known.  Only valid once the pass has run. */
+	Class<?> typeOf(Node node) {
+		if (node instanceof ASTPrimaryExpression)
+			return (node.jjtGetNumChildren() == 1) ? typeOf(node.jjtGetChild(0)) : null;
+		if (node instanceof ASTInteger)
+			return ValueInteger.class;
+		if (node instanceof ASTFloat)
+			return ValueFloat.class;
+		if (node instanceof ASTDouble)
+			return ValueDouble.class;
+		if (node instanceof ASTCharacter)
+			return ValueString.class;
+		if (node instanceof ASTTrue || node instanceof ASTFalse)
+			return ValueBoolean.class;
+		if (node instanceof ASTDereference)
+			return (node.jjtGetNumChildren() == 0) ? getVariableType(((SimpleNode)node).tokenValue) : null;
+		if (node instanceof ASTFnInvoke) {
+			var function = getFunction(node.jjtGetChild(0));
+			return (function == null) ? null : CScharfUtil.getClassFromString(getToken(function, 0));
+		}
+
+		// Comparisons and logical operators give a boolean.  Arithmetic gives the type of its
+		// left operand, which is the value that performs it.
+		if (node instanceof ASTOr || node instanceof ASTAnd || node instanceof ASTUnaryNot || node instanceof ASTCompEqual || node instanceof ASTCompNequal
+				|| node instanceof ASTCompGTE || node instanceof ASTCompLTE || node instanceof ASTCompGT || node instanceof ASTCompLT)
+			return ValueBoolean.class;
+		if (node instanceof ASTAdd || node instanceof ASTSubtract || node instanceof ASTTimes || node instanceof ASTDivide
+				|| node instanceof ASTModulo || node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus) {
+			var type = typeOf(node.jjtGetChild(0));
+			if (type == ValueInteger.class || type == ValueFloat.class || type == ValueDouble.class || (type == ValueString.class && node instanceof ASTAdd))
+				return type;
+		}
+		return null;
+	}
+
+	// Return the type of a named variable, or null if it isn't known.
+	private Class<?> getVariableType(String name) {
+		var type = variables.get(name);
+		return (type == Object.class) ? null : type;
+	}
+
+	// Return the definition of the function a call names, or null if it can't be known before it runs.
+	private ASTFnDef getFunction(Node callee) {
+		if (!(callee instanceof ASTDereference) || callee.jjtGetNumChildren() != 0)
+			return null;
+		var name = ((SimpleNode)callee).tokenValue;
+		var function = functions.get(name);
+		// The name mustn't also be used for a variable, which might hold another function.
+		if (function == null || variables.containsKey(name))
+			return null;
+		for (int i = 0; i < function.jjtGetChild(2).jjtGetNumChildren(); i += 2)
+			if (CScharfUtil.getClassFromString(getToken(function.jjtGetChild(2), i)) == null)
+				return null;
+		return function;
+	}
+
+	// Return the token of the ith child of a given node.
+	private static String getToken(Node node, int i) {
+		return ((SimpleNode)node.jjtGetChild(i)).tokenValue;
+	}
+}
@@ -4,12 +4,21 @@ import uk.ac.derby.ldi.CScharf.interpreter.ExceptionSemantic;
 
 public class ValueBoolean extends ValueAbstract {
 
-	private boolean internalValue;
+	/** Shared true and false.  ValueBooleanS are immutable. */
+	public static final ValueBoolean TRUE = new ValueBoolean(true);
+	public static final ValueBoolean FALSE = new ValueBoolean(false);
+	
+	private final boolean internalValue;
 	
 	public ValueBoolean(boolean b) {
 		internalValue = b;
 	}
 	
+	/** Return the shared ValueBoolean for a given value. */
+	public static ValueBoolean valueOf(boolean b) {
+		return b ? TRUE : FALSE;
+	}
+	
 	public ValueBoolean(int val) {
 		if (val < 0 || val > 1) throw new ExceptionSemantic("Could not cast " + val + " to a boolean.");
 		internalValue = val == 1 ? true : false;
@@ -30,15 +39,15 @@ public class ValueBoolean extends ValueAbstract {
 	}
 	
 	public Value or(Value v) {
-		return new ValueBoolean(internalValue || v.booleanValue());
+		return valueOf(internalValue || v.booleanValue());
 	}
 
 	public Value and(Value v) {
-		return new ValueBoolean(internalValue && v.booleanValue());
+		return valueOf(internalValue && v.booleanValue());
 	}
 
 	public Value not() {
-		return new ValueBoolean(!internalValue);
+		return valueOf(!internalValue);
 	}
 
 	public int compare(Value v) {
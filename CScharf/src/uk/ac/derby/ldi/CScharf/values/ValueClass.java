@@ -13,8 +13,6 @@ public class ValueClass extends ValueAbstract implements ValueContainer {
 	private UUID id = UUID.randomUUID();
 	private boolean inConstructor = false;
 	private Map<String, ClassVariable> variables = new HashMap<String, ClassVariable>();
-	private Map<String, FunctionDefinition> functions = new HashMap<String, FunctionDefinition>();
-	private Map<String, ClassDefinition> classes = new HashMap<String, ClassDefinition>();
 	
 	private ClassDefinition classDefinition = null;
 		
@@ -23,22 +21,13 @@ public class ValueClass extends ValueAbstract implements ValueContainer {
 	public ValueClass(ClassDefinition classDef) {
 		classDefinition = classDef;
 		
+		// Only the variables belong to the instance.  Its functions and nested classes are its class's.
 		processVariables(classDef.getVariablesCopy());
-		processFunctions(classDef.getFunctionsCopy());
-		processClasses(classDef.getClassesCopy());
 	}
 	
 	private void processVariables(HashMap<String, ClassVariable> variables) {
 		this.variables = variables;
 	}
-	
-	private void processFunctions(HashMap<String, FunctionDefinition> functions) {
-		this.functions = functions;
-	}
-	
-	private void processClasses(HashMap<String, ClassDefinition> classes) {
-		this.classes = classes;
-	}
 
 	public String getName() {
 		return classDefinition.getName();
@@ -73,19 +62,11 @@ public class ValueClass extends ValueAbstract implements ValueContainer {
 	}
 	
 	public FunctionDefinition getFunction(String name) {
-		if (!functions.containsKey(name)) {
-			return null;
-		}
-		
-		return functions.get(name);
+		return classDefinition.getFunctions().get(name);
 	}
 	
 	public ClassDefinition getClass(String name) {
-		if (!classes.containsKey(name)) {
-			return null;
-		}
-		
-		return classes.get(name);
+		return classDefinition.getClasses().get(name);
 	}
 	
 	public String toString() {
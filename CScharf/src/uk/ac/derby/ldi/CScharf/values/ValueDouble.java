@@ -2,7 +2,7 @@ package uk.ac.derby.ldi.CScharf.values;
 
 public class ValueDouble extends ValueAbstract {
 
-	private double internalValue;
+	private final double internalValue;
 	
 	public ValueDouble(double b) {
 		internalValue = b;
@@ -2,7 +2,7 @@ package uk.ac.derby.ldi.CScharf.values;
 
 public class ValueFloat extends ValueAbstract {
 
-	private float internalValue;
+	private final float internalValue;
 	
 	public ValueFloat(float b) {
 		internalValue = b;
@@ -2,12 +2,29 @@ package uk.ac.derby.ldi.CScharf.values;
 
 public class ValueInteger extends ValueAbstract {
 
-	private long internalValue;
+	// ValueIntegerS are immutable, so those with small values are shared.
+	private static final int cacheLow = -128;
+	private static final int cacheHigh = 1023;
+	private static final ValueInteger[] cache = new ValueInteger[cacheHigh - cacheLow + 1];
+	
+	static {
+		for (int i = 0; i < cache.length; i++)
+			cache[i] = new ValueInteger(i + cacheLow);
+	}
+	
+	private final long internalValue;
 	
 	public ValueInteger(long b) {
 		internalValue = b;
 	}
 	
+	/** Return a ValueInteger for a given value, shared if it is small. */
+	public static ValueInteger valueOf(long b) {
+		if (b >= cacheLow && b <= cacheHigh)
+			return cache[(int)b - cacheLow];
+		return new ValueInteger(b);
+	}
+	
 	public String getName() {
 		return "integer";
 	}
@@ -37,31 +54,31 @@ public class ValueInteger extends ValueAbstract {
 	}
 	
 	public Value add(Value v) {
-		return new ValueInteger(internalValue + v.longValue());
+		return valueOf(internalValue + v.longValue());
 	}
 
 	public Value subtract(Value v) {
-		return new ValueInteger(internalValue - v.longValue());
+		return valueOf(internalValue - v.longValue());
 	}
 
 	public Value mult(Value v) {
-		return new ValueInteger(internalValue * v.longValue());
+		return valueOf(internalValue * v.longValue());
 	}
 
 	public Value div(Value v) {
-		return new ValueInteger(internalValue / v.longValue());
+		return valueOf(internalValue / v.longValue());
 	}
 	
 	public Value mod(Value v) {
-		return new ValueInteger(internalValue % v.longValue());
+		return valueOf(internalValue % v.longValue());
 	}
 
 	public Value unary_plus() {
-		return new ValueInteger(internalValue);
+		return this;
 	}
 
 	public Value unary_minus() {
-		return new ValueInteger(-internalValue);
+		return valueOf(-internalValue);
 	}
 	
 	public String toString() {
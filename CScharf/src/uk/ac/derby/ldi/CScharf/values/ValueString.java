@@ -2,7 +2,7 @@ package uk.ac.derby.ldi.CScharf.values;
 
 public class ValueString extends ValueAbstract {
 	
-	private String internalValue;
+	private final String internalValue;
 	
 	/** Return a ValueString given a quote-delimited source string. */
 	public static ValueString stripDelimited(String b) {
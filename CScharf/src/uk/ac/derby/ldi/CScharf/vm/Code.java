@@ -0,0 +1,27 @@
+package uk.ac.derby.ldi.CScharf.vm;
+
+import uk.ac.derby.ldi.CScharf.values.Value;
+
+/** Compiled code for the virtual machine: an instruction stream, plus its constant
+ * and name pools and the register file it runs in.
+ */
+public final class Code {
+	final int[] instructions;
+	final Value[] constants;
+	final String[] names;
+	
+	// Code never calls out to other code, so it is never re-entered and can own its registers.
+	final Value[] registers;
+	
+	Code(int[] instructions, Value[] constants, String[] names, int registerCount) {
+		this.instructions = instructions;
+		this.constants = constants;
+		this.names = names;
+		this.registers = new Value[registerCount];
+	}
+	
+	/** Get the number of instructions. */
+	public int getLength() {
+		return instructions.length;
+	}
+}
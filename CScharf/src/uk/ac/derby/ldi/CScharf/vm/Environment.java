@@ -0,0 +1,9 @@
+package uk.ac.derby.ldi.CScharf.vm;
+
+import uk.ac.derby.ldi.CScharf.values.Value;
+
+/** Run-time variable storage, as seen by the virtual machine. */
+public interface Environment {
+	/** Return the value of the named variable, parameter or member. */
+	public Value load(String name);
+}
@@ -0,0 +1,159 @@
+package uk.ac.derby.ldi.CScharf.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import uk.ac.derby.ldi.CScharf.parser.ast.*;
+import uk.ac.derby.ldi.CScharf.values.*;
+
+/** Compiles AST expressions into Code for the virtual machine.
+ *
+ * Only operator expressions built from literals, plain variables and other operators
+ * are compiled.  Anything else -- function invocations, member or index access, casts,
+ * object construction -- needs the interpreter, so compile() returns null for it.
+ *
+ * Registers are allocated as a stack: the result of a subexpression compiled into
+ * register r is left in r, and its operands use registers r and r + 1 and above.
+ *
+ * || and && jump over their right operand if their left one decides the result.
+ */
+public final class ExpressionCompiler {
+	private final ArrayList<Integer> instructions = new ArrayList<>();
+	private final ArrayList<Value> constants = new ArrayList<>();
+	private final ArrayList<String> names = new ArrayList<>();
+	private final HashMap<String, Integer> nameIndices = new HashMap<>();
+	private int registerCount = 0;
+
+	private ExpressionCompiler() {}
+
+	/** Compile an operator expression.  Return null if it is not an operator expression, or
+	 * contains a construct the virtual machine cannot evaluate.
+	 */
+	public static Code compile(SimpleNode node) {
+		var expression = unwrap(node);
+		if (getOpcode(expression) < 0 || !isCompilable(expression))
+			return null;
+		var compiler = new ExpressionCompiler();
+		compiler.compile(expression, 0);
+		compiler.emit(Opcode.encode(Opcode.RETURN, 0, 0, 0));
+		if (compiler.registerCount > Opcode.MAXIMUM_REGISTERS
+				|| compiler.constants.size() > Opcode.MAXIMUM_POOL_SIZE
+				|| compiler.names.size() > Opcode.MAXIMUM_POOL_SIZE
+				|| compiler.instructions.size() > Opcode.MAXIMUM_CODE_SIZE)
+			return null;
+		return compiler.getCode();
+	}
+
+	// Strip parenthesised primary expressions.
+	private static SimpleNode unwrap(SimpleNode node) {
+		while (node instanceof ASTPrimaryExpression && node.jjtGetNumChildren() == 1)
+			node = (SimpleNode)node.jjtGetChild(0);
+		return node;
+	}
+
+	// Return the opcode of an operator node, or -1 if it is not an operator.
+	private static int getOpcode(SimpleNode node) {
+		if (node instanceof ASTOr) return Opcode.OR;
+		if (node instanceof ASTAnd) return Opcode.AND;
+		if (node instanceof ASTCompEqual) return Opcode.EQ;
+		if (node instanceof ASTCompNequal) return Opcode.NEQ;
+		if (node instanceof ASTCompGTE) return Opcode.GTE;
+		if (node instanceof ASTCompLTE) return Opcode.LTE;
+		if (node instanceof ASTCompGT) return Opcode.GT;
+		if (node instanceof ASTCompLT) return Opcode.LT;
+		if (node instanceof ASTAdd) return Opcode.ADD;
+		if (node instanceof ASTSubtract) return Opcode.SUB;
+		if (node instanceof ASTTimes) return Opcode.MUL;
+		if (node instanceof ASTDivide) return Opcode.DIV;
+		if (node instanceof ASTModulo) return Opcode.MOD;
+		if (node instanceof ASTUnaryNot) return Opcode.NOT;
+		if (node instanceof ASTUnaryPlus) return Opcode.PLUS;
+		if (node instanceof ASTUnaryMinus) return Opcode.NEG;
+		return -1;
+	}
+
+	// Return a literal's value, or null if the node is not a literal.
+	private static Value getLiteral(SimpleNode node) {
+		if (node instanceof ASTCharacter) return ValueString.stripDelimited(node.tokenValue);
+		if (node instanceof ASTInteger) return ValueInteger.valueOf(Long.parseLong(node.tokenValue));
+		if (node instanceof ASTFloat) return new ValueFloat(Float.parseFloat(node.tokenValue));
+		if (node instanceof ASTDouble) return new ValueDouble(Double.parseDouble(node.tokenValue));
+		if (node instanceof ASTTrue) return ValueBoolean.TRUE;
+		if (node instanceof ASTFalse) return ValueBoolean.FALSE;
+		return null;
+	}
+
+	// True if a plain variable, parameter or member reference.
+	private static boolean isVariable(SimpleNode node) {
+		return node instanceof ASTDereference && node.jjtGetNumChildren() == 0;
+	}
+
+	// True if every node of an expression can be compiled.
+	private static boolean isCompilable(SimpleNode node) {
+		node = unwrap(node);
+		if (isVariable(node) || node instanceof ASTCharacter || node instanceof ASTInteger || node instanceof ASTFloat
+				|| node instanceof ASTDouble || node instanceof ASTTrue || node instanceof ASTFalse)
+			return true;
+		if (getOpcode(node) < 0)
+			return false;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isCompilable((SimpleNode)node.jjtGetChild(i)))
+				return false;
+		return true;
+	}
+
+	// Compile an expression, leaving its value in the given register.
+	private void compile(SimpleNode node, int register) {
+		node = unwrap(node);
+		registerCount = Math.max(registerCount, register + 1);
+		if (isVariable(node)) {
+			emit(Opcode.encodeIndexed(Opcode.LOAD, register, getNameIndex(node.tokenValue)));
+			return;
+		}
+		var literal = getLiteral(node);
+		if (literal != null) {
+			constants.add(literal);
+			emit(Opcode.encodeIndexed(Opcode.CONST, register, constants.size() - 1));
+			return;
+		}
+		var opcode = getOpcode(node);
+		compile((SimpleNode)node.jjtGetChild(0), register);
+		if (node.jjtGetNumChildren() == 1) {
+			emit(Opcode.encode(opcode, register, register, 0));
+			return;
+		}
+		if (opcode == Opcode.OR || opcode == Opcode.AND) {
+			// The jump's target isn't known until the right operand has been compiled.
+			var jump = instructions.size();
+			emit(0);
+			compile((SimpleNode)node.jjtGetChild(1), register + 1);
+			emit(Opcode.encode(opcode, register, register, register + 1));
+			instructions.set(jump, Opcode.encodeIndexed(opcode == Opcode.OR ? Opcode.JUMPT : Opcode.JUMPF, register, instructions.size()));
+			return;
+		}
+		compile((SimpleNode)node.jjtGetChild(1), register + 1);
+		emit(Opcode.encode(opcode, register, register, register + 1));
+	}
+
+	// Get the pool index of a variable name, adding it if necessary.
+	private int getNameIndex(String name) {
+		var index = nameIndices.get(name);
+		if (index == null) {
+			index = names.size();
+			names.add(name);
+			nameIndices.put(name, index);
+		}
+		return index;
+	}
+
+	private void emit(int instruction) {
+		instructions.add(instruction);
+	}
+
+	private Code getCode() {
+		var code = new int[instructions.size()];
+		for (int i = 0; i < code.length; i++)
+			code[i] = instructions.get(i);
+		return new Code(code, constants.toArray(new Value[0]), names.toArray(new String[0]), registerCount);
+	}
+}
@@ -0,0 +1,62 @@
+package uk.ac.derby.ldi.CScharf.vm;
+
+/** Opcodes of the register virtual machine.
+ *
+ * Every instruction is encoded in a single int:
+ *
+ *   bits  0-7  - opcode
+ *   bits  8-15 - A, the destination register
+ *   bits 16-23 - B, the first operand register
+ *   bits 24-31 - C, the second operand register
+ *
+ * CONST and LOAD use bits 16-31 as a single index Bx into the constant or name pool, and
+ * the jumps use them as the index Bx of the instruction to jump to.
+ */
+public final class Opcode {
+
+	private Opcode() {}
+
+	public static final int CONST = 0;		// R(A) = constant(Bx)
+	public static final int LOAD = 1;		// R(A) = value of variable name(Bx)
+	public static final int RETURN = 2;		// return R(A)
+
+	public static final int OR = 3;			// R(A) = R(B) || R(C)
+	public static final int AND = 4;		// R(A) = R(B) && R(C)
+	public static final int EQ = 5;			// R(A) = R(B) == R(C)
+	public static final int NEQ = 6;		// R(A) = R(B) != R(C)
+	public static final int GTE = 7;		// R(A) = R(B) >= R(C)
+	public static final int LTE = 8;		// R(A) = R(B) <= R(C)
+	public static final int GT = 9;			// R(A) = R(B) > R(C)
+	public static final int LT = 10;		// R(A) = R(B) < R(C)
+	public static final int ADD = 11;		// R(A) = R(B) + R(C)
+	public static final int SUB = 12;		// R(A) = R(B) - R(C)
+	public static final int MUL = 13;		// R(A) = R(B) * R(C)
+	public static final int DIV = 14;		// R(A) = R(B) / R(C)
+	public static final int MOD = 15;		// R(A) = R(B) % R(C)
+
+	public static final int NOT = 16;		// R(A) = !R(B)
+	public static final int PLUS = 17;		// R(A) = +R(B)
+	public static final int NEG = 18;		// R(A) = -R(B)
+
+	public static final int JUMPT = 19;		// if R(A) is true, jump to Bx
+	public static final int JUMPF = 20;		// if R(A) is false, jump to Bx
+
+	/** Maximum number of registers addressable by an instruction. */
+	public static final int MAXIMUM_REGISTERS = 256;
+
+	/** Maximum size of the constant and name pools. */
+	public static final int MAXIMUM_POOL_SIZE = 65536;
+
+	/** Maximum number of instructions, so that any of them can be jumped to. */
+	public static final int MAXIMUM_CODE_SIZE = 65536;
+
+	/** Encode an instruction with up to three register operands. */
+	static int encode(int opcode, int a, int b, int c) {
+		return opcode | (a << 8) | (b << 16) | (c << 24);
+	}
+
+	/** Encode an instruction with a register and a pool index. */
+	static int encodeIndexed(int opcode, int a, int bx) {
+		return opcode | (a << 8) | (bx << 16);
+	}
+}
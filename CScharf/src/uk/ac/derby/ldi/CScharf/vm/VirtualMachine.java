@@ -0,0 +1,60 @@
+package uk.ac.derby.ldi.CScharf.vm;
+
+import uk.ac.derby.ldi.CScharf.interpreter.ExceptionSemantic;
+import uk.ac.derby.ldi.CScharf.values.Value;
+import uk.ac.derby.ldi.CScharf.values.ValueBoolean;
+
+/** A register-based virtual machine, which runs Code in a single dispatch loop. */
+public final class VirtualMachine {
+
+	private VirtualMachine() {}
+
+	/** Run code, loading variables from the given environment, and return its result. */
+	public static Value run(Code code, Environment environment) {
+		final int[] instructions = code.instructions;
+		final Value[] constants = code.constants;
+		final Value[] registers = code.registers;
+
+		for (int pc = 0; ; pc++) {
+			final int instruction = instructions[pc];
+			final int a = (instruction >>> 8) & 0xFF;
+			final int b = (instruction >>> 16) & 0xFF;
+			final int c = instruction >>> 24;
+
+			switch (instruction & 0xFF) {
+				case Opcode.CONST:	registers[a] = constants[instruction >>> 16]; break;
+				case Opcode.LOAD:	registers[a] = environment.load(code.names[instruction >>> 16]); break;
+				case Opcode.RETURN:	return registers[a];
+
+				case Opcode.OR:		registers[a] = registers[b].or(registers[c]); break;
+				case Opcode.AND:	registers[a] = registers[b].and(registers[c]); break;
+				case Opcode.EQ:		registers[a] = registers[b].eq(registers[c]); break;
+				case Opcode.NEQ:	registers[a] = registers[b].neq(registers[c]); break;
+				case Opcode.GTE:	registers[a] = registers[b].gte(registers[c]); break;
+				case Opcode.LTE:	registers[a] = registers[b].lte(registers[c]); break;
+				case Opcode.GT:		registers[a] = registers[b].gt(registers[c]); break;
+				case Opcode.LT:		registers[a] = registers[b].lt(registers[c]); break;
+				case Opcode.ADD:	registers[a] = registers[b].add(registers[c]); break;
+				case Opcode.SUB:	registers[a] = registers[b].subtract(registers[c]); break;
+				case Opcode.MUL:	registers[a] = registers[b].mult(registers[c]); break;
+				case Opcode.DIV:	registers[a] = registers[b].div(registers[c]); break;
+				case Opcode.MOD:	registers[a] = registers[b].mod(registers[c]); break;
+
+				case Opcode.NOT:	registers[a] = registers[b].not(); break;
+				case Opcode.PLUS:	registers[a] = registers[b].unary_plus(); break;
+				case Opcode.NEG:	registers[a] = registers[b].unary_minus(); break;
+
+				case Opcode.JUMPT:	if (isBoolean(registers[a], true)) pc = (instruction >>> 16) - 1; break;
+				case Opcode.JUMPF:	if (isBoolean(registers[a], false)) pc = (instruction >>> 16) - 1; break;
+
+				default:
+					throw new ExceptionSemantic("Invalid virtual machine instruction " + (instruction & 0xFF) + " at " + pc + ".");
+			}
+		}
+	}
+
+	// True if a value is a given boolean.
+	private static boolean isBoolean(Value value, boolean b) {
+		return value.getClass() == ValueBoolean.class && value.booleanValue() == b;
+	}
+}